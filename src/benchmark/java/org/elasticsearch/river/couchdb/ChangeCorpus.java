@@ -0,0 +1,141 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Lines of a continuous <code>_changes</code> feed, as couchdb sends them with <code>include_docs=true</code>.
+ * Corpora are generated from a fixed seed, so runs can be compared.
+ */
+final class ChangeCorpus {
+
+    /**
+     * The kinds of corpus: small documents, large documents, deletions, design documents, small documents with
+     * bigcouch array seqs, and a mix of them all.
+     */
+    enum Kind {
+        SMALL, LARGE, DELETES, DESIGN, BIGCOUCH, MIXED
+    }
+
+    private static final String[] WORDS = {"couch", "river", "elastic", "search", "index", "shard", "replica",
+            "document", "change", "feed", "bulk", "seq", "revision", "attachment", "view", "filter"};
+
+    private ChangeCorpus() {
+    }
+
+    static BytesReference[] generate(Kind kind, int size) {
+        Random random = new Random(42);
+        BytesReference[] lines = new BytesReference[size];
+        for (int i = 0; i < size; i++) {
+            String line;
+            Kind lineKind = kind;
+            if (kind == Kind.MIXED) {
+                // mostly small updates, as most feeds
+                int dice = random.nextInt(100);
+                lineKind = dice < 70 ? Kind.SMALL : dice < 80 ? Kind.LARGE : dice < 95 ? Kind.DELETES : Kind.DESIGN;
+            }
+            switch (lineKind) {
+                case LARGE:
+                    line = change(i, String.valueOf(i), "doc-" + i, largeDoc(random, "doc-" + i));
+                    break;
+                case DELETES:
+                    line = deletion(i, String.valueOf(i), "doc-" + i);
+                    break;
+                case DESIGN:
+                    line = change(i, String.valueOf(i), "_design/ddoc-" + i, designDoc("_design/ddoc-" + i));
+                    break;
+                case BIGCOUCH:
+                    line = change(i, bigcouchSeq(random, i), "doc-" + i, smallDoc(random, "doc-" + i));
+                    break;
+                default:
+                    line = change(i, String.valueOf(i), "doc-" + i, smallDoc(random, "doc-" + i));
+            }
+            lines[i] = new BytesArray(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    private static String change(int i, String seq, String id, String doc) {
+        return "{\"seq\":" + seq + ",\"id\":\"" + id + "\",\"changes\":[{\"rev\":\"" + rev(i) + "\"}],\"doc\":" + doc + "}";
+    }
+
+    private static String deletion(int i, String seq, String id) {
+        return "{\"seq\":" + seq + ",\"id\":\"" + id + "\",\"changes\":[{\"rev\":\"" + rev(i) + "\"}],\"deleted\":true," +
+                "\"doc\":{\"_id\":\"" + id + "\",\"_rev\":\"" + rev(i) + "\",\"_deleted\":true}}";
+    }
+
+    private static String rev(int i) {
+        return String.format(Locale.ROOT, "%d-%032x", 1 + i % 5, (long) i * 2654435761L);
+    }
+
+    private static String bigcouchSeq(Random random, int i) {
+        StringBuilder opaque = new StringBuilder("g1AAAAG7eJzLYWBgYMlgTmFQSElKzi9KdUhJMtBLytVNTtY1MEjVMzQ");
+        for (int j = 0; j < 40; j++) {
+            opaque.append((char) ('a' + random.nextInt(26)));
+        }
+        return "[" + i + ",\"" + opaque + "\"]";
+    }
+
+    private static String smallDoc(Random random, String id) {
+        return "{\"_id\":\"" + id + "\",\"_rev\":\"1-abc\",\"type\":\"event\",\"name\":\"" + words(random, 3) +
+                "\",\"count\":" + random.nextInt(1000) + ",\"active\":" + random.nextBoolean() +
+                ",\"tags\":[\"" + words(random, 1) + "\",\"" + words(random, 1) + "\"]}";
+    }
+
+    private static String largeDoc(Random random, String id) {
+        StringBuilder doc = new StringBuilder("{\"_id\":\"").append(id).append("\",\"_rev\":\"1-abc\",\"type\":\"report\"");
+        doc.append(",\"title\":\"").append(words(random, 8)).append("\"");
+        doc.append(",\"body\":\"").append(words(random, 2000)).append("\"");
+        doc.append(",\"items\":[");
+        for (int i = 0; i < 100; i++) {
+            if (i > 0) {
+                doc.append(',');
+            }
+            doc.append("{\"n\":").append(i).append(",\"label\":\"").append(words(random, 4))
+                    .append("\",\"value\":").append(random.nextDouble()).append('}');
+        }
+        doc.append("],\"_attachments\":{\"report.pdf\":{\"content_type\":\"application/pdf\",\"revpos\":1," +
+                "\"digest\":\"md5-2JdGiI2i2VELZKnwMers1Q==\",\"length\":20480,\"stub\":true}}}");
+        return doc.toString();
+    }
+
+    private static String designDoc(String id) {
+        return "{\"_id\":\"" + id + "\",\"_rev\":\"1-abc\",\"language\":\"javascript\",\"views\":{\"by_type\":{\"map\":" +
+                "\"function(doc) { if (doc.type) { emit(doc.type, null); } }\"}},\"filters\":{\"events\":" +
+                "\"function(doc, req) { return doc.type == 'event'; }\"}}";
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+}
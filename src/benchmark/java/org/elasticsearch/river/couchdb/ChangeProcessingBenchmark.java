@@ -0,0 +1,112 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.river.RiverName;
+import org.elasticsearch.river.RiverSettings;
+import org.elasticsearch.script.CompiledScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.script.groovy.GroovyScriptEngineService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a line of the feed into an index or delete request, as the indexer threads do: parsing the change, running
+ * the script if any, and building the request.
+ * <p/>
+ * With a script, the document is always parsed into a map, so <code>streaming</code> only matters without one.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class ChangeProcessingBenchmark {
+
+    private static final String SCRIPT = "if (ctx.doc != null) { ctx.doc.count = (ctx.doc.count ?: 0) + 1; ctx._type = ctx.doc.type ?: 'doc' }";
+
+    @Param({"SMALL", "LARGE", "DELETES", "DESIGN", "BIGCOUCH", "MIXED"})
+    public ChangeCorpus.Kind corpus;
+
+    @Param({"false", "true"})
+    public boolean script;
+
+    @Param({"true", "false"})
+    public boolean streaming;
+
+    private BytesReference[] lines;
+    private int next;
+    private CouchdbRiver river;
+    private GroovyScriptEngineService scriptEngine;
+    private ExecutableScript executableScript;
+
+    @Setup
+    public void setup() throws Exception {
+        lines = ChangeCorpus.generate(corpus, 1000);
+
+        Map<String, Object> couchdbSettings = new HashMap<String, Object>();
+        couchdbSettings.put("streaming", streaming && !script);
+        Map<String, Object> riverSettings = new HashMap<String, Object>();
+        riverSettings.put("couchdb", couchdbSettings);
+        // neither the client, the script service nor the registry are used to process changes
+        river = new CouchdbRiver(new RiverName("couchdb", "benchmark"), new RiverSettings(Settings.EMPTY, riverSettings),
+                "_river", null, null, null);
+
+        if (script) {
+            scriptEngine = new GroovyScriptEngineService(Settings.EMPTY);
+            CompiledScript compiledScript = new CompiledScript(ScriptService.ScriptType.INLINE, "benchmark", "groovy",
+                    scriptEngine.compile(SCRIPT));
+            executableScript = scriptEngine.executable(compiledScript, new HashMap<String, Object>());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (scriptEngine != null) {
+            scriptEngine.close();
+        }
+    }
+
+    @Benchmark
+    public ActionRequest process() throws Exception {
+        BytesReference line = lines[next];
+        next = (next + 1) % lines.length;
+        return river.processChange("benchmark", ChangeParser.parse(line), executableScript);
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.plugins.PluginsService;
+import org.elasticsearch.river.couchdb.helper.FakeCouchdbServer;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.equalTo;
+
+/**
+ * End to end throughput and latency of the river, reading from a {@link FakeCouchdbServer} into the test cluster.
+ * <p/>
+ * Reports the number of changes per second, from the first change sent by the server until all the documents are
+ * searchable, and the latency from a change being sent to the document being searchable, sampled over a few hundred
+ * documents. It includes the refresh interval of the index, as it would in production.
+ * <p/>
+ * The number of documents is set with -Dtests.benchmark.docs, 10000 by default.
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.SUITE,
+        numDataNodes = 1, numClientNodes = 0, transportClientRatio = 0.0)
+public class CouchdbRiverThroughputTest extends ElasticsearchIntegrationTest {
+
+    private static final int DOCS = Integer.getInteger("tests.benchmark.docs", 10000);
+
+    private static final int PROBES = 200;
+
+    private FakeCouchdbServer server;
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true)
+            .build();
+    }
+
+    @After
+    public final void stopServer() {
+        if (server != null) {
+            server.close();
+            server = null;
+        }
+    }
+
+    @Test
+    public void testSmallDocs() throws IOException, InterruptedException {
+        run(FakeCouchdbServer.builder().db("small").docCount(DOCS).docSize(200, 2000), null);
+    }
+
+    @Test
+    public void testLargeDocs() throws IOException, InterruptedException {
+        run(FakeCouchdbServer.builder().db("large").docCount(Math.max(1, DOCS / 10)).docSize(10000, 200000), null);
+    }
+
+    @Test
+    public void testDeletes() throws IOException, InterruptedException {
+        run(FakeCouchdbServer.builder().db("deletes").docCount(DOCS).deleteRatio(0.3), null);
+    }
+
+    @Test
+    public void testBigcouchSeqs() throws IOException, InterruptedException {
+        run(FakeCouchdbServer.builder().db("bigcouch").docCount(DOCS)
+                .seqFormat(FakeCouchdbServer.SeqFormat.BIGCOUCH).heartbeatEvery(100), null);
+    }
+
+    @Test
+    public void testCouchdb2Seqs() throws IOException, InterruptedException {
+        run(FakeCouchdbServer.builder().db("couchdb2").docCount(DOCS)
+                .seqFormat(FakeCouchdbServer.SeqFormat.COUCHDB2).heartbeatEvery(100), null);
+    }
+
+    @Test
+    public void testWithoutIncludeDocs() throws IOException, InterruptedException {
+        Map<String, Object> couchdb = new HashMap<String, Object>();
+        couchdb.put("include_docs", false);
+        run(FakeCouchdbServer.builder().db("without_docs").docCount(DOCS), couchdb);
+    }
+
+    @Test
+    public void testNormalFeed() throws IOException, InterruptedException {
+        Map<String, Object> couchdb = new HashMap<String, Object>();
+        couchdb.put("feed", "normal");
+        run(FakeCouchdbServer.builder().db("normal").docCount(DOCS).heartbeat(100), couchdb);
+    }
+
+    private void run(FakeCouchdbServer.Builder builder, Map<String, Object> couchdb)
+            throws IOException, InterruptedException {
+        server = builder.start();
+        String index = server.db();
+        logger.info("  -> Serving [{}] changes, [{}] documents left, on port [{}]", server.changes(), server.liveDocs(),
+                server.port());
+
+        // documents which are never deleted, spread over the feed
+        List<Integer> probes = new ArrayList<Integer>();
+        int step = Math.max(1, server.docCount() / PROBES);
+        for (int doc = 0; doc < server.docCount(); doc += step) {
+            for (int candidate = doc; candidate < Math.min(doc + step, server.docCount()); candidate++) {
+                if (!server.isDeleted(candidate)) {
+                    probes.add(candidate);
+                    break;
+                }
+            }
+        }
+
+        XContentBuilder river = jsonBuilder().startObject().field("type", "couchdb").startObject("couchdb")
+                .field("host", server.host())
+                .field("port", server.port())
+                .field("db", server.db());
+        if (couchdb != null) {
+            for (Map.Entry<String, Object> entry : couchdb.entrySet()) {
+                river.field(entry.getKey(), entry.getValue());
+            }
+        }
+        river.endObject().startObject("index").field("index", index).endObject().endObject();
+        createIndex(index);
+        index("_river", server.db(), "_meta", river);
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(10);
+        long count = -1;
+        while (System.nanoTime() < deadline) {
+            // probes are checked in feed order, a batch at a time
+            List<String> ids = new ArrayList<String>();
+            for (int i = 0; i < probes.size() && ids.size() < 20; i++) {
+                if (server.createdAt(probes.get(i)) != 0) {
+                    ids.add(FakeCouchdbServer.docId(probes.get(i)));
+                }
+            }
+            try {
+                if (!ids.isEmpty()) {
+                    SearchResponse response = client().prepareSearch(index)
+                            .setQuery(QueryBuilders.idsQuery().ids(ids.toArray(new String[ids.size()])))
+                            .setSize(ids.size()).get();
+                    long now = System.nanoTime();
+                    for (SearchHit hit : response.getHits()) {
+                        Integer doc = Integer.valueOf(hit.getId().substring("doc-".length()));
+                        latency.record(TimeUnit.NANOSECONDS.toMicros(now - server.createdAt(doc)));
+                        probes.remove(doc);
+                    }
+                }
+                count = client().prepareSearch(index).setSize(0).get().getHits().totalHits();
+            } catch (IndexMissingException e) {
+                count = -1;
+            }
+            if (count == server.liveDocs() && probes.isEmpty()) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        long elapsed = System.nanoTime() - server.startedAt();
+        assertThat(count, equalTo((long) server.liveDocs()));
+
+        logger.info("  -> [{}] changes in [{}ms]: [{}] changes/s, latency mean [{}ms] p50 [{}ms] p90 [{}ms] p99 [{}ms] max [{}ms]",
+                server.changes(), TimeUnit.NANOSECONDS.toMillis(elapsed),
+                (long) (server.changes() * 1000000000.0 / elapsed),
+                latency.mean() / 1000, latency.percentile(0.5) / 1000, latency.percentile(0.9) / 1000,
+                latency.percentile(0.99) / 1000, latency.max() / 1000);
+    }
+}
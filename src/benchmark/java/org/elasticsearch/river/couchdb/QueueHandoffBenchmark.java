@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handing changes from a slurper thread to the indexer thread through the <code>stream</code> queue: bounded by
+ * <code>throttle_size</code>, or unbounded when it is <code>-1</code>.
+ * <p/>
+ * Both sides wait with a timeout, as the indexer does, so that none of them is left blocked when an iteration ends.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Group)
+public class QueueHandoffBenchmark {
+
+    @Param({"500", "-1"})
+    public int throttleSize;
+
+    private BlockingQueue<Change> stream;
+    private Change change;
+
+    @Setup
+    public void setup() throws Exception {
+        stream = throttleSize == -1 ? new LinkedTransferQueue<Change>() : new ArrayBlockingQueue<Change>(throttleSize);
+        change = ChangeParser.parse(ChangeCorpus.generate(ChangeCorpus.Kind.SMALL, 1)[0]);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        // an unbounded queue grows when the slurper is faster
+        stream.clear();
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean slurper() throws InterruptedException {
+        return stream.offer(change, 10, TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public Change indexer() throws InterruptedException {
+        return stream.poll(10, TimeUnit.MILLISECONDS);
+    }
+}
@@ -20,9 +20,16 @@
 package org.elasticsearch.plugin.river.couchdb;
 
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.rest.RestModule;
 import org.elasticsearch.river.RiversModule;
 import org.elasticsearch.river.couchdb.CouchdbRiverModule;
+import org.elasticsearch.river.couchdb.CouchdbRiverNodeModule;
+import org.elasticsearch.river.couchdb.RestCouchdbRiverAction;
+
+import java.util.Collection;
+import java.util.Collections;
 
 /**
  *
@@ -43,7 +50,16 @@ public class CouchdbRiverPlugin extends AbstractPlugin {
         return "River CouchDB Plugin";
     }
 
+    @Override
+    public Collection<Class<? extends Module>> modules() {
+        return Collections.<Class<? extends Module>>singletonList(CouchdbRiverNodeModule.class);
+    }
+
     public void onModule(RiversModule module) {
         module.registerRiver("couchdb", CouchdbRiverModule.class);
     }
+
+    public void onModule(RestModule module) {
+        module.addRestAction(RestCouchdbRiverAction.class);
+    }
 }
@@ -0,0 +1,250 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.metrics.CounterMetric;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The base64 encoded content of the attachments already indexed, keyed by document id, attachment name and digest,
+ * so that an attachment which did not change along with its document is not fetched and encoded again.
+ * <p/>
+ * Contents are kept on heap up to <code>maxHeapBytes</code>, the least recently used first to go. When a spill
+ * directory is given, the contents evicted from the heap are written there, up to <code>maxDiskBytes</code>, and
+ * brought back on heap when used again. The directory only lives as long as the cache: it is emptied when the cache
+ * is created and closed. The cache never fails its callers: a content that can not be written to or read from the
+ * directory is logged and dropped.
+ */
+final class AttachmentCache {
+
+    private static final ESLogger logger = Loggers.getLogger(AttachmentCache.class);
+
+    private final long maxHeapBytes;
+    // null unless contents spill to disk
+    private final Path spillDir;
+    private final long maxDiskBytes;
+
+    // guarded by this
+    private final LinkedHashMap<String, BytesReference> heap = new LinkedHashMap<String, BytesReference>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long heapBytes;
+    private long diskBytes;
+
+    final CounterMetric hits = new CounterMetric();
+    final CounterMetric diskHits = new CounterMetric();
+    final CounterMetric misses = new CounterMetric();
+
+    AttachmentCache(long maxHeapBytes, Path spillDir, long maxDiskBytes) throws IOException {
+        this.maxHeapBytes = maxHeapBytes;
+        this.spillDir = spillDir;
+        this.maxDiskBytes = maxDiskBytes;
+        if (spillDir != null) {
+            Files.createDirectories(spillDir);
+            clear(spillDir);
+        }
+    }
+
+    /**
+     * The content of an attachment, <code>null</code> if it is not cached.
+     */
+    public BytesReference get(String id, String name, String digest) {
+        if (digest == null) {
+            return null;
+        }
+        String key = key(id, name, digest);
+        synchronized (this) {
+            BytesReference content = heap.get(key);
+            if (content != null) {
+                hits.inc();
+                return content;
+            }
+            Long size = disk.remove(key);
+            if (size == null) {
+                misses.inc();
+                return null;
+            }
+            diskBytes -= size;
+        }
+        // read outside of the lock, no one else can see the file anymore
+        Path file = file(key);
+        BytesReference content;
+        try {
+            content = new BytesArray(Files.readAllBytes(file));
+        } catch (NoSuchFileException e) {
+            misses.inc();
+            return null;
+        } catch (IOException e) {
+            logger.warn("failed to read cached attachment [{}] of document [{}], dropping it", e, name, id);
+            delete(file);
+            misses.inc();
+            return null;
+        }
+        delete(file);
+        diskHits.inc();
+        put(key, content);
+        return content;
+    }
+
+    /**
+     * Caches the content of an attachment, evicting the least recently used contents if needed.
+     */
+    public void put(String id, String name, String digest, BytesReference content) {
+        if (digest != null) {
+            put(key(id, name, digest), content);
+        }
+    }
+
+    public synchronized long heapBytes() {
+        return heapBytes;
+    }
+
+    public synchronized long diskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Empties the cache, along with its spill directory.
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            heap.clear();
+            disk.clear();
+            heapBytes = 0;
+            diskBytes = 0;
+        }
+        if (spillDir != null) {
+            clear(spillDir);
+        }
+    }
+
+    private void put(String key, BytesReference content) {
+        List<Map.Entry<String, BytesReference>> evicted = new ArrayList<Map.Entry<String, BytesReference>>();
+        synchronized (this) {
+            BytesReference previous = heap.remove(key);
+            if (previous != null) {
+                heapBytes -= previous.length();
+            }
+            if (content.length() <= maxHeapBytes) {
+                heap.put(key, content);
+                heapBytes += content.length();
+            } else {
+                evicted.add(new LinkedHashMap.SimpleEntry<String, BytesReference>(key, content));
+            }
+            Iterator<Map.Entry<String, BytesReference>> iterator = heap.entrySet().iterator();
+            while (heapBytes > maxHeapBytes && iterator.hasNext()) {
+                Map.Entry<String, BytesReference> eldest = iterator.next();
+                iterator.remove();
+                heapBytes -= eldest.getValue().length();
+                evicted.add(eldest);
+            }
+        }
+        if (spillDir != null) {
+            for (Map.Entry<String, BytesReference> entry : evicted) {
+                spill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Writes an evicted content to the spill directory, evicting the least recently used files if needed.
+     */
+    private void spill(String key, BytesReference content) {
+        if (content.length() > maxDiskBytes) {
+            return;
+        }
+        Path file = file(key);
+        try {
+            // written outside of the lock, it can't be read before it is registered
+            Files.write(file, content.toBytes());
+        } catch (IOException e) {
+            // disk full, permissions... the content is fetched again if needed
+            logger.warn("failed to spill a cached attachment to [{}], dropping it", e, spillDir);
+            delete(file);
+            return;
+        }
+        List<String> evicted = new ArrayList<String>();
+        synchronized (this) {
+            Long previous = disk.put(key, (long) content.length());
+            diskBytes += content.length() - (previous == null ? 0 : previous);
+            Iterator<Map.Entry<String, Long>> iterator = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                iterator.remove();
+                diskBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+            }
+        }
+        for (String evictedKey : evicted) {
+            delete(file(evictedKey));
+        }
+    }
+
+    private static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.debug("failed to delete [{}] from the attachment cache", e, file);
+        }
+    }
+
+    private Path file(String key) {
+        // keys hold any character, and can be long
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return spillDir.resolve(name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private static String key(String id, String name, String digest) {
+        return new StringBuilder(id.length() + name.length() + digest.length() + 2)
+                .append(id).append('\u0000').append(name).append('\u0000').append(digest).toString();
+    }
+
+    private static void clear(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+}
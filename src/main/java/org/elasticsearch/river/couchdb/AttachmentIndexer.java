@@ -0,0 +1,438 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Adds the content of the attachments of the documents to their source, under <code>attachments_field</code>, as
+ * a list of objects a <code>content</code> field of type <code>attachment</code> can be mapped in, with the
+ * mapper attachments plugin. Attachments are fetched one at a time from <code>/{db}/{id}/{name}</code>, on
+ * <code>attachment_concurrency</code> threads, so that documents with large attachments never hold up the rest
+ * of the feed. Attachments larger than <code>max_attachment_size</code> are left out.
+ * <p/>
+ * The encoded attachments of the documents are bounded by <code>attachment_memory</code>, from the moment they
+ * are fetched until the bulk holding their document is executed. A document whose attachments alone exceed the
+ * budget is indexed without them. Attachments are base64 encoded straight into the source of the document as they
+ * are read, and their encoding is kept in an {@link AttachmentCache}, so that an attachment whose digest did not
+ * change is neither fetched nor encoded again.
+ * <p/>
+ * A later change of a document supersedes the change whose attachments are being fetched, so that the document
+ * does not go back in time once they are.
+ */
+final class AttachmentIndexer {
+
+    private static final byte[] CONTENT_FIELD = ",\"_content\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT_END = "\"}}".getBytes(StandardCharsets.UTF_8);
+
+    private final CouchdbRiver river;
+    private final ESLogger logger;
+    private final CouchdbHttpClient httpClient;
+    private final CouchdbRiverStats stats;
+    private final ExecutorService executor;
+    private final ByteSizeValue maxAttachmentSize;
+    private final String attachmentsField;
+    private final String deadLetterIndex;
+    // in kilobytes, so that it fits the permits of a semaphore
+    private final int memoryKb;
+    private final Semaphore memory;
+    // the permits held by the requests sent to the bulk processor, until their bulk is executed
+    private final Map<ActionRequest, Integer> held = new IdentityHashMap<ActionRequest, Integer>();
+    // the documents waiting for their attachments, as many as the changes waiting to be indexed
+    private final Semaphore waiting;
+    // the last request of each document whose attachments are being fetched, by index/type/id
+    private final Map<String, IndexRequest> fetching = new HashMap<String, IndexRequest>();
+    // the documents being added to the bulk processor, which can block, so it is done outside of the lock
+    private final Set<String> sending = new HashSet<String>();
+    // null if attachment_cache_size is 0
+    final AttachmentCache cache;
+
+    /**
+     * @param executor     the <code>attachment_concurrency</code> threads fetching the attachments
+     * @param cache        the encoded attachments, <code>null</code> for none
+     * @param throttleSize the number of documents waiting for their attachments, <code>-1</code> for no limit
+     */
+    AttachmentIndexer(CouchdbRiver river, ESLogger logger, CouchdbHttpClient httpClient, CouchdbRiverStats stats,
+                      ExecutorService executor, AttachmentCache cache, int throttleSize, ByteSizeValue attachmentMemory,
+                      ByteSizeValue maxAttachmentSize, String attachmentsField, String deadLetterIndex) {
+        this.river = river;
+        this.logger = logger;
+        this.httpClient = httpClient;
+        this.stats = stats;
+        this.executor = executor;
+        this.cache = cache;
+        this.maxAttachmentSize = maxAttachmentSize;
+        this.attachmentsField = attachmentsField;
+        this.deadLetterIndex = deadLetterIndex;
+        this.memoryKb = (int) Math.max(1, Math.min(Integer.MAX_VALUE, attachmentMemory.bytes() / 1024));
+        this.memory = new Semaphore(memoryKb);
+        this.waiting = new Semaphore(throttleSize == -1 ? Integer.MAX_VALUE : Math.max(1, throttleSize));
+    }
+
+    void submit(final String db, final IndexRequest request, final SequenceTracker.Ticket ticket) {
+        final String key = CoalescingWindow.documentKey(request);
+        try {
+            waiting.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (fetching) {
+            fetching.put(key, request);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetchAndSend(db, key, request, ticket);
+                    } finally {
+                        waiting.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing
+            waiting.release();
+        }
+    }
+
+    /**
+     * Lets the given request supersede the change of the same document whose attachments are being fetched,
+     * if any. Waits for the change of the document being added to the bulk processor, if any, so that the
+     * given request goes after it.
+     */
+    void supersede(ActionRequest request) {
+        String key = CoalescingWindow.documentKey(request);
+        synchronized (fetching) {
+            fetching.remove(key);
+            try {
+                awaitSent(key);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Releases the memory held by the attachments of a request, once it is done with.
+     */
+    void release(ActionRequest request) {
+        Integer cost;
+        synchronized (held) {
+            cost = held.remove(request);
+        }
+        if (cost != null) {
+            memory.release(cost);
+        }
+    }
+
+    int pending() {
+        synchronized (fetching) {
+            return fetching.size();
+        }
+    }
+
+    void close() {
+        executor.shutdownNow();
+        if (cache != null) {
+            try {
+                cache.close();
+            } catch (IOException e) {
+                logger.debug("failed to clear the attachment cache", e);
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private void fetchAndSend(String db, String key, IndexRequest request, SequenceTracker.Ticket ticket) {
+        int cost = 0;
+        try {
+            Map<String, Object> source = request.sourceAsMap();
+            if (source.get("_attachments") instanceof Map) {
+                Map<String, Map<String, Object>> stubs = stubs((Map<String, Object>) source.get("_attachments"), request.id());
+                int needed = cost(stubs);
+                if (needed > memoryKb) {
+                    logger.warn("attachments of document [{}] take more than [{}] encoded, indexing it without them",
+                            request.id(), new ByteSizeValue(memoryKb * 1024L));
+                    stats.attachmentsSkipped.inc(stubs.size());
+                } else {
+                    memory.acquire(needed);
+                    cost = needed;
+                    request.source(withAttachments(db, key, request, source, stubs, cost));
+                }
+            }
+            synchronized (fetching) {
+                awaitSent(key);
+                if (fetching.get(key) != request) {
+                    // the checkpoint will only move over it with the change superseding it
+                    stats.superseded.inc();
+                    ticket.complete();
+                    return;
+                }
+                fetching.remove(key);
+                sending.add(key);
+            }
+            if (cost > 0) {
+                // released by the river once the bulk holding the request is executed
+                synchronized (held) {
+                    held.put(request, cost);
+                }
+                cost = 0;
+            }
+            try {
+                river.send(request, ticket);
+            } finally {
+                synchronized (fetching) {
+                    sending.remove(key);
+                    fetching.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            // closing
+        } catch (Exception e) {
+            synchronized (fetching) {
+                if (fetching.get(key) == request) {
+                    fetching.remove(key);
+                }
+            }
+            stats.failed.inc();
+            if (deadLetterIndex != null) {
+                logger.warn("failed to index the attachments of document [{}], sending it to [{}]", e, request.id(), deadLetterIndex);
+                river.deadLetter(db, request.id(), ticket, null, null, e.toString());
+                return;
+            }
+            logger.warn("failed to index the attachments of document [{}], ignoring", e, request.id());
+            ticket.complete();
+        } finally {
+            if (cost > 0) {
+                memory.release(cost);
+            }
+        }
+    }
+
+    /**
+     * The stubs of the attachments to index, by name, leaving out those larger than <code>max_attachment_size</code>.
+     */
+    @SuppressWarnings({"unchecked"})
+    private Map<String, Map<String, Object>> stubs(Map<String, Object> attachments, String id) {
+        Map<String, Map<String, Object>> stubs = new LinkedHashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, Object> entry : attachments.entrySet()) {
+            if (!(entry.getValue() instanceof Map)) {
+                continue;
+            }
+            Map<String, Object> stub = (Map<String, Object>) entry.getValue();
+            if (XContentMapValues.nodeLongValue(stub.get("length"), -1) > maxAttachmentSize.bytes()) {
+                logger.debug("attachment [{}] of document [{}] is larger than [{}], skipping it", entry.getKey(), id,
+                        maxAttachmentSize);
+                stats.attachmentsSkipped.inc();
+                continue;
+            }
+            stubs.put(entry.getKey(), stub);
+        }
+        return stubs;
+    }
+
+    /**
+     * The kilobytes the attachments take once base64 encoded.
+     */
+    private int cost(Map<String, Map<String, Object>> stubs) {
+        long cost = 0;
+        for (Map<String, Object> stub : stubs.values()) {
+            long length = XContentMapValues.nodeLongValue(stub.get("length"), -1);
+            cost += (length >= 0 ? length : maxAttachmentSize.bytes()) * 4 / 3 / 1024 + 1;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, cost);
+    }
+
+    /**
+     * Builds the source of the document with its attachments under <code>attachments_field</code>: the metadata of
+     * each attachment, and its content for the mapper attachments plugin, as a string already base64 encoded.
+     */
+    private BytesReference withAttachments(String db, String key, IndexRequest request, Map<String, Object> source,
+                                           Map<String, Map<String, Object>> stubs, int cost) throws IOException, InterruptedException {
+        BytesReference base = request.source();
+        if (source.remove(attachmentsField) != null) {
+            base = jsonBuilder().map(source).bytes();
+        }
+        String rev = source.get("_rev") == null ? null : source.get("_rev").toString();
+        int end = base.length() - 1;
+        while (end > 0 && base.get(end) != '}') {
+            end--;
+        }
+        BytesStreamOutput out = new BytesStreamOutput((int) Math.min(Integer.MAX_VALUE - 1024, base.length() + cost * 1024L + 256 * stubs.size()));
+        base.slice(0, end).writeTo(out);
+        byte[] field = (',' + CouchdbRiver.jsonString(attachmentsField) + ":[").getBytes(StandardCharsets.UTF_8);
+        out.write(field, 0, field.length);
+        boolean first = true;
+        for (Map.Entry<String, Map<String, Object>> entry : stubs.entrySet()) {
+            if (!isCurrent(key, request)) {
+                // superseded, thrown away once we are done
+                break;
+            }
+            String name = entry.getKey();
+            Map<String, Object> stub = entry.getValue();
+            long length = XContentMapValues.nodeLongValue(stub.get("length"), -1);
+            String digest = XContentMapValues.nodeStringValue(stub.get("digest"), null);
+            String contentType = XContentMapValues.nodeStringValue(stub.get("content_type"), null);
+
+            long start = out.position();
+            if (!first) {
+                out.write(',');
+            }
+            XContentBuilder attachment = jsonBuilder().startObject()
+                    .field("name", name)
+                    .field("content_type", contentType);
+            if (length >= 0) {
+                attachment.field("length", length);
+            }
+            attachment.field("digest", digest).startObject("content").field("_name", name);
+            if (contentType != null) {
+                attachment.field("_content_type", contentType);
+            }
+            BytesReference metadata = attachment.endObject().endObject().bytes();
+            // the content goes in the content object, before its closing braces
+            metadata.slice(0, metadata.length() - 2).writeTo(out);
+            out.write(CONTENT_FIELD, 0, CONTENT_FIELD.length);
+
+            BytesReference content = cache == null ? null : cache.get(request.id(), name, digest);
+            if (content != null) {
+                stats.attachmentsCached.inc();
+                content.writeTo(out);
+            } else {
+                long contentStart = out.position();
+                if (!fetch(out, db, request.id(), name, rev, length)) {
+                    // gone with a later revision, the feed will bring it
+                    out.seek(start);
+                    continue;
+                }
+                if (cache != null) {
+                    int contentLength = (int) (out.position() - contentStart);
+                    cache.put(request.id(), name, digest, new BytesArray(out.bytes().slice((int) contentStart, contentLength).toBytes()));
+                }
+            }
+            out.write(CONTENT_END, 0, CONTENT_END.length);
+            first = false;
+        }
+        out.write(']');
+        out.write('}');
+        return out.bytes();
+    }
+
+    /**
+     * Waits, holding the lock on <code>fetching</code>, until the document is no longer being sent.
+     */
+    private void awaitSent(String key) throws InterruptedException {
+        while (sending.contains(key)) {
+            fetching.wait();
+        }
+    }
+
+    private boolean isCurrent(String key, IndexRequest request) {
+        synchronized (fetching) {
+            return fetching.get(key) == request;
+        }
+    }
+
+    /**
+     * Fetches the content of an attachment, base64 encoding it into <code>out</code> as it is read, until it
+     * succeeds or the river is closed. A failed read is rolled back before it is tried again. Returns
+     * <code>false</code> if the attachment or its revision is gone.
+     */
+    private boolean fetch(BytesStreamOutput out, String db, String id, String name, String rev, long length)
+            throws IOException, InterruptedException {
+        StringBuilder path = new StringBuilder(river.dbPath(db)).append('/').append(CouchdbRiver.pathEncode(id)).append('/');
+        // slashes are kept in attachment names
+        String[] segments = name.split("/", -1);
+        for (int i = 0; i < segments.length; i++) {
+            path.append(i == 0 ? "" : "/").append(CouchdbRiver.pathEncode(segments[i]));
+        }
+        if (rev != null) {
+            path.append("?rev=").append(CouchdbRiver.urlEncode(rev));
+        }
+        long limit = length >= 0 ? length : maxAttachmentSize.bytes();
+        long start = out.position();
+
+        while (true) {
+            if (river.isClosed()) {
+                throw new InterruptedException();
+            }
+            InputStream is = null;
+            try {
+                is = httpClient.get(path.toString());
+                // not closed, which would close the source
+                Base64.OutputStream encoder = new Base64.OutputStream(out, Base64.ENCODE);
+                byte[] buffer = new byte[8192];
+                long size = 0;
+                int read;
+                while ((read = is.read(buffer)) >= 0) {
+                    size += read;
+                    if (size > limit) {
+                        throw new IllegalStateException("attachment [" + name + "] of document [" + id + "] is larger than [" + limit + "] bytes");
+                    }
+                    encoder.write(buffer, 0, read);
+                }
+                // writes the padding
+                encoder.flushBase64();
+                stats.attachments.inc();
+                stats.attachmentBytes.inc(size);
+                return true;
+            } catch (FileNotFoundException e) {
+                out.seek(start);
+                return false;
+            } catch (IOException e) {
+                out.seek(start);
+                if (river.isClosed()) {
+                    throw new InterruptedException();
+                }
+                logger.warn("failed to fetch attachment [{}] of document [{}] from [{}], throttling....", e, name, id, db);
+                Thread.sleep(5000);
+            } finally {
+                IOUtils.closeWhileHandlingException(is);
+            }
+        }
+    }
+}
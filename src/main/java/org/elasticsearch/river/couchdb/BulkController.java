@@ -0,0 +1,109 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+/**
+ * Tunes the number of actions of a bulk and the number of concurrent bulks from the latency of the bulks and the
+ * rejections they get, within bounds.
+ * <p/>
+ * The bulk processor is built with the upper bounds, and the river flushes it once the current number of actions
+ * has been added, waiting for a slot if the current number of concurrent bulks is already running. Bulks get smaller
+ * when they take longer than the target latency and bigger when they take less than half of it. A rejection halves
+ * both the size and the concurrency, which grows back by one every few successful bulks.
+ */
+final class BulkController {
+
+    // successful bulks after which the concurrency grows by one
+    private static final int CONCURRENCY_INCREASE_AFTER = 10;
+
+    private final int minActions;
+    private final int maxActions;
+    private final int minConcurrency;
+    private final int maxConcurrency;
+    private final long targetLatencyNanos;
+
+    private int actions;
+    private int concurrency;
+    private int added;
+    private int running;
+    private int successes;
+
+    BulkController(int actions, int minActions, int maxActions, int minConcurrency, int maxConcurrency, long targetLatencyNanos) {
+        this.minActions = minActions;
+        this.maxActions = maxActions;
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.actions = Math.max(minActions, Math.min(maxActions, actions));
+        this.concurrency = minConcurrency;
+    }
+
+    /**
+     * Counts an action added to the bulk processor, and returns whether the bulk should be sent.
+     */
+    public synchronized boolean added() {
+        return ++added >= actions;
+    }
+
+    /**
+     * Waits until less than the current number of concurrent bulks are running.
+     */
+    public synchronized void awaitSlot() throws InterruptedException {
+        while (running >= concurrency) {
+            wait();
+        }
+    }
+
+    public synchronized void beforeBulk() {
+        // whatever triggered it, the bulk takes all the actions added so far
+        added = 0;
+        running++;
+    }
+
+    public synchronized void afterBulk(long tookNanos, boolean rejected) {
+        running--;
+        if (rejected) {
+            actions = Math.max(minActions, actions / 2);
+            concurrency = Math.max(minConcurrency, concurrency / 2);
+            successes = 0;
+        } else {
+            if (tookNanos > targetLatencyNanos) {
+                actions = Math.max(minActions, actions * 3 / 4);
+            } else if (tookNanos < targetLatencyNanos / 2) {
+                actions = Math.min(maxActions, Math.max(actions + 1, actions * 5 / 4));
+            }
+            if (++successes >= CONCURRENCY_INCREASE_AFTER) {
+                successes = 0;
+                if (tookNanos <= targetLatencyNanos) {
+                    concurrency = Math.min(maxConcurrency, concurrency + 1);
+                }
+            }
+        }
+        notifyAll();
+    }
+
+    public synchronized int actions() {
+        return actions;
+    }
+
+    public synchronized int concurrency() {
+        return concurrency;
+    }
+}
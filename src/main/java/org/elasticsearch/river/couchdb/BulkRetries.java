@@ -0,0 +1,217 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.ActionRequest;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The requests of failed bulk items waiting to be sent again. Each retry waits for an exponential backoff with
+ * jitter, and a request is given up after <code>maxRetries</code> retries, unless they are {@link #UNLIMITED}.
+ * <p/>
+ * Retries are scheduled from the bulk listener and sent again from another thread, as adding to the bulk processor
+ * from its listener could deadlock. The last request sent for each document is tracked until all the requests sent
+ * for it are done, and a retry is superseded when a newer request of the same document has been sent since, be it
+ * before the failure or while the retry waits, so an old version does not overwrite a newer one.
+ */
+final class BulkRetries {
+
+    /**
+     * Retries a request until it goes through, for the changes that have nowhere else to go.
+     */
+    static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * A request waiting for its backoff to expire.
+     */
+    static final class Retry implements Delayed {
+        final ActionRequest request;
+        final SequenceTracker.Ticket ticket;
+        final int attempt;
+        private final long deadline;
+        private volatile boolean superseded;
+
+        Retry(ActionRequest request, SequenceTracker.Ticket ticket, int attempt, long delayNanos) {
+            this.request = request;
+            this.ticket = ticket;
+            this.attempt = attempt;
+            this.deadline = System.nanoTime() + delayNanos;
+        }
+
+        /**
+         * Whether a newer request of the same document was sent after this one.
+         */
+        public boolean superseded() {
+            return superseded;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long diff = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * The last request sent for a document, and how many of the requests sent for it are not done yet.
+     */
+    private static final class Sent {
+        ActionRequest last;
+        int pending;
+    }
+
+    private final int maxRetries;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final DelayQueue<Retry> queue = new DelayQueue<Retry>();
+    // the requests retried at least once, until they are done
+    private final Map<ActionRequest, Integer> attempts = new IdentityHashMap<ActionRequest, Integer>();
+    // the documents with requests not done yet
+    private final Map<String, Sent> documents = new HashMap<String, Sent>();
+    private int waiting;
+
+    BulkRetries(int maxRetries, long initialBackoffNanos, long maxBackoffNanos) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffNanos = initialBackoffNanos;
+        this.maxBackoffNanos = maxBackoffNanos;
+    }
+
+    /**
+     * Records a new request sent to the bulk, which supersedes any request of the same document sent before.
+     */
+    public synchronized void sent(ActionRequest request) {
+        String key = CoalescingWindow.documentKey(request);
+        Sent sent = documents.get(key);
+        if (sent == null) {
+            sent = new Sent();
+            documents.put(key, sent);
+        }
+        sent.last = request;
+        sent.pending++;
+    }
+
+    /**
+     * Forgets about a request once it is done: executed, superseded, or given up.
+     */
+    public synchronized void done(ActionRequest request) {
+        if (!attempts.isEmpty()) {
+            attempts.remove(request);
+        }
+        String key = CoalescingWindow.documentKey(request);
+        Sent sent = documents.get(key);
+        if (sent != null && --sent.pending <= 0) {
+            documents.remove(key);
+        }
+    }
+
+    /**
+     * Schedules a failed request to be sent again. Returns <code>false</code> if it has already been retried
+     * <code>maxRetries</code> times, which never happens with {@link #UNLIMITED} retries. A request superseded by a newer one is handed back right away, flagged as such.
+     */
+    public boolean schedule(ActionRequest request, SequenceTracker.Ticket ticket) {
+        Retry retry;
+        synchronized (this) {
+            if (superseded(request)) {
+                retry = new Retry(request, ticket, 0, 0);
+                retry.superseded = true;
+            } else {
+                Integer previous = attempts.get(request);
+                int attempt = previous == null ? 1 : previous + 1;
+                if (maxRetries != UNLIMITED && attempt > maxRetries) {
+                    attempts.remove(request);
+                    return false;
+                }
+                attempts.put(request, attempt);
+                retry = new Retry(request, ticket, attempt, backoff(attempt));
+            }
+            waiting++;
+        }
+        queue.add(retry);
+        return true;
+    }
+
+    public int maxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Waits for the next request whose backoff has expired. A superseded request is done, and must not be sent again.
+     */
+    public Retry take() throws InterruptedException {
+        Retry retry = queue.take();
+        synchronized (this) {
+            if (retry.superseded || superseded(retry.request)) {
+                retry.superseded = true;
+                done(retry.request);
+            }
+            waiting--;
+            notifyAll();
+        }
+        return retry;
+    }
+
+    private boolean superseded(ActionRequest request) {
+        Sent sent = documents.get(CoalescingWindow.documentKey(request));
+        return sent != null && sent.last != request;
+    }
+
+    /**
+     * The number of requests waiting for their backoff to expire.
+     */
+    public synchronized int waiting() {
+        return waiting;
+    }
+
+    /**
+     * Waits until no request is waiting for its backoff, or the timeout expires.
+     */
+    public synchronized void awaitNoneWaiting(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (waiting > 0 && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Exponential backoff, with a random jitter between half and all of it, so that the requests rejected by the
+     * same bulk don't all come back at once.
+     */
+    long backoff(int attempt) {
+        long backoff = initialBackoffNanos << Math.min(attempt - 1, 30);
+        if (backoff <= 0 || backoff > maxBackoffNanos) {
+            backoff = maxBackoffNanos;
+        }
+        return backoff / 2 + (long) (ThreadLocalRandom.current().nextDouble() * (backoff / 2));
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * A single line of the couchdb <code>_changes</code> feed, as extracted by {@link ChangeParser}.
+ * The <code>doc</code> is copied out of the line, without being parsed into a map.
+ */
+final class Change {
+
+    private final BytesReference source;
+    private final Object seq;
+    private final String id;
+    private final boolean deleted;
+    private final boolean error;
+    private final String index;
+    private final String type;
+    private final String routing;
+    private final String parent;
+    private final BytesReference doc;
+    private final boolean hasAttachments;
+
+    Change(BytesReference source, Object seq, String id, boolean deleted, boolean error,
+           String index, String type, String routing, String parent,
+           BytesReference doc, boolean hasAttachments) {
+        this.source = source;
+        this.seq = seq;
+        this.id = id;
+        this.deleted = deleted;
+        this.error = error;
+        this.index = index;
+        this.type = type;
+        this.routing = routing;
+        this.parent = parent;
+        this.doc = doc;
+        this.hasAttachments = hasAttachments;
+    }
+
+    /**
+     * The full line this change was parsed from.
+     */
+    public BytesReference source() {
+        return source;
+    }
+
+    /**
+     * The sequence of the change (or the <code>last_seq</code> of a line closing the feed), either a
+     * <code>String</code>, a <code>Long</code> or, for bigcouch, a <code>List</code>.
+     */
+    public Object seq() {
+        return seq;
+    }
+
+    /**
+     * The id of the document, <code>null</code> for a <code>last_seq</code> line.
+     */
+    public String id() {
+        return id;
+    }
+
+    public boolean deleted() {
+        return deleted;
+    }
+
+    public boolean error() {
+        return error;
+    }
+
+    public String index() {
+        return index;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    public String routing() {
+        return routing;
+    }
+
+    public String parent() {
+        return parent;
+    }
+
+    /**
+     * The <code>doc</code> object of the change, or <code>null</code> if the feed did not include it.
+     */
+    public BytesReference doc() {
+        return doc;
+    }
+
+    /**
+     * Whether the <code>doc</code> object has an <code>_attachments</code> field.
+     */
+    public boolean hasAttachments() {
+        return hasAttachments;
+    }
+}
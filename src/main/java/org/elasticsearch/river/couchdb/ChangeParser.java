@@ -0,0 +1,245 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Token level parser for the lines of the couchdb <code>_changes</code> feed.
+ * <p/>
+ * Only the top level fields the river needs are decoded. The <code>doc</code> object is copied token by token
+ * from the line, so it can be handed to the index request without being parsed into a map and serialized back.
+ */
+final class ChangeParser {
+
+    /**
+     * A response of the <code>_changes</code> feed in <code>normal</code> or <code>longpoll</code> mode, or of
+     * <code>_all_docs</code>.
+     */
+    static final class Page {
+        private final List<BytesReference> results;
+        private final Object lastSeq;
+
+        private Page(List<BytesReference> results, Object lastSeq) {
+            this.results = results;
+            this.lastSeq = lastSeq;
+        }
+
+        /**
+         * The changes (or rows) of the page, copied out of the response so that they can be parsed with
+         * {@link #parse(BytesReference)}.
+         */
+        public List<BytesReference> results() {
+            return results;
+        }
+
+        public Object lastSeq() {
+            return lastSeq;
+        }
+    }
+
+    private ChangeParser() {
+    }
+
+    /**
+     * Parses a single (non empty) line of the <code>_changes</code> feed.
+     */
+    public static Change parse(BytesReference line) throws IOException {
+        XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(line);
+        try {
+            return parseChange(line, parser);
+        } catch (IOException e) {
+            throw new ElasticsearchParseException("failed to parse change", e);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Splits a response of the <code>_changes</code> feed in <code>normal</code> or <code>longpoll</code> mode in
+     * its results, without parsing them.
+     */
+    public static Page parsePage(BytesReference response) throws IOException {
+        return parsePage(response, "results");
+    }
+
+    /**
+     * Splits a response of <code>_all_docs</code> in its rows, without parsing them. Rows have the same
+     * <code>id</code> and <code>doc</code> fields as the changes of the feed.
+     */
+    public static Page parseRows(BytesReference response) throws IOException {
+        return parsePage(response, "rows");
+    }
+
+    private static Page parsePage(BytesReference response, String resultsField) throws IOException {
+        XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(response);
+        try {
+            List<BytesReference> results = new ArrayList<BytesReference>();
+            Object lastSeq = null;
+            // longpoll heartbeats are sent as new lines before the response, the parser skips them as whitespace
+            expect(parser, XContentParser.Token.START_OBJECT);
+            while (nextToken(parser) != XContentParser.Token.END_OBJECT) {
+                String field = parser.currentName();
+                XContentParser.Token token = nextToken(parser);
+                if (resultsField.equals(field) && token == XContentParser.Token.START_ARRAY) {
+                    while (nextToken(parser) != XContentParser.Token.END_ARRAY) {
+                        results.add(XContentFactory.jsonBuilder().copyCurrentStructure(parser).bytes());
+                    }
+                } else if ("last_seq".equals(field)) {
+                    lastSeq = readSeq(parser, token);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            expectEnd(parser);
+            return new Page(results, lastSeq);
+        } catch (IOException e) {
+            throw new ElasticsearchParseException("failed to parse [{}]", e, resultsField);
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static Change parseChange(BytesReference line, XContentParser parser) throws IOException {
+        Object seq = null;
+        String id = null;
+        boolean deleted = false;
+        boolean error = false;
+        String index = null;
+        String type = null;
+        String routing = null;
+        String parent = null;
+        BytesReference doc = null;
+        boolean hasAttachments = false;
+
+        expect(parser, XContentParser.Token.START_OBJECT);
+        while (nextToken(parser) != XContentParser.Token.END_OBJECT) {
+            String field = parser.currentName();
+            XContentParser.Token token = nextToken(parser);
+            switch (field) {
+                case "seq":
+                case "last_seq":
+                    seq = readSeq(parser, token);
+                    break;
+                case "id":
+                    id = readStringOrNull(parser, token);
+                    break;
+                case "deleted":
+                    deleted = token == XContentParser.Token.VALUE_BOOLEAN && parser.booleanValue();
+                    break;
+                case "error":
+                    error = true;
+                    parser.skipChildren();
+                    break;
+                case "_index":
+                    index = readStringOrNull(parser, token);
+                    break;
+                case "_type":
+                    type = readStringOrNull(parser, token);
+                    break;
+                case "_routing":
+                    routing = readStringOrNull(parser, token);
+                    break;
+                case "_parent":
+                    parent = readStringOrNull(parser, token);
+                    break;
+                case "doc":
+                    if (token == XContentParser.Token.START_OBJECT) {
+                        // copied field by field, to see whether one of them is _attachments on the way
+                        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+                        while (nextToken(parser) != XContentParser.Token.END_OBJECT) {
+                            if ("_attachments".equals(parser.currentName())) {
+                                hasAttachments = true;
+                            }
+                            builder.copyCurrentStructure(parser);
+                        }
+                        doc = builder.endObject().bytes();
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        expectEnd(parser);
+        return new Change(line, seq, id, deleted, error, index, type, routing, parent, doc, hasAttachments);
+    }
+
+    private static Object readSeq(XContentParser parser, XContentParser.Token token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return parser.text();
+            case VALUE_NUMBER:
+                String number = parser.text();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return number;
+                }
+            case START_ARRAY:
+                // bigcouch uses an array for the seq
+                return parser.list();
+            case VALUE_NULL:
+                return null;
+            default:
+                throw new ElasticsearchParseException("unexpected seq [{}]", token);
+        }
+    }
+
+    private static String readStringOrNull(XContentParser parser, XContentParser.Token token) throws IOException {
+        if (token == XContentParser.Token.VALUE_STRING) {
+            return parser.text();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static XContentParser.Token nextToken(XContentParser parser) throws IOException {
+        XContentParser.Token token = parser.nextToken();
+        if (token == null) {
+            throw new ElasticsearchParseException("unexpected end of input");
+        }
+        return token;
+    }
+
+    private static void expect(XContentParser parser, XContentParser.Token expected) throws IOException {
+        XContentParser.Token token = nextToken(parser);
+        if (token != expected) {
+            throw new ElasticsearchParseException("expected [{}] but got [{}]", expected, token);
+        }
+    }
+
+    private static void expectEnd(XContentParser parser) throws IOException {
+        XContentParser.Token token = parser.nextToken();
+        if (token != null) {
+            throw new ElasticsearchParseException("unexpected [{}] after the end of the object", token);
+        }
+    }
+}
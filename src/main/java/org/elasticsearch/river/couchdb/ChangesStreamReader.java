@@ -0,0 +1,148 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits the couchdb <code>_changes</code> feed into lines directly on the bytes of the stream, without
+ * decoding them to chars.
+ * <p/>
+ * The read buffer and the buffer used to assemble lines spanning several reads are reused from one
+ * connection to the next. Lines are not: each one is returned as its own exactly sized array, because the
+ * {@link Change} parsed from it keeps it until the change is indexed, on an indexer thread, long after the
+ * next lines are read. The line is parsed into a map when a script runs, has its document spliced in when
+ * the feed is read without <code>include_docs</code>, and is written as is to the dead letter index.
+ */
+final class ChangesStreamReader {
+
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    // we don't keep on holding the memory used by a huge line
+    private static final int MAX_RETAINED_SCRATCH_SIZE = 1024 * 1024;
+
+    private final byte[] buffer;
+    private byte[] scratch;
+    private int scratchLength;
+
+    private InputStream is;
+    private int pos;
+    private int limit;
+
+    ChangesStreamReader() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    ChangesStreamReader(int bufferSize) {
+        this.buffer = new byte[bufferSize];
+        this.scratch = new byte[bufferSize];
+    }
+
+    /**
+     * Starts reading lines from a new stream, dropping whatever was left from the previous one.
+     */
+    public void reset(InputStream is) {
+        this.is = is;
+        this.pos = 0;
+        this.limit = 0;
+        this.scratchLength = 0;
+    }
+
+    /**
+     * Reads the next line, without its line terminator. Returns an empty reference for empty lines
+     * (couchdb heartbeats), and <code>null</code> when the end of the stream is reached.
+     */
+    public BytesReference readLine() throws IOException {
+        scratchLength = 0;
+        if (scratch.length > MAX_RETAINED_SCRATCH_SIZE) {
+            scratch = new byte[buffer.length];
+        }
+        while (true) {
+            if (pos >= limit) {
+                if (!fill()) {
+                    if (scratchLength == 0) {
+                        return null;
+                    }
+                    // last line without terminator
+                    return line(scratch, 0, scratchLength);
+                }
+            }
+            int start = pos;
+            while (pos < limit) {
+                if (buffer[pos] == '\n') {
+                    int end = pos;
+                    pos++;
+                    if (scratchLength == 0) {
+                        return line(buffer, start, end - start);
+                    }
+                    appendToScratch(start, end - start);
+                    return line(scratch, 0, scratchLength);
+                }
+                pos++;
+            }
+            // the line spans over the next read
+            appendToScratch(start, limit - start);
+        }
+    }
+
+    /**
+     * The size of the buffer used to assemble the lines spanning several reads.
+     */
+    int scratchSize() {
+        return scratch.length;
+    }
+
+    private boolean fill() throws IOException {
+        int read = is.read(buffer, 0, buffer.length);
+        while (read == 0) {
+            read = is.read(buffer, 0, buffer.length);
+        }
+        if (read < 0) {
+            pos = 0;
+            limit = 0;
+            return false;
+        }
+        pos = 0;
+        limit = read;
+        return true;
+    }
+
+    private void appendToScratch(int offset, int length) {
+        if (scratchLength + length > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, scratchLength + length));
+        }
+        System.arraycopy(buffer, offset, scratch, scratchLength, length);
+        scratchLength += length;
+    }
+
+    private static BytesReference line(byte[] bytes, int offset, int length) {
+        if (length > 0 && bytes[offset + length - 1] == '\r') {
+            length--;
+        }
+        if (length == 0) {
+            return BytesArray.EMPTY;
+        }
+        return new BytesArray(Arrays.copyOfRange(bytes, offset, offset + length));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the index and delete requests of an indexer thread for a while before they are sent to the bulk processor,
+ * keeping only the last request of each document, so documents updated over and over again are indexed once per
+ * window. Not thread safe.
+ */
+final class CoalescingWindow {
+
+    /**
+     * A request waiting in the window, with the change it comes from.
+     */
+    static final class Operation {
+        final ActionRequest request;
+        final SequenceTracker.Ticket ticket;
+
+        Operation(ActionRequest request, SequenceTracker.Ticket ticket) {
+            this.request = request;
+            this.ticket = ticket;
+        }
+    }
+
+    private final int size;
+    private final long intervalNanos;
+    private final Map<String, Operation> operations = new LinkedHashMap<String, Operation>();
+    private long openedAt;
+
+    /**
+     * @param size          the number of documents after which the window is full
+     * @param intervalNanos the time after which the window is full, from its first request
+     */
+    CoalescingWindow(int size, long intervalNanos) {
+        this.size = size;
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * Adds a request to the window, and returns the ticket of the request of the same document it replaces,
+     * <code>null</code> if there was none.
+     */
+    public SequenceTracker.Ticket add(ActionRequest request, SequenceTracker.Ticket ticket) {
+        if (operations.isEmpty()) {
+            openedAt = System.nanoTime();
+        }
+        String key = documentKey(request);
+        Operation previous = operations.remove(key);
+        operations.put(key, new Operation(request, ticket));
+        return previous == null ? null : previous.ticket;
+    }
+
+    /**
+     * Removes the request of the document of the given request, and returns its ticket, <code>null</code> if there
+     * was none.
+     */
+    public SequenceTracker.Ticket remove(ActionRequest request) {
+        Operation previous = operations.remove(documentKey(request));
+        return previous == null ? null : previous.ticket;
+    }
+
+    public boolean isFull() {
+        return operations.size() >= size || (!operations.isEmpty() && System.nanoTime() - openedAt >= intervalNanos);
+    }
+
+    /**
+     * The time left until the window is full by its interval, <code>Long.MAX_VALUE</code> if it is empty.
+     */
+    public long remainingNanos() {
+        if (operations.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, intervalNanos - (System.nanoTime() - openedAt));
+    }
+
+    /**
+     * Empties the window, returning its requests in the order they were last added.
+     */
+    public List<Operation> drain() {
+        List<Operation> drained = new ArrayList<Operation>(operations.values());
+        operations.clear();
+        return drained;
+    }
+
+    /**
+     * The <code>index/type/id</code> of the document of an index or delete request.
+     */
+    static String documentKey(ActionRequest request) {
+        if (request instanceof IndexRequest) {
+            IndexRequest indexRequest = (IndexRequest) request;
+            return key(indexRequest.index(), indexRequest.type(), indexRequest.id());
+        }
+        DeleteRequest deleteRequest = (DeleteRequest) request;
+        return key(deleteRequest.index(), deleteRequest.type(), deleteRequest.id());
+    }
+
+    private static String key(String index, String type, String id) {
+        return new StringBuilder(index.length() + type.length() + id.length() + 2)
+                .append(index).append('/').append(type).append('/').append(id).toString();
+    }
+}
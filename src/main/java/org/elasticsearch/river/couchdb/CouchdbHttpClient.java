@@ -0,0 +1,238 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The http client used for all the requests of a river to couchdb.
+ * <p/>
+ * Connections are kept alive and pooled by the jdk, as long as the response is fully read and its stream closed,
+ * instead of disconnecting. The keep-alive cache only hands a https connection back to a request using the same
+ * socket factory and hostname verifier, so both are created once per client, which also lets the tls sessions be
+ * resumed when a new connection is needed. When <code>compression</code> is enabled, responses are requested
+ * gzipped and decompressed as they are read. The bytes read from couchdb are counted as they come over the wire,
+ * before decompression.
+ */
+final class CouchdbHttpClient {
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    private static final HostnameVerifier NO_VERIFY = new HostnameVerifier() {
+        public boolean verify(String string, SSLSession ssls) {
+            return true;
+        }
+    };
+
+    private final String protocol;
+    private final String host;
+    private final int port;
+    private final String basicAuth;
+    private final TimeValue readTimeout;
+    private final boolean noVerify;
+    private final boolean compression;
+    private final SSLSocketFactory sslSocketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+    private final CounterMetric bytesRead = new CounterMetric();
+
+    /**
+     * @param protocol    <code>http</code> or <code>https</code>
+     * @param host        the host used when none is given to a request
+     * @param port        the port used when none is given to a request
+     * @param basicAuth   the <code>Authorization</code> header, or <code>null</code>
+     * @param readTimeout the read timeout of the requests
+     * @param noVerify    whether to skip the verification of the host name of https servers
+     * @param compression whether to ask for gzipped responses
+     */
+    CouchdbHttpClient(String protocol, String host, int port, String basicAuth, TimeValue readTimeout,
+                      boolean noVerify, boolean compression) {
+        this.protocol = protocol;
+        this.host = host;
+        this.port = port;
+        this.basicAuth = basicAuth;
+        this.readTimeout = readTimeout;
+        this.noVerify = noVerify;
+        this.compression = compression;
+    }
+
+    /**
+     * Sends a <code>GET</code> request for the given path, which must start with a <code>/</code>, and returns the
+     * (decompressed) response. Closing the stream once it is fully read gives the connection back to the pool.
+     */
+    public InputStream get(String path) throws IOException {
+        return get(host, port, path);
+    }
+
+    public InputStream get(String host, int port, String path) throws IOException {
+        return execute(open(host, port, path));
+    }
+
+    /**
+     * Sends a <code>POST</code> request with a json body, and returns the (decompressed) response.
+     */
+    public InputStream post(String path, BytesReference body) throws IOException {
+        return post(host, port, path, body);
+    }
+
+    public InputStream post(String host, int port, String path, BytesReference body) throws IOException {
+        HttpURLConnection connection = open(host, port, path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setFixedLengthStreamingMode(body.length());
+        OutputStream os = connection.getOutputStream();
+        try {
+            body.writeTo(os);
+        } finally {
+            os.close();
+        }
+        return execute(connection);
+    }
+
+    /**
+     * Gets a json document from couchdb.
+     */
+    public Map<String, Object> getJson(String path) throws IOException {
+        return getJson(host, port, path);
+    }
+
+    public Map<String, Object> getJson(String host, int port, String path) throws IOException {
+        InputStream is = get(host, port, path);
+        try {
+            return XContentFactory.xContent(XContentType.JSON).createParser(is).mapAndClose();
+        } finally {
+            IOUtils.closeWhileHandlingException(is);
+        }
+    }
+
+    /**
+     * The number of bytes of response bodies read so far.
+     */
+    public long bytesRead() {
+        return bytesRead.count();
+    }
+
+    private HttpURLConnection open(String host, int port, String path) throws IOException {
+        URL url = new URL(protocol, host, port, path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (basicAuth != null) {
+            connection.addRequestProperty("Authorization", basicAuth);
+        }
+        if (compression) {
+            connection.addRequestProperty("Accept-Encoding", "gzip");
+        }
+        connection.setDoInput(true);
+        connection.setReadTimeout((int) readTimeout.getMillis());
+        connection.setUseCaches(false);
+
+        if (connection instanceof HttpsURLConnection) {
+            HttpsURLConnection httpsConnection = (HttpsURLConnection) connection;
+            httpsConnection.setSSLSocketFactory(sslSocketFactory);
+            if (noVerify) {
+                httpsConnection.setHostnameVerifier(NO_VERIFY);
+            }
+        }
+        return connection;
+    }
+
+    private InputStream execute(HttpURLConnection connection) throws IOException {
+        InputStream is;
+        try {
+            is = new CountingInputStream(connection.getInputStream(), bytesRead);
+        } catch (IOException e) {
+            // reading the error fully lets the connection be reused
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                try {
+                    byte[] buffer = new byte[1024];
+                    while (error.read(buffer) >= 0) {
+                        // drain
+                    }
+                } catch (IOException e1) {
+                    // the connection won't be reused
+                } finally {
+                    IOUtils.closeWhileHandlingException(error);
+                }
+            }
+            throw e;
+        }
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            try {
+                return new GZIPInputStream(is, GZIP_BUFFER_SIZE);
+            } catch (IOException e) {
+                IOUtils.closeWhileHandlingException(is);
+                throw e;
+            }
+        }
+        return is;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private final CounterMetric counter;
+
+        CountingInputStream(InputStream in, CounterMetric counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counter.inc();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                counter.inc(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            counter.inc(skipped);
+            return skipped;
+        }
+    }
+}
@@ -20,6 +20,7 @@
 package org.elasticsearch.river.couchdb;
 
 import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
@@ -28,34 +29,46 @@ import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
-import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
-import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.river.*;
+import org.elasticsearch.script.CompiledScript;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptContext;
 import org.elasticsearch.script.ScriptService;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
@@ -69,147 +82,173 @@ public class CouchdbRiver extends AbstractRiverComponent implements River {
 
     private final String riverIndexName;
 
-    private final String couchProtocol;
-    private final String couchHost;
-    private final int couchPort;
-    private final String couchDb;
-    private final String couchFilter;
-    private final String couchFilterParamsUrl;
-    private final String basicAuth;
-    private final boolean noVerify;
-    private final boolean couchIgnoreAttachments;
-    private final TimeValue heartbeat;
-    private final TimeValue readTimeout;
-
-    private final String indexName;
-    private final String typeName;
-    private final int bulkSize;
-    private final TimeValue bulkTimeout;
-    private final int throttleSize;
-
-    private final ExecutableScript script;
-
-    private volatile Thread slurperThread;
+    private final CouchdbRiverConfig config;
+    private final CouchdbHttpClient httpClient;
+
+    private final ScriptService scriptService;
+    private final CompiledScript script;
+
+    private final CouchdbRiverStats stats = new CouchdbRiverStats();
+    private final ReplicationLag replicationLag = new ReplicationLag();
+
+    private final List<Thread> slurperThreads = new CopyOnWriteArrayList<Thread>();
     private volatile Thread indexerThread;
+    private volatile Thread retryThread;
+    private volatile Thread lagThread;
+    private volatile Thread[] workerThreads;
+    // the threads of all the initial loads running, one per database with multiple databases
+    private final Set<Thread> initialLoadThreads = ConcurrentCollections.newConcurrentSet();
+    private volatile ExecutorService fetchExecutor;
+    // null unless index_attachments is set
+    private volatile AttachmentIndexer attachmentIndexer;
     private volatile boolean closed;
 
-    private final BlockingQueue<String> stream;
+    private final BlockingQueue<PendingChange> stream;
+    private final BlockingQueue<PendingChange>[] workerQueues;
+
+    // the database feed, one feed per database with several databases, or one feed per shard in clustered mode
+    private final List<Feed> feeds = new CopyOnWriteArrayList<Feed>();
+    // the feeds waiting for their next read by the feed readers, with several databases
+    private final DelayQueue<PolledFeed> polledFeeds = new DelayQueue<PolledFeed>();
+    private final Map<String, PolledFeed> polledByDb = ConcurrentCollections.newConcurrentMap();
+    // guarded by writeCheckpoint
+    private boolean unsavedCheckpoint;
+    private long lastCheckpointTime;
+    private long advancedAtLastCheckpoint;
+    // the changes sent to the bulk processor, until their bulk is acknowledged
+    private final Map<ActionRequest, SequenceTracker.Ticket> inFlight =
+            Collections.synchronizedMap(new IdentityHashMap<ActionRequest, SequenceTracker.Ticket>());
 
-    private final TimeValue bulkFlushInterval;
     private volatile BulkProcessor bulkProcessor;
-    private final int maxConcurrentBulk;
+    // null unless adaptive_bulk is enabled
+    private final BulkController bulkController;
+    private final Map<Long, Long> bulkStartTimes = ConcurrentCollections.newConcurrentMap();
+    // null if max_retries is 0 with a dead letter index
+    private final BulkRetries bulkRetries;
+
+    private volatile BulkProcessor deadLetterProcessor;
+    // the changes dead-lettered, until their dead letter is acknowledged
+    private final Map<ActionRequest, SequenceTracker.Ticket> deadLetterTickets =
+            Collections.synchronizedMap(new IdentityHashMap<ActionRequest, SequenceTracker.Ticket>());
+    private volatile Thread replayThread;
+
+    // the rivers running on this node, for the transport action
+    private final CouchdbRiverRegistry registry;
 
     @SuppressWarnings({"unchecked"})
     @Inject
-    public CouchdbRiver(RiverName riverName, RiverSettings settings, @RiverIndexName String riverIndexName, Client client, ScriptService scriptService) {
+    public CouchdbRiver(RiverName riverName, RiverSettings settings, @RiverIndexName String riverIndexName, Client client,
+                        ScriptService scriptService, CouchdbRiverRegistry registry) {
         super(riverName, settings);
         this.riverIndexName = riverIndexName;
         this.client = client;
+        this.scriptService = scriptService;
+        this.registry = registry;
 
-        if (settings.settings().containsKey("couchdb")) {
-            Map<String, Object> couchSettings = (Map<String, Object>) settings.settings().get("couchdb");
-            couchProtocol = XContentMapValues.nodeStringValue(couchSettings.get("protocol"), "http");
-            noVerify = XContentMapValues.nodeBooleanValue(couchSettings.get("no_verify"), false);
-            couchHost = XContentMapValues.nodeStringValue(couchSettings.get("host"), "localhost");
-            couchPort = XContentMapValues.nodeIntegerValue(couchSettings.get("port"), 5984);
-            couchDb = XContentMapValues.nodeStringValue(couchSettings.get("db"), riverName.name());
-            couchFilter = XContentMapValues.nodeStringValue(couchSettings.get("filter"), null);
-            if (couchSettings.containsKey("filter_params")) {
-                Map<String, Object> filterParams = (Map<String, Object>) couchSettings.get("filter_params");
-                StringBuilder sb = new StringBuilder();
-                for (Map.Entry<String, Object> entry : filterParams.entrySet()) {
-                    try {
-                        sb.append("&").append(URLEncoder.encode(entry.getKey(), "UTF-8")).append("=").append(URLEncoder.encode(entry.getValue().toString(), "UTF-8"));
-                    } catch (UnsupportedEncodingException e) {
-                        // should not happen...
-                    }
-                }
-                couchFilterParamsUrl = sb.toString();
-            } else {
-                couchFilterParamsUrl = null;
-            }
-            heartbeat = XContentMapValues.nodeTimeValue(couchSettings.get("heartbeat"), TimeValue.timeValueSeconds(10));
-            readTimeout = XContentMapValues.nodeTimeValue(couchSettings.get("read_timeout"), TimeValue.timeValueSeconds(heartbeat.getSeconds()*3));
-            couchIgnoreAttachments = XContentMapValues.nodeBooleanValue(couchSettings.get("ignore_attachments"), false);
-            if (couchSettings.containsKey("user") && couchSettings.containsKey("password")) {
-                String user = couchSettings.get("user").toString();
-                String password = couchSettings.get("password").toString();
-                basicAuth = "Basic " + Base64.encodeBytes((user + ":" + password).getBytes(StandardCharsets.UTF_8));
-            } else {
-                basicAuth = null;
-            }
-
-            if (couchSettings.containsKey("script")) {
-                String scriptType = "groovy";
-                if(couchSettings.containsKey("script_type")) {
-                    scriptType = couchSettings.get("script_type").toString();
-                }
-
-                script = scriptService.executable(
-                        new Script(scriptType, couchSettings.get("script").toString(), ScriptService.ScriptType.INLINE, Maps.<String, Object>newHashMap()),
-                        ScriptContext.Standard.UPDATE);
-            } else {
-                script = null;
-            }
+        this.config = new CouchdbRiverConfig(riverName.name(), settings.settings(), logger);
+        httpClient = new CouchdbHttpClient(config.couchProtocol, config.couchHost, config.couchPort, config.basicAuth,
+                config.readTimeout, config.noVerify, config.compression);
+        if (config.script != null) {
+            // compiled once, each indexer thread gets its own executable script
+            script = scriptService.compile(
+                    new Script(config.scriptType, config.script, ScriptService.ScriptType.INLINE, Maps.<String, Object>newHashMap()),
+                    ScriptContext.Standard.UPDATE);
         } else {
-            couchProtocol = "http";
-            couchHost = "localhost";
-            couchPort = 5984;
-            couchDb = riverName.name();
-            couchFilter = null;
-            couchFilterParamsUrl = null;
-            couchIgnoreAttachments = false;
-            heartbeat = TimeValue.timeValueSeconds(10);
-            readTimeout = TimeValue.timeValueSeconds(heartbeat.getSeconds()*3);
-            noVerify = false;
-            basicAuth = null;
             script = null;
         }
-
-        if (settings.settings().containsKey("index")) {
-            Map<String, Object> indexSettings = (Map<String, Object>) settings.settings().get("index");
-            indexName = XContentMapValues.nodeStringValue(indexSettings.get("index"), couchDb);
-            typeName = XContentMapValues.nodeStringValue(indexSettings.get("type"), couchDb);
-            bulkSize = XContentMapValues.nodeIntegerValue(indexSettings.get("bulk_size"), 100);
-            if (indexSettings.containsKey("bulk_timeout")) {
-                bulkTimeout = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(indexSettings.get("bulk_timeout"), "10ms"), TimeValue.timeValueMillis(10));
-            } else {
-                bulkTimeout = TimeValue.timeValueMillis(10);
-            }
-            this.bulkFlushInterval = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(
-                    indexSettings.get("flush_interval"), "5s"), TimeValue.timeValueSeconds(5));
-            this.maxConcurrentBulk = XContentMapValues.nodeIntegerValue(indexSettings.get("max_concurrent_bulk"), 1);
-            throttleSize = XContentMapValues.nodeIntegerValue(indexSettings.get("throttle_size"), bulkSize * 5);
+        if (config.adaptiveBulk) {
+            bulkController = new BulkController(config.bulkSize, config.minBulkSize, config.maxBulkSize, config.minConcurrentBulk,
+                    config.maxConcurrentBulk, config.targetBulkLatency.nanos());
+        } else {
+            bulkController = null;
+        }
+        if (config.maxRetries > 0) {
+            bulkRetries = new BulkRetries(config.maxRetries, config.retryBackoff.nanos(), config.maxRetryBackoff.nanos());
+        } else {
+            bulkRetries = null;
+        }
+        if (config.throttleSize == -1) {
+            stream = new LinkedTransferQueue<PendingChange>();
         } else {
-            indexName = couchDb;
-            typeName = couchDb;
-            bulkSize = 100;
-            bulkTimeout = TimeValue.timeValueMillis(10);
-            throttleSize = bulkSize * 5;
-            this.maxConcurrentBulk = 1;
-            this.bulkFlushInterval = TimeValue.timeValueSeconds(5);
-        }
-        if (throttleSize == -1) {
-            stream = new LinkedTransferQueue<String>();
+            stream = new ArrayBlockingQueue<PendingChange>(config.throttleSize);
+        }
+        if (config.indexerThreads > 1) {
+            workerQueues = new BlockingQueue[config.indexerThreads];
+            for (int i = 0; i < config.indexerThreads; i++) {
+                if (config.throttleSize == -1) {
+                    workerQueues[i] = new LinkedTransferQueue<PendingChange>();
+                } else {
+                    workerQueues[i] = new ArrayBlockingQueue<PendingChange>(Math.max(1, config.throttleSize / config.indexerThreads));
+                }
+            }
         } else {
-            stream = new ArrayBlockingQueue<String>(throttleSize);
+            workerQueues = null;
         }
     }
 
     @Override
     public void start() {
-        logger.info("starting couchdb stream: host [{}], port [{}], filter [{}], db [{}], indexing to [{}]/[{}]", couchHost, couchPort, couchFilter, couchDb, indexName, typeName);
+        logger.info("starting couchdb stream: host [{}], port [{}], filter [{}], db [{}], feed [{}], clustered [{}], indexing to [{}]/[{}] with [{}] indexer threads",
+                config.couchHost, config.couchPort, config.couchFilter, dbsDescription(), config.multiDb ? "normal" : config.feedType,
+                config.clustered, config.indexName == null ? "{db}" : config.indexName, config.typeName == null ? "{db}" : config.typeName,
+                config.indexerThreads);
 
         // Creating bulk processor
         this.bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
             @Override
             public void beforeBulk(long executionId, BulkRequest request) {
                 logger.debug("Going to execute new bulk composed of {} actions", request.numberOfActions());
+                bulkStartTimes.put(executionId, System.nanoTime());
+                if (bulkController != null) {
+                    bulkController.beforeBulk();
+                }
             }
 
             @Override
             public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
                 logger.debug("Executed bulk composed of {} actions", request.numberOfActions());
+                boolean rejected = false;
+                // only the changes that were successfully indexed let the checkpoint move forward
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed() && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+                        rejected = true;
+                    }
+                    SequenceTracker.Ticket ticket = inFlight.remove(request.requests().get(item.getItemId()));
+                    if (ticket == null) {
+                        // _seq update
+                        continue;
+                    }
+                    if (item.isFailed()) {
+                        ActionRequest actionRequest = request.requests().get(item.getItemId());
+                        boolean retryable = isRetryable(item.getFailure().getStatus());
+                        if (retryable && retry(actionRequest, ticket)) {
+                            continue;
+                        }
+                        requestDone(actionRequest);
+                        if (deadLetterProcessor != null) {
+                            stats.failed.inc();
+                            deadLetter(actionRequest, ticket, item.getFailureMessage());
+                        } else if (!retryable) {
+                            stats.failed.inc();
+                            logger.warn("failed to index change [{}] of document [{}] for good, skipping it: {}", ticket.seq(),
+                                    item.getId(), item.getFailureMessage());
+                            // a mapping or parse error would fail again, it must not hold the checkpoint forever
+                            ticket.complete();
+                        } else {
+                            // only when closing: the change holds the checkpoint, and is read again once the river starts
+                            logger.debug("change [{}] of document [{}] not retried, the river is closing", ticket.seq(), item.getId());
+                        }
+                    } else {
+                        ActionRequest actionRequest = request.requests().get(item.getItemId());
+                        requestDone(actionRequest);
+                        if (actionRequest instanceof DeleteRequest) {
+                            stats.deleted.inc();
+                        } else {
+                            stats.indexed.inc();
+                        }
+                        ticket.complete();
+                    }
+                }
                 if (response.hasFailures()) {
                     logger.warn("There was failures while executing bulk", response.buildFailureMessage());
                     if (logger.isDebugEnabled()) {
@@ -221,65 +260,323 @@ public class CouchdbRiver extends AbstractRiverComponent implements River {
                         }
                     }
                 }
+                bulkDone(executionId, rejected);
             }
 
             @Override
             public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
                 logger.warn("Error executing bulk", failure);
+                for (ActionRequest actionRequest : request.requests()) {
+                    SequenceTracker.Ticket ticket = inFlight.remove(actionRequest);
+                    if (ticket != null && !retry(actionRequest, ticket)) {
+                        requestDone(actionRequest);
+                        if (deadLetterProcessor != null) {
+                            stats.failed.inc();
+                            deadLetter(actionRequest, ticket, failure.toString());
+                        } else {
+                            // only when closing: the change holds the checkpoint, and is read again once the river starts
+                            logger.debug("change [{}] not retried, the river is closing", ticket.seq());
+                        }
+                    }
+                }
+                // whatever the failure, we back off
+                bulkDone(executionId, true);
             }
         })
-                .setBulkActions(bulkSize)
-                .setConcurrentRequests(maxConcurrentBulk)
-                .setFlushInterval(bulkFlushInterval)
+                // with the adaptive controller, bulks are flushed by the river
+                .setBulkActions(bulkController == null ? config.bulkSize : -1)
+                .setBulkSize(config.bulkSizeBytes)
+                .setConcurrentRequests(config.maxConcurrentBulk)
+                .setFlushInterval(config.bulkFlushInterval)
                 .build();
 
+        if (config.deadLetterIndex != null) {
+            // dead letters have their own bulks, which never compete with more than one bulk of changes
+            this.deadLetterProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+                @Override
+                public void beforeBulk(long executionId, BulkRequest request) {
+                }
+
+                @Override
+                public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                    for (BulkItemResponse item : response.getItems()) {
+                        ActionRequest actionRequest = request.requests().get(item.getItemId());
+                        if (!item.isFailed()) {
+                            SequenceTracker.Ticket ticket = deadLetterTickets.remove(actionRequest);
+                            if (ticket != null) {
+                                if (bulkRetries != null) {
+                                    bulkRetries.done(actionRequest);
+                                }
+                                ticket.complete();
+                            }
+                        } else if (actionRequest instanceof DeleteRequest) {
+                            // replayed, and dead-lettered again since
+                            logger.debug("dead letter [{}] not removed: {}", item.getId(), item.getFailureMessage());
+                        } else {
+                            deadLetterFailed((IndexRequest) actionRequest, item.getFailureMessage());
+                        }
+                    }
+                }
+
+                @Override
+                public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                    logger.warn("failed to write [{}] dead letters to [{}]", failure, request.numberOfActions(), config.deadLetterIndex);
+                    for (ActionRequest actionRequest : request.requests()) {
+                        if (actionRequest instanceof IndexRequest) {
+                            deadLetterFailed((IndexRequest) actionRequest, failure.toString());
+                        }
+                    }
+                }
+            })
+                    .setBulkActions(config.bulkSize)
+                    .setConcurrentRequests(1)
+                    .setFlushInterval(config.bulkFlushInterval)
+                    .build();
+        }
+        registry.register(riverName.name(), this);
+
 
-        slurperThread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "couchdb_river_slurper").newThread(new Slurper());
-        indexerThread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "couchdb_river_indexer").newThread(new Indexer());
+        if (!config.includeDocs) {
+            fetchExecutor = Executors.newFixedThreadPool(config.fetchConcurrency,
+                    EsExecutors.daemonThreadFactory(settings.globalSettings(), "couchdb_river_doc_fetcher"));
+        }
+        if (config.indexAttachments) {
+            ExecutorService attachmentExecutor = Executors.newFixedThreadPool(config.attachmentConcurrency,
+                    EsExecutors.daemonThreadFactory(settings.globalSettings(), "couchdb_river_attachment_fetcher"));
+            attachmentIndexer = new AttachmentIndexer(this, logger, httpClient, stats, attachmentExecutor, newAttachmentCache(),
+                    config.throttleSize, config.attachmentMemory, config.maxAttachmentSize, config.attachmentsField,
+                    config.deadLetterIndex);
+        }
+        indexerThread = newThread("couchdb_river_indexer", new Indexer());
+        if (workerQueues != null) {
+            Thread[] threads = new Thread[workerQueues.length];
+            for (int i = 0; i < workerQueues.length; i++) {
+                threads[i] = newThread("couchdb_river_indexer_worker", new IndexerWorker(workerQueues[i]));
+                threads[i].start();
+            }
+            workerThreads = threads;
+        }
+        if (bulkRetries != null) {
+            retryThread = newThread("couchdb_river_retry", new RetrySender());
+            retryThread.start();
+        }
         indexerThread.start();
+        if (config.lagInterval.millis() > 0) {
+            lagThread = newThread("couchdb_river_lag",
+                    new LagSampler(this, logger, httpClient, replicationLag, feeds, polledByDb, config.lagInterval));
+            lagThread.start();
+        }
+        if (config.clustered) {
+            Thread discoveryThread = newThread("couchdb_river_slurper",
+                    new ShardDiscovery(this, logger, httpClient, config.couchDb, config.nodeLocalHosts, config.nodeLocalPort));
+            slurperThreads.add(discoveryThread);
+            discoveryThread.start();
+        } else if (config.multiDb) {
+            for (int i = 0; i < config.feedReaders; i++) {
+                Thread readerThread = newThread("couchdb_river_feed_reader",
+                        new FeedReader(this, logger, stats, polledFeeds, config.dbUpdates, config.initialLoad, config.pollInterval,
+                                config.pageSize));
+                slurperThreads.add(readerThread);
+                readerThread.start();
+            }
+            for (String db : config.couchDbs) {
+                startFeed(databaseFeed(db));
+            }
+            if (config.couchDbPattern != null || config.dbUpdates) {
+                Thread discoveryThread = newThread("couchdb_river_slurper", new DatabaseDiscovery(this, logger, httpClient, stats,
+                        config.couchDbPattern, config.dbUpdates, config.heartbeat, polledByDb, polledFeeds));
+                slurperThreads.add(discoveryThread);
+                discoveryThread.start();
+            }
+        } else {
+            startFeed(databaseFeed(config.couchDb));
+        }
+    }
+
+    private String dbsDescription() {
+        if (!config.multiDb) {
+            return config.couchDb;
+        }
+        return config.couchDbPattern == null ? config.couchDbs.toString() : config.couchDbs + " and /" + config.couchDbPattern + "/";
+    }
+
+    /**
+     * The feed of a database, not started.
+     */
+    Feed databaseFeed(String db) {
+        return new Feed(db, null, config.couchHost, config.couchPort, dbPath(db));
+    }
+
+    /**
+     * The path of a database, starting with a <code>/</code>.
+     */
+    String dbPath(String db) {
+        // the name of a single database is used as is, as it always was
+        return "/" + (config.multiDb ? pathEncode(db) : db);
+    }
+
+    /**
+     * Starts following the <code>_changes</code> feed of a database or of one of its shards. With several databases,
+     * the feed is read by the feed readers along with the others.
+     */
+    synchronized void startFeed(Feed feed) {
+        for (Feed started : feeds) {
+            if (feed.path().equals(started.path()) && feed.port() == started.port() && feed.host().equals(started.host())) {
+                return;
+            }
+        }
+        feeds.add(feed);
+        if (config.multiDb) {
+            PolledFeed polled = new PolledFeed(feed);
+            polledByDb.put(feed.db(), polled);
+            polledFeeds.add(polled);
+            return;
+        }
+        Thread slurperThread = newThread("couchdb_river_slurper", new Slurper(feed));
+        slurperThreads.add(slurperThread);
         slurperThread.start();
     }
 
+    /**
+     * Stops following a database deleted from the server, and removes its checkpoint, so that a database created
+     * again under the same name is read from its first change.
+     */
+    synchronized void stopFeed(String db) {
+        PolledFeed polled = polledByDb.remove(db);
+        if (polled == null) {
+            return;
+        }
+        polled.stop();
+        polledFeeds.remove(polled);
+        feeds.remove(polled.feed);
+        bulkProcessor.add(new DeleteRequest(riverIndexName, riverName.name(), checkpointId(db)));
+        logger.info("[{}] was deleted, no longer following it", db);
+    }
+
+    /**
+     * Whether the river follows a database of the given name, when it exists.
+     */
+    boolean follows(String db) {
+        return config.couchDbs.contains(db) || (config.couchDbPattern != null && config.couchDbPattern.matcher(db).matches());
+    }
+
     @Override
     public void close() {
         if (closed) {
             return;
         }
         logger.info("closing couchdb stream river");
-        if (slurperThread != null) {
+        for (Thread slurperThread : slurperThreads) {
             slurperThread.interrupt();
         }
         if (indexerThread != null) {
             indexerThread.interrupt();
         }
+        if (retryThread != null) {
+            retryThread.interrupt();
+        }
+        if (replayThread != null) {
+            replayThread.interrupt();
+        }
+        if (lagThread != null) {
+            lagThread.interrupt();
+        }
+        if (workerThreads != null) {
+            for (Thread workerThread : workerThreads) {
+                workerThread.interrupt();
+            }
+        }
+        if (fetchExecutor != null) {
+            fetchExecutor.shutdownNow();
+        }
+        if (attachmentIndexer != null) {
+            attachmentIndexer.close();
+        }
+        for (Thread loadThread : initialLoadThreads) {
+            loadThread.interrupt();
+        }
 
         closed = true;
+        registry.unregister(riverName.name(), this);
 
+        if (this.deadLetterProcessor != null) {
+            try {
+                this.deadLetterProcessor.awaitClose(config.bulkFlushInterval.millis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         if (this.bulkProcessor != null) {
-            this.bulkProcessor.close();
+            try {
+                this.bulkProcessor.awaitClose(config.bulkFlushInterval.millis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // persist what has been acknowledged since the last checkpoint
+            writeCheckpoint(true);
+        }
+        logger.debug("wrote [{}] checkpoints, [{}] saved by coalescing", stats.checkpoints.count(), stats.checkpointsSaved.count());
+        if (bulkController != null) {
+            logger.debug("adaptive bulks ended up with [{}] actions and [{}] concurrent bulks", bulkController.actions(), bulkController.concurrency());
+        }
+        if (config.coalesceSize > 0) {
+            logger.debug("[{}] index operations saved by coalescing", stats.coalesced.count());
+        }
+        if (!config.includeDocs) {
+            logger.debug("fetched [{}] documents, [{}] changes superseded by a later change of their document",
+                    stats.fetched.count(), stats.superseded.count());
+        }
+        if (config.indexAttachments) {
+            logger.debug("fetched [{}] attachments, [{}], [{}] skipped as larger than [{}], [{}] reused from the cache",
+                    stats.attachments.count(), new ByteSizeValue(stats.attachmentBytes.count()),
+                    stats.attachmentsSkipped.count(), config.maxAttachmentSize, stats.attachmentsCached.count());
+        }
+        if (config.deadLetterIndex != null) {
+            logger.debug("[{}] dead letters written to [{}], [{}] replayed", stats.deadLetters.count(), config.deadLetterIndex,
+                    stats.replayed.count());
+        }
+        if (stats.pages.count() > 0) {
+            logger.debug("read [{}] pages of changes, [{}] on average", stats.pages.count(), TimeValue.timeValueNanos((long) stats.pages.mean()));
+        }
+
+        if (script != null && logger.isDebugEnabled()) {
+            logger.debug("script ran [{}] times, [{}] on average", stats.script.count(), TimeValue.timeValueNanos((long) stats.script.mean()));
         }
     }
 
-    @SuppressWarnings({"unchecked"})
-    private Object processLine(String s) {
-        Map<String, Object> ctx;
+    /**
+     * Parses a line of the feed, returning <code>null</code> if it is neither a change of a document nor
+     * a <code>last_seq</code>.
+     */
+    Change parseLine(String db, BytesReference line) {
+        Change change;
         try {
-            ctx = XContentFactory.xContent(XContentType.JSON).createParser(s).mapAndClose();
-        } catch (IOException e) {
-            logger.warn("failed to parse {}", e, s);
+            change = ChangeParser.parse(line);
+        } catch (Exception e) {
+            logger.warn("failed to parse {}", e, line.toUtf8());
+            stats.failed.inc();
+            if (deadLetterProcessor != null) {
+                deadLetter(db, null, null, line, null, e.toString());
+            }
             return null;
         }
-        if (ctx.containsKey("error")) {
-            logger.warn("received error {}", s);
+        if (change.error()) {
+            logger.warn("received error {}", line.toUtf8());
             return null;
         }
-        Object seq = ctx.get("seq");
-        Object oId = ctx.get("id");
-        if (oId == null) {
+        if (change.id() == null && change.seq() == null) {
             return null;
         }
+        return change;
+    }
 
-        String id = oId.toString();
+    /**
+     * Turns a change of a database into an index or delete request, <code>null</code> if there is nothing to index.
+     * Throws if the document can not be parsed, or the script fails. Package private for the benchmarks.
+     */
+    ActionRequest processChange(String db, Change change, ExecutableScript executableScript) throws Exception {
+        BytesReference line = change.source();
+        String id = change.id();
 
         if (closed) {
             logger.warn("river was closing while processing couchdb doc [{}]. Operation skipped.", id);
@@ -291,26 +588,64 @@ public class CouchdbRiver extends AbstractRiverComponent implements River {
             if (logger.isTraceEnabled()) {
                 logger.trace("ignoring design document {}", id);
             }
-            return seq;
+            return null;
         }
 
-        if (script != null) {
-            script.setNextVar("ctx", ctx);
+        // The doc is only parsed into a map when the script needs it, or when we have to remove its attachments
+        if (script != null || !config.streaming || (config.couchIgnoreAttachments && change.hasAttachments())) {
+            return processMap(db, line, id, executableScript);
+        }
+
+        if (change.deleted()) {
+            String index = change.index() != null ? change.index() : indexName(db);
+            String type = change.type() != null ? change.type() : typeName(db);
+            if (logger.isTraceEnabled()) {
+                logger.trace("processing [delete]: [{}]/[{}]/[{}]", index, type, id);
+            }
+            if (closed) {
+                logger.warn("river was closing while trying to delete document [{}/{}/{}]. Operation skipped.", index, type, id);
+                return null;
+            }
+            return new DeleteRequest(index, type, id).routing(change.routing()).parent(change.parent());
+        } else if (change.doc() != null) {
+            String index = change.index() != null ? change.index() : indexName(db);
+            String type = change.type() != null ? change.type() : typeName(db);
+            if (logger.isTraceEnabled()) {
+                logger.trace("processing [index ]: [{}]/[{}]/[{}], source {}", index, type, id, change.doc().toUtf8());
+            }
+            if (closed) {
+                logger.warn("river was closing while trying to index document [{}/{}/{}]. Operation skipped.", index, type, id);
+                return null;
+            }
+            return new IndexRequest(index, type, id).source(change.doc()).routing(change.routing()).parent(change.parent());
+        } else {
+            logger.warn("ignoring unknown change {}", line.toUtf8());
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private ActionRequest processMap(String db, BytesReference line, String id, ExecutableScript executableScript) throws Exception {
+        Map<String, Object> ctx = XContentFactory.xContent(XContentType.JSON).createParser(line).mapAndClose();
+
+        if (executableScript != null) {
+            long start = System.nanoTime();
+            executableScript.setNextVar("ctx", ctx);
             try {
-                script.run();
+                executableScript.run();
                 // we need to unwrap the ctx...
-                ctx = (Map<String, Object>) script.unwrap(ctx);
-            } catch (Exception e) {
-                logger.warn("failed to script process {}, ignoring", e, ctx);
-                return seq;
+                ctx = (Map<String, Object>) executableScript.unwrap(ctx);
+            } finally {
+                stats.script.inc(System.nanoTime() - start);
             }
         }
 
         if (ctx.containsKey("ignore") && ctx.get("ignore").equals(Boolean.TRUE)) {
             // ignore dock
+            return null;
         } else if (ctx.containsKey("deleted") && ctx.get("deleted").equals(Boolean.TRUE)) {
-            String index = extractIndex(ctx);
-            String type = extractType(ctx);
+            String index = extractIndex(ctx, db);
+            String type = extractType(ctx, db);
             if (logger.isTraceEnabled()) {
                 logger.trace("processing [delete]: [{}]/[{}]/[{}]", index, type, id);
             }
@@ -318,20 +653,18 @@ public class CouchdbRiver extends AbstractRiverComponent implements River {
                 logger.warn("river was closing while trying to delete document [{}/{}/{}]. Operation skipped.", index, type, id);
                 return null;
             }
-            bulkProcessor.add(new DeleteRequest(index, type, id).routing(extractRouting(ctx)).parent(extractParent(ctx)));
+            return new DeleteRequest(index, type, id).routing(extractRouting(ctx)).parent(extractParent(ctx));
         } else if (ctx.containsKey("doc")) {
-            String index = extractIndex(ctx);
-            String type = extractType(ctx);
+            String index = extractIndex(ctx, db);
+            String type = extractType(ctx, db);
             Map<String, Object> doc = (Map<String, Object>) ctx.get("doc");
 
             // Remove _attachment from doc if needed
-            if (couchIgnoreAttachments) {
+            if (config.couchIgnoreAttachments) {
                 // no need to log that we removed it, the doc indexed will be shown without it
                 doc.remove("_attachments");
-            } else {
-                // TODO by now, couchDB river does not really store attachments but only attachments meta infomration
-                // So we perhaps need to fully support attachments
             }
+            // otherwise the attachments stubs are kept, their content is added by the attachment indexer
 
             if (logger.isTraceEnabled()) {
                 logger.trace("processing [index ]: [{}]/[{}]/[{}], source {}", index, type, id, doc);
@@ -340,155 +673,1141 @@ public class CouchdbRiver extends AbstractRiverComponent implements River {
                 logger.warn("river was closing while trying to index document [{}/{}/{}]. Operation skipped.", index, type, id);
                 return null;
             }
-            bulkProcessor.add(new IndexRequest(index, type, id).source(doc).routing(extractRouting(ctx)).parent(extractParent(ctx)));
+            return new IndexRequest(index, type, id).source(doc).routing(extractRouting(ctx)).parent(extractParent(ctx));
         } else {
-            logger.warn("ignoring unknown change {}", s);
+            logger.warn("ignoring unknown change {}", line.toUtf8());
         }
-        return seq;
-    }
-
-    private String extractParent(Map<String, Object> ctx) {
-        return (String) ctx.get("_parent");
+        return null;
     }
 
-    private String extractRouting(Map<String, Object> ctx) {
-        return (String) ctx.get("_routing");
+    /**
+     * Processes a change, and sends the resulting request to the bulk processor, through the coalescing window of
+     * the indexer thread if any. The change is completed in the sequence tracker once its bulk has been
+     * successfully executed.
+     */
+    private void index(PendingChange pendingChange, ExecutableScript executableScript, CoalescingWindow window) {
+        String db = pendingChange.feed.db();
+        Change change = pendingChange.change;
+        SequenceTracker.Ticket ticket = pendingChange.ticket;
+        ActionRequest request;
+        try {
+            request = processChange(db, change, executableScript);
+        } catch (Exception e) {
+            stats.failed.inc();
+            if (deadLetterProcessor != null) {
+                logger.warn("failed to process change [{}] of document [{}], sending it to [{}]", e, ticket.seq(), change.id(),
+                        config.deadLetterIndex);
+                // the checkpoint moves over it once the dead letter is written
+                deadLetter(db, change.id(), ticket, change.source(), null, e.toString());
+                return;
+            }
+            logger.warn("failed to process change [{}] of document [{}], ignoring", e, ticket.seq(), change.id());
+            ticket.complete();
+            return;
+        }
+        if (request == null) {
+            // nothing to index
+            stats.ignored.inc();
+            ticket.complete();
+            return;
+        }
+        if (attachmentIndexer != null) {
+            if (change.hasAttachments() && request instanceof IndexRequest) {
+                if (window != null) {
+                    SequenceTracker.Ticket superseded = window.remove(request);
+                    if (superseded != null) {
+                        superseded.complete();
+                        stats.coalesced.inc();
+                    }
+                }
+                // sent to the bulk processor once its attachments are fetched
+                attachmentIndexer.submit(db, (IndexRequest) request, ticket);
+                return;
+            }
+            attachmentIndexer.supersede(request);
+        }
+        if (window == null) {
+            send(request, ticket);
+            return;
+        }
+        SequenceTracker.Ticket superseded = window.add(request, ticket);
+        if (superseded != null) {
+            // the checkpoint will only move over it with the request replacing it
+            superseded.complete();
+            stats.coalesced.inc();
+        }
+        if (window.isFull()) {
+            flush(window);
+        }
     }
 
-    private String extractType(Map<String, Object> ctx) {
-        String type = (String) ctx.get("_type");
-        if (type == null) {
-            type = typeName;
+    void send(ActionRequest request, SequenceTracker.Ticket ticket) {
+        if (bulkRetries != null) {
+            bulkRetries.sent(request);
         }
-        return type;
+        sendToBulk(request, ticket);
     }
 
-    private String extractIndex(Map<String, Object> ctx) {
-        String index = (String) ctx.get("_index");
-        if (index == null) {
-            index = indexName;
+    private void sendToBulk(ActionRequest request, SequenceTracker.Ticket ticket) {
+        // the ticket needs to be registered before adding, as the bulk might be executed right away
+        inFlight.put(request, ticket);
+        bulkProcessor.add(request);
+        if (bulkController != null && bulkController.added()) {
+            try {
+                bulkController.awaitSlot();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            bulkProcessor.flush();
         }
-        return index;
     }
 
-    private class Indexer implements Runnable {
-        @Override
-        public void run() {
-            while (true) {
-                if (closed) {
-                    return;
-                }
-                String s;
-                try {
-                    s = stream.take();
-                } catch (InterruptedException e) {
-                    if (closed) {
-                        return;
-                    }
-                    continue;
-                }
-
-                Object lastSeq = null;
-                Object lineSeq = processLine(s);
-                if (lineSeq != null) {
-                    lastSeq = lineSeq;
-                }
+    /**
+     * Sends a request the bulk failed to execute to the dead letter index.
+     */
+    private void deadLetter(ActionRequest request, SequenceTracker.Ticket ticket, String error) {
+        String id = request instanceof IndexRequest ? ((IndexRequest) request).id() : ((DeleteRequest) request).id();
+        deadLetter(ticket.db(), id, ticket, null, request, error);
+    }
 
-                // spin a bit to see if we can get some more changes
-                try {
-                    while ((s = stream.poll(bulkTimeout.millis(), TimeUnit.MILLISECONDS)) != null) {
-                        lineSeq = processLine(s);
-                        if (lineSeq != null) {
-                            lastSeq = lineSeq;
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    if (closed) {
-                        return;
-                    }
+    /**
+     * Writes a change that can not be indexed to the dead letter index, with what we know about it: the raw change
+     * when it could not be processed, the request when the bulk failed to execute it. The change is completed once
+     * its dead letter is written. Dead letters of a document replace each other.
+     */
+    void deadLetter(String db, String id, SequenceTracker.Ticket ticket, BytesReference change, ActionRequest request, String error) {
+        try {
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("river", riverName.name())
+                    .field("db", db);
+            if (id != null) {
+                builder.field("id", id);
+            }
+            if (ticket != null && ticket.seq() != null) {
+                builder.field("seq", seqToString(ticket.seq()));
+            }
+            builder.field("error", error);
+            // kept as strings, so the dead letters never conflict with the mapping of the dead letter index
+            if (change != null) {
+                builder.field("change", change.toUtf8());
+            }
+            if (request instanceof IndexRequest) {
+                IndexRequest indexRequest = (IndexRequest) request;
+                builder.field("operation", "index").field("index", indexRequest.index()).field("type", indexRequest.type());
+                if (indexRequest.source() != null) {
+                    builder.field("source", indexRequest.source().toUtf8());
                 }
+            } else if (request instanceof DeleteRequest) {
+                DeleteRequest deleteRequest = (DeleteRequest) request;
+                builder.field("operation", "delete").field("index", deleteRequest.index()).field("type", deleteRequest.type());
+            }
+            builder.field("timestamp", System.currentTimeMillis()).endObject();
 
-                if (lastSeq != null) {
-                    try {
-                        // we always store it as a string
-                        String lastSeqAsString = null;
-                        if (lastSeq instanceof List) {
-                            // bigcouch uses array for the seq
-                            try {
-                                XContentBuilder builder = XContentFactory.jsonBuilder();
-                                //builder.startObject();
-                                builder.startArray();
-                                for (Object value : ((List) lastSeq)) {
-                                    builder.value(value);
-                                }
-                                builder.endArray();
-                                //builder.endObject();
-                                lastSeqAsString = builder.string();
-                            } catch (Exception e) {
-                                logger.error("failed to convert last_seq to a json string", e);
-                            }
-                        } else {
-                            lastSeqAsString = lastSeq.toString();
-                        }
-                        if (logger.isTraceEnabled()) {
-                            logger.trace("processing [_seq  ]: [{}]/[{}]/[{}], last_seq [{}]", riverIndexName, riverName.name(), "_seq", lastSeqAsString);
-                        }
-                        if (closed) {
-                            logger.warn("river was closing while trying to update sequence [{}/{}/{}]. Operation skipped.", riverIndexName, riverName.name(), "_seq");
-                            return;
-                        }
-                        bulkProcessor.add(new IndexRequest(riverIndexName, riverName.name(), "_seq")
-                                .source(jsonBuilder().startObject().startObject("couchdb").field("last_seq", lastSeqAsString).endObject().endObject()));
-                    } catch (IOException e) {
-                        logger.warn("failed to add last_seq entry to bulk indexing");
-                    }
+            // documents of different databases can share their id
+            String deadLetterId = config.multiDb && id != null ? db + "/" + id : id;
+            IndexRequest deadLetter = new IndexRequest(config.deadLetterIndex, config.deadLetterType, deadLetterId).source(builder);
+            if (ticket != null) {
+                if (bulkRetries != null && deadLetterId != null) {
+                    bulkRetries.sent(deadLetter);
                 }
+                deadLetterTickets.put(deadLetter, ticket);
+            }
+            deadLetterProcessor.add(deadLetter);
+            stats.deadLetters.inc();
+        } catch (Exception e) {
+            if (ticket == null) {
+                logger.warn("failed to write dead letter of document [{}] to [{}]", e, id, config.deadLetterIndex);
+            } else if (!closed) {
+                logger.error("failed to write dead letter of change [{}] of document [{}] to [{}], skipping it", e,
+                        ticket.seq(), id, config.deadLetterIndex);
+                ticket.complete();
             }
         }
     }
 
+    /**
+     * Gives up on a change whose document could not be fetched: it is written to the dead letter index, or logged
+     * and skipped.
+     */
+    void fetchFailed(PendingChange pendingChange, Throwable failure) {
+        Change change = pendingChange.change;
+        stats.failed.inc();
+        if (deadLetterProcessor != null) {
+            // the checkpoint moves over it once the dead letter is written
+            deadLetter(pendingChange.feed.db(), change.id(), pendingChange.ticket, change.source(), null, failure.toString());
+            return;
+        }
+        logger.warn("failed to fetch the document of change [{}] of document [{}], skipping it", failure,
+                pendingChange.ticket.seq(), change.id());
+        pendingChange.ticket.complete();
+    }
 
-    private class Slurper implements Runnable {
-        @SuppressWarnings({"unchecked"})
-        @Override
-        public void run() {
+    /**
+     * Retries a dead letter the bulk failed to write, through the same backoff as the changes. Once its retries are
+     * used up, the change is given up for good, so it does not hold the checkpoint forever.
+     */
+    private void deadLetterFailed(IndexRequest deadLetter, String error) {
+        SequenceTracker.Ticket ticket = deadLetterTickets.get(deadLetter);
+        if (ticket == null) {
+            logger.warn("failed to write dead letter [{}] to [{}]: {}", deadLetter.id(), config.deadLetterIndex, error);
+            return;
+        }
+        // its ticket stays registered while it waits, which tells the retry sender where it goes
+        if (deadLetter.id() != null && retry(deadLetter, ticket)) {
+            return;
+        }
+        deadLetterTickets.remove(deadLetter);
+        if (bulkRetries != null) {
+            bulkRetries.done(deadLetter);
+        }
+        if (closed) {
+            // the change holds the checkpoint, and is read again once the river starts
+            logger.debug("dead letter of change [{}] not retried, the river is closing", ticket.seq());
+            return;
+        }
+        logger.error("failed to write dead letter of change [{}] of document [{}] to [{}], skipping it: {}", ticket.seq(),
+                deadLetter.id(), config.deadLetterIndex, error);
+        ticket.complete();
+    }
 
-            while (true) {
-                if (closed) {
-                    return;
-                }
+    /**
+     * Starts feeding the dead letters back to the indexer, by batches of <code>batchSize</code>. Returns
+     * <code>false</code> if a replay is already running.
+     */
+    synchronized boolean replayDeadLetters(int batchSize) {
+        if (replayThread != null || closed) {
+            return false;
+        }
+        replayThread = newThread("couchdb_river_replay", new DeadLetterReplayer(this, logger, client, stats, deadLetterProcessor,
+                config.deadLetterIndex, config.deadLetterType, config.couchDb, newDocFetcher(), batchSize));
+        replayThread.start();
+        return true;
+    }
 
-                String lastSeq = null;
-                try {
-                    client.admin().indices().prepareRefresh(riverIndexName).execute().actionGet();
-                    GetResponse lastSeqGetResponse = client.prepareGet(riverIndexName, riverName().name(), "_seq").execute().actionGet();
-                    if (lastSeqGetResponse.isExists()) {
-                        Map<String, Object> couchdbState = (Map<String, Object>) lastSeqGetResponse.getSourceAsMap().get("couchdb");
-                        if (couchdbState != null) {
-                            lastSeq = couchdbState.get("last_seq").toString(); // we know its always a string
-                        }
-                    }
-                } catch (Exception e) {
-                    logger.warn("failed to get last_seq, throttling....", e);
-                    try {
-                        Thread.sleep(5000);
-                        continue;
-                    } catch (InterruptedException e1) {
-                        if (closed) {
-                            return;
-                        }
-                    }
-                }
+    synchronized void replayDone() {
+        replayThread = null;
+    }
 
-                String file = "/" + couchDb + "/_changes?feed=continuous&include_docs=true&heartbeat=" + heartbeat.getMillis();
-                if (couchFilter != null) {
-                    try {
-                        file = file + "&filter=" + URLEncoder.encode(couchFilter, "UTF-8");
-                    } catch (UnsupportedEncodingException e) {
-                        // should not happen!
-                    }
-                    if (couchFilterParamsUrl != null) {
-                        file = file + couchFilterParamsUrl;
+    /**
+     * The index dead letters are written to, <code>null</code> if there is none.
+     */
+    String deadLetterIndex() {
+        return config.deadLetterIndex;
+    }
+
+    /**
+     * Writes the statistics of the river: what happened to the changes read so far, how many are waiting on the way,
+     * how long bulks take, and what was read from couchdb.
+     */
+    void stats(XContentBuilder builder) throws IOException {
+        if (config.multiDb) {
+            builder.startArray("dbs");
+            for (Feed feed : feeds) {
+                builder.value(feed.db());
+            }
+            builder.endArray();
+            if (config.dbUpdates) {
+                int idle = 0;
+                for (PolledFeed polled : polledByDb.values()) {
+                    if (polled.isIdle()) {
+                        idle++;
+                    }
+                }
+                builder.field("idle_dbs", idle);
+            }
+        } else {
+            builder.field("db", config.couchDb);
+        }
+        builder.startObject("changes")
+                .field("read", stats.read.count())
+                .field("indexed", stats.indexed.count())
+                .field("deleted", stats.deleted.count())
+                .field("ignored", stats.ignored.count())
+                .field("failed", stats.failed.count())
+                .field("retried", stats.retries.count())
+                .field("coalesced", stats.coalesced.count())
+                .field("superseded", stats.superseded.count())
+                .field("dead_letters", stats.deadLetters.count())
+                .field("replayed", stats.replayed.count())
+                .endObject();
+
+        int workers = 0;
+        if (workerQueues != null) {
+            for (BlockingQueue<PendingChange> workerQueue : workerQueues) {
+                workers += workerQueue.size();
+            }
+        }
+        builder.startObject("queues")
+                .field("stream", stream.size())
+                .field("workers", workers)
+                .field("in_flight", inFlight.size())
+                .field("retrying", bulkRetries == null ? 0 : bulkRetries.waiting())
+                .endObject();
+
+        LatencyHistogram latency = stats.bulkLatency;
+        builder.startObject("bulk")
+                .field("count", latency.count())
+                .field("mean_in_millis", latency.mean() / 1000)
+                .field("max_in_millis", latency.max() / 1000.0)
+                .startObject("percentiles_in_millis")
+                .field("50.0", latency.percentile(0.5) / 1000.0)
+                .field("90.0", latency.percentile(0.9) / 1000.0)
+                .field("99.0", latency.percentile(0.99) / 1000.0)
+                .field("99.9", latency.percentile(0.999) / 1000.0)
+                .endObject();
+        if (bulkController != null) {
+            builder.field("actions", bulkController.actions()).field("concurrency", bulkController.concurrency());
+        }
+        builder.endObject();
+
+        if (attachmentIndexer != null) {
+            builder.startObject("attachments")
+                    .field("fetched", stats.attachments.count())
+                    .byteSizeField("fetched_size_in_bytes", "fetched_size", stats.attachmentBytes.count())
+                    .field("skipped", stats.attachmentsSkipped.count())
+                    .field("pending", attachmentIndexer.pending());
+            AttachmentCache cache = attachmentIndexer.cache;
+            if (cache != null) {
+                builder.startObject("cache")
+                        .field("hits", cache.hits.count())
+                        .field("disk_hits", cache.diskHits.count())
+                        .field("misses", cache.misses.count())
+                        .byteSizeField("heap_size_in_bytes", "heap_size", cache.heapBytes())
+                        .byteSizeField("disk_size_in_bytes", "disk_size", cache.diskBytes())
+                        .endObject();
+            }
+            builder.endObject();
+        }
+
+        builder.startObject("couchdb")
+                .byteSizeField("bytes_read_in_bytes", "bytes_read", httpClient.bytesRead())
+                .field("reconnects", stats.reconnects.count())
+                .field("fetched", stats.fetched.count())
+                .field("pages", stats.pages.count())
+                .field("page_mean_in_millis", stats.pages.mean() / 1000000)
+                .endObject();
+
+        if (script != null) {
+            builder.startObject("script")
+                    .field("count", stats.script.count())
+                    .field("mean_in_millis", stats.script.mean() / 1000000)
+                    .endObject();
+        }
+
+        builder.startObject("lag")
+                .field("changes", replicationLag.lag())
+                .field("exact", replicationLag.exact());
+        double rate = replicationLag.rate();
+        if (!Double.isNaN(rate)) {
+            builder.field("catch_up_rate", rate);
+        }
+        long eta = replicationLag.etaMillis();
+        if (eta >= 0) {
+            builder.timeValueField("eta_in_millis", "eta", eta);
+        }
+        builder.endObject();
+
+        builder.startObject("checkpoint")
+                .field("writes", stats.checkpoints.count())
+                .field("saved", stats.checkpointsSaved.count());
+        builder.startArray("feeds");
+        for (Feed feed : feeds) {
+            String checkpointSeq;
+            synchronized (this) {
+                checkpointSeq = feed.checkpointSeq;
+            }
+            builder.startObject();
+            if (config.multiDb) {
+                builder.field("db", feed.db());
+            }
+            if (feed.shard() != null) {
+                builder.field("shard", feed.shard());
+            }
+            builder.field("host", feed.host())
+                    .field("port", feed.port())
+                    .field("last_seq", checkpointSeq)
+                    .field("pending", feed.tracker().pending())
+                    .field("update_seq", feed.updateSeq)
+                    .field("lag", feed.lag)
+                    .endObject();
+        }
+        builder.endArray().endObject();
+    }
+
+    private static boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Forgets about a request of the bulk once it is done: executed, or given up.
+     */
+    private void requestDone(ActionRequest request) {
+        if (bulkRetries != null) {
+            bulkRetries.done(request);
+        }
+        if (attachmentIndexer != null) {
+            // the attachments of the request no longer take memory
+            attachmentIndexer.release(request);
+        }
+    }
+
+    /**
+     * Schedules a failed request to be sent again after a backoff. Returns <code>false</code> if it won't be retried:
+     * once the river is closed, or once <code>max_retries</code> is reached with a dead letter index.
+     */
+    private boolean retry(ActionRequest request, SequenceTracker.Ticket ticket) {
+        if (bulkRetries == null || closed) {
+            return false;
+        }
+        if (!bulkRetries.schedule(request, ticket)) {
+            logger.warn("giving up on change [{}] after [{}] retries", ticket.seq(), bulkRetries.maxRetries());
+            return false;
+        }
+        stats.retries.inc();
+        return true;
+    }
+
+    /**
+     * Records the latency of a bulk, and feeds the adaptive bulk controller with its outcome.
+     */
+    private void bulkDone(long executionId, boolean rejected) {
+        Long start = bulkStartTimes.remove(executionId);
+        long took = start == null ? 0 : System.nanoTime() - start;
+        stats.bulkLatency.record(TimeUnit.NANOSECONDS.toMicros(took));
+        if (bulkController == null) {
+            return;
+        }
+        bulkController.afterBulk(took, rejected);
+        if (logger.isTraceEnabled()) {
+            logger.trace("bulk [{}] took [{}], rejected [{}], now sending [{}] actions with [{}] concurrent bulks", executionId,
+                    TimeValue.timeValueNanos(took), rejected, bulkController.actions(), bulkController.concurrency());
+        }
+    }
+
+    /**
+     * Sends the requests of a coalescing window to the bulk processor.
+     */
+    private void flush(CoalescingWindow window) {
+        if (window == null) {
+            return;
+        }
+        for (CoalescingWindow.Operation operation : window.drain()) {
+            send(operation.request, operation.ticket);
+        }
+    }
+
+    /**
+     * Sends the requests of a coalescing window to the bulk processor once it is full, by size or by interval.
+     */
+    private void flushIfFull(CoalescingWindow window) {
+        if (window != null && window.isFull()) {
+            flush(window);
+        }
+    }
+
+    /**
+     * How long an indexer thread can wait for changes, at most the given timeout, so that a coalescing window is
+     * flushed in time even when no change comes.
+     */
+    private static long pollTimeoutMillis(CoalescingWindow window, long timeoutMillis) {
+        if (window == null) {
+            return timeoutMillis;
+        }
+        return Math.min(timeoutMillis, TimeUnit.NANOSECONDS.toMillis(window.remainingNanos()) + 1);
+    }
+
+    /**
+     * Creates the coalescing window of an indexer thread, <code>null</code> if coalescing is disabled.
+     */
+    private CoalescingWindow newCoalescingWindow() {
+        if (config.coalesceSize <= 0) {
+            return null;
+        }
+        return new CoalescingWindow(config.coalesceSize, config.coalesceInterval.nanos());
+    }
+
+    /**
+     * Creates the executable script of an indexer thread, as executable scripts are not thread safe.
+     */
+    private ExecutableScript newExecutableScript() {
+        if (script == null) {
+            return null;
+        }
+        return scriptService.executable(script, Maps.<String, Object>newHashMap());
+    }
+
+    private String extractParent(Map<String, Object> ctx) {
+        return (String) ctx.get("_parent");
+    }
+
+    private String extractRouting(Map<String, Object> ctx) {
+        return (String) ctx.get("_routing");
+    }
+
+    private String extractType(Map<String, Object> ctx, String db) {
+        String type = (String) ctx.get("_type");
+        if (type == null) {
+            type = typeName(db);
+        }
+        return type;
+    }
+
+    private String extractIndex(Map<String, Object> ctx, String db) {
+        String index = (String) ctx.get("_index");
+        if (index == null) {
+            index = indexName(db);
+        }
+        return index;
+    }
+
+    /**
+     * The index the documents of a database go to, the database itself unless <code>index.index</code> is set.
+     */
+    private String indexName(String db) {
+        return config.indexName != null ? config.indexName : db;
+    }
+
+    /**
+     * The type the documents of a database go to, the database itself unless <code>index.type</code> is set.
+     */
+    private String typeName(String db) {
+        return config.typeName != null ? config.typeName : db;
+    }
+
+    /**
+     * Moves the checkpoint of each feed to the last change that has been completed, along with all the changes
+     * before it. The checkpoint is only persisted every <code>checkpoint_interval</code> or
+     * <code>checkpoint_changes</code>, unless forced.
+     */
+    private synchronized void writeCheckpoint(boolean force) {
+        boolean moved = false;
+        long advanced = 0;
+        for (Feed feed : feeds) {
+            Object lastSeq = feed.tracker().advance();
+            if (lastSeq != null) {
+                String checkpointSeq = seqToString(lastSeq);
+                // idle normal and longpoll feeds keep on sending the same last_seq
+                if (!checkpointSeq.equals(feed.checkpointSeq)) {
+                    feed.checkpointSeq = checkpointSeq;
+                    moved = true;
+                }
+            }
+            advanced += feed.tracker().advanced();
+        }
+        if (moved) {
+            unsavedCheckpoint = true;
+        }
+        if (!unsavedCheckpoint) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long changes = advanced - advancedAtLastCheckpoint;
+        if (!force && now - lastCheckpointTime < config.checkpointInterval.millis() && changes < config.checkpointChanges) {
+            if (moved) {
+                stats.checkpointsSaved.inc();
+            }
+            return;
+        }
+        if (closed && !force) {
+            logger.warn("river was closing while trying to update sequence [{}/{}/{}]. Operation skipped.", riverIndexName, riverName.name(), "_seq");
+            return;
+        }
+        try {
+            List<IndexRequest> requests = buildCheckpointRequests();
+            for (IndexRequest request : requests) {
+                if (closed) {
+                    // the bulk processor is closed, we write it right away
+                    client.index(request).actionGet();
+                } else {
+                    bulkProcessor.add(request);
+                }
+            }
+            stats.checkpoints.inc(requests.size());
+            unsavedCheckpoint = false;
+            lastCheckpointTime = now;
+            advancedAtLastCheckpoint = advanced;
+        } catch (Exception e) {
+            logger.warn("failed to add last_seq entry to bulk indexing", e);
+        }
+    }
+
+    /**
+     * Builds the <code>_seq</code> document or, with several databases, the <code>_seq_{db}</code> documents of the
+     * databases whose checkpoint moved since it was last written.
+     */
+    private List<IndexRequest> buildCheckpointRequests() throws IOException {
+        if (!config.multiDb) {
+            return Collections.singletonList(buildCheckpointRequest());
+        }
+        List<IndexRequest> requests = new ArrayList<IndexRequest>();
+        for (Feed feed : feeds) {
+            if (feed.checkpointSeq == null || feed.checkpointSeq.equals(feed.savedSeq)) {
+                continue;
+            }
+            XContentBuilder builder = jsonBuilder().startObject().startObject("couchdb")
+                    .field("db", feed.db())
+                    .field("last_seq", feed.checkpointSeq)
+                    .endObject().endObject();
+            String id = checkpointId(feed.db());
+            if (logger.isTraceEnabled()) {
+                logger.trace("processing [_seq  ]: [{}]/[{}]/[{}], {}", riverIndexName, riverName.name(), id, builder.string());
+            }
+            requests.add(new IndexRequest(riverIndexName, riverName.name(), id).source(builder));
+            feed.savedSeq = feed.checkpointSeq;
+        }
+        return requests;
+    }
+
+    /**
+     * Builds the <code>_seq</code> document. In clustered mode, it holds the seq of each shard under its range, and
+     * the host of the copy the seq comes from.
+     */
+    private IndexRequest buildCheckpointRequest() throws IOException {
+        XContentBuilder builder = jsonBuilder().startObject().startObject("couchdb");
+        if (config.clustered) {
+            builder.startObject("shards");
+            for (Feed feed : feeds) {
+                if (feed.checkpointSeq != null) {
+                    builder.field(feed.shard(), feed.checkpointSeq);
+                }
+            }
+            builder.endObject();
+            builder.startObject("hosts");
+            for (Feed feed : feeds) {
+                if (feed.checkpointSeq != null) {
+                    builder.field(feed.shard(), feed.host());
+                }
+            }
+            builder.endObject();
+        } else {
+            // we always store it as a string
+            builder.field("last_seq", feeds.get(0).checkpointSeq);
+        }
+        builder.endObject().endObject();
+        if (logger.isTraceEnabled()) {
+            logger.trace("processing [_seq  ]: [{}]/[{}]/[{}], {}", riverIndexName, riverName.name(), "_seq", builder.string());
+        }
+        return new IndexRequest(riverIndexName, riverName.name(), "_seq").source(builder);
+    }
+
+    /**
+     * Converts a seq to the string we store in <code>_seq</code>, and send as the <code>since</code> parameter.
+     */
+    String seqToString(Object seq) {
+        if (seq instanceof List) {
+            // bigcouch uses array for the seq
+            try {
+                XContentBuilder builder = XContentFactory.jsonBuilder();
+                builder.startArray();
+                for (Object value : ((List) seq)) {
+                    builder.value(value);
+                }
+                builder.endArray();
+                return builder.string();
+            } catch (Exception e) {
+                logger.error("failed to convert last_seq to a json string", e);
+                return null;
+            }
+        }
+        return seq.toString();
+    }
+
+    static String jsonString(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Encodes a segment of a path, where spaces can't be sent as <code>+</code>.
+     */
+    static String pathEncode(String value) {
+        return urlEncode(value).replace("+", "%20");
+    }
+
+    static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // should not happen
+            return value;
+        }
+    }
+
+    /**
+     * The id of the document holding the checkpoint of a database: <code>_seq</code>, or <code>_seq_{db}</code> with
+     * several databases.
+     */
+    private String checkpointId(String db) {
+        return config.multiDb ? "_seq_" + db : "_seq";
+    }
+
+    /**
+     * Reads the <code>couchdb</code> object of the checkpoint document of a database, <code>null</code> if there is
+     * none.
+     */
+    @SuppressWarnings({"unchecked"})
+    Map<String, Object> loadCheckpoint(String db) {
+        client.admin().indices().prepareRefresh(riverIndexName).execute().actionGet();
+        GetResponse lastSeqGetResponse = client.prepareGet(riverIndexName, riverName().name(), checkpointId(db)).execute().actionGet();
+        if (!lastSeqGetResponse.isExists()) {
+            return null;
+        }
+        return (Map<String, Object>) lastSeqGetResponse.getSourceAsMap().get("couchdb");
+    }
+
+    /**
+     * Extracts the seq of a feed from the <code>couchdb</code> object of the <code>_seq</code> document.
+     */
+    @SuppressWarnings({"unchecked"})
+    static String persistedSeq(Map<String, Object> couchdbState, Feed feed) {
+        if (couchdbState == null) {
+            return null;
+        }
+        if (feed.shard() == null) {
+            Object lastSeq = couchdbState.get("last_seq");
+            return lastSeq == null ? null : lastSeq.toString(); // we know its always a string
+        }
+        if (couchdbState.get("shards") instanceof Map) {
+            Object shardSeq = ((Map<String, Object>) couchdbState.get("shards")).get(feed.shard());
+            return shardSeq == null ? null : shardSeq.toString();
+        }
+        return null;
+    }
+
+    /**
+     * Extracts the host of the shard copy the seq of a feed comes from, <code>null</code> if the checkpoint does not
+     * say.
+     */
+    @SuppressWarnings({"unchecked"})
+    static String persistedHost(Map<String, Object> couchdbState, Feed feed) {
+        if (couchdbState == null || feed.shard() == null || !(couchdbState.get("hosts") instanceof Map)) {
+            return null;
+        }
+        Object host = ((Map<String, Object>) couchdbState.get("hosts")).get(feed.shard());
+        return host == null ? null : host.toString();
+    }
+
+    /**
+     * Moves a shard feed to the next copy of its shard, once all the changes read from the current copy are
+     * checkpointed. Seqs are local to each copy, so the new copy is read from its start, and the shard is left out of
+     * the checkpoint until changes of the new copy are indexed. Returns <code>false</code> if the feed stays on its
+     * copy for now.
+     */
+    synchronized boolean failOver(Feed feed) {
+        if (feed.shard() == null || feed.hosts().size() < 2) {
+            return false;
+        }
+        writeCheckpoint(false);
+        if (feed.tracker().pending() > 0) {
+            return false;
+        }
+        String host = feed.host();
+        feed.nextCopy();
+        feed.checkpointSeq = null;
+        unsavedCheckpoint = true;
+        logger.warn("can not reach shard [{}] of [{}] on [{}], reading the copy on [{}] from its start", feed.shard(),
+                feed.db(), host, feed.host());
+        return true;
+    }
+
+    /**
+     * Sends the failed requests to the bulk processor again once their backoff expires, the dead letters to their own.
+     */
+    private class RetrySender implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                if (closed) {
+                    return;
+                }
+                BulkRetries.Retry retry;
+                try {
+                    retry = bulkRetries.take();
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                boolean deadLetter = deadLetterTickets.containsKey(retry.request);
+                if (retry.superseded()) {
+                    // a newer version was sent since, the checkpoint will only move over it with that one
+                    if (deadLetter) {
+                        deadLetterTickets.remove(retry.request);
+                    } else if (attachmentIndexer != null) {
+                        attachmentIndexer.release(retry.request);
+                    }
+                    retry.ticket.complete();
+                    continue;
+                }
+                if (logger.isTraceEnabled()) {
+                    logger.trace("retrying change [{}], attempt [{}]", retry.ticket.seq(), retry.attempt);
+                }
+                if (deadLetter) {
+                    deadLetterProcessor.add(retry.request);
+                } else {
+                    sendToBulk(retry.request, retry.ticket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the changes read by the slurpers. With a single indexer thread, changes are processed here. Otherwise
+     * they are dispatched to the workers by hashing the document id, so all the changes of a given document are
+     * processed in order by the same worker.
+     */
+    private class Indexer implements Runnable {
+
+        private final ExecutableScript executableScript = workerQueues == null ? newExecutableScript() : null;
+        // the changes waiting for their documents to be fetched
+        private final List<PendingChange> batch = config.includeDocs ? null : new ArrayList<PendingChange>();
+        private final DocFetcher docFetcher = config.includeDocs ? null : newDocFetcher();
+        private final CoalescingWindow window = workerQueues == null ? newCoalescingWindow() : null;
+
+        @Override
+        public void run() {
+            while (true) {
+                if (closed) {
+                    return;
+                }
+                PendingChange s;
+                try {
+                    if (bulkRetries != null && bulkRetries.waiting() > 0) {
+                        // the cluster is struggling, let the failed requests go first
+                        bulkRetries.awaitNoneWaiting(pollTimeoutMillis(window, config.checkpointInterval.millis()));
+                        flushIfFull(window);
+                        writeCheckpoint(false);
+                        continue;
+                    }
+                    s = stream.poll(pollTimeoutMillis(window, config.checkpointInterval.millis()), TimeUnit.MILLISECONDS);
+                    if (s == null) {
+                        flushIfFull(window);
+                        // changes might have been acknowledged since the last checkpoint
+                        writeCheckpoint(false);
+                        continue;
+                    }
+                    handle(s);
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+
+                // spin a bit to see if we can get some more changes
+                try {
+                    while ((bulkRetries == null || bulkRetries.waiting() == 0)
+                            && (s = stream.poll(pollTimeoutMillis(window, config.bulkTimeout.millis()), TimeUnit.MILLISECONDS)) != null) {
+                        handle(s);
+                    }
+                    fetch();
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                // the window is held until it is full, even if the stream is idle
+                flushIfFull(window);
+
+                writeCheckpoint(false);
+            }
+        }
+
+        private void handle(PendingChange pendingChange) throws InterruptedException {
+            if (batch == null) {
+                dispatch(pendingChange);
+                return;
+            }
+            batch.add(pendingChange);
+            if (batch.size() >= config.fetchSize * config.fetchConcurrency) {
+                fetch();
+            }
+        }
+
+        private void fetch() throws InterruptedException {
+            if (batch == null || batch.isEmpty()) {
+                return;
+            }
+            List<PendingChange> changes = docFetcher.fetch(batch);
+            batch.clear();
+            for (PendingChange pendingChange : changes) {
+                dispatch(pendingChange);
+            }
+        }
+
+        private void dispatch(PendingChange pendingChange) throws InterruptedException {
+            if (workerQueues == null) {
+                index(pendingChange, executableScript, window);
+            } else {
+                int partition = (pendingChange.change.id().hashCode() & Integer.MAX_VALUE) % workerQueues.length;
+                // we put here, so we block if the worker is late
+                workerQueues[partition].put(pendingChange);
+            }
+        }
+    }
+
+    private class IndexerWorker implements Runnable {
+
+        private final BlockingQueue<PendingChange> queue;
+        private final ExecutableScript executableScript = newExecutableScript();
+        private final CoalescingWindow window = newCoalescingWindow();
+
+        IndexerWorker(BlockingQueue<PendingChange> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (closed) {
+                    return;
+                }
+                PendingChange pendingChange;
+                try {
+                    if (window == null || window.remainingNanos() == Long.MAX_VALUE) {
+                        pendingChange = queue.take();
+                    } else {
+                        pendingChange = queue.poll(pollTimeoutMillis(window, Long.MAX_VALUE), TimeUnit.MILLISECONDS);
+                        if (pendingChange == null) {
+                            flushIfFull(window);
+                            writeCheckpoint(false);
+                            continue;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                process(pendingChange);
+
+                // spin a bit to see if we can get some more changes
+                try {
+                    while ((pendingChange = queue.poll(pollTimeoutMillis(window, config.bulkTimeout.millis()),
+                            TimeUnit.MILLISECONDS)) != null) {
+                        process(pendingChange);
+                    }
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
+                    }
+                }
+                // the window is held until it is full, even if the queue is idle
+                flushIfFull(window);
+
+                writeCheckpoint(false);
+            }
+        }
+
+        private void process(PendingChange pendingChange) {
+            index(pendingChange, executableScript, window);
+        }
+    }
+
+    /**
+     * The path of a page of <code>limit</code> changes of a feed, in <code>normal</code> or <code>longpoll</code>
+     * mode.
+     */
+    String changesPath(Feed feed, String mode, int limit, String since) {
+        StringBuilder path = new StringBuilder(feed.path()).append("/_changes?feed=").append(mode)
+                .append("&include_docs=").append(config.includeDocs).append("&limit=").append(limit);
+        if ("longpoll".equals(mode)) {
+            path.append("&heartbeat=").append(config.heartbeat.getMillis());
+        }
+        if (config.couchFilter != null) {
+            path.append("&filter=").append(urlEncode(config.couchFilter));
+            if (config.couchFilterParamsUrl != null) {
+                path.append(config.couchFilterParamsUrl);
+            }
+        }
+        if (since != null) {
+            path.append("&since=").append(urlEncode(since));
+        }
+        return path.toString();
+    }
+
+    /**
+     * Requests the <code>_changes</code> feed of a database or shard: a <code>POST</code> of the selector or the doc
+     * ids when the filter is <code>_selector</code> or <code>_doc_ids</code>, so that couchdb filters the changes
+     * natively, without its query server.
+     */
+    private InputStream openChanges(Feed feed, String path) throws IOException {
+        if (config.couchFilterBody != null) {
+            return httpClient.post(feed.host(), feed.port(), path, config.couchFilterBody);
+        }
+        return httpClient.get(feed.host(), feed.port(), path);
+    }
+
+    ChangeParser.Page fetchPage(Feed feed, String path) throws IOException {
+        InputStream is = openChanges(feed, path);
+        try {
+            BytesStreamOutput out = new BytesStreamOutput();
+            Streams.copy(is, out);
+            // the changes are copied out of the page, which does not outlive the request
+            return ChangeParser.parsePage(out.bytes().toBytesArray());
+        } finally {
+            // the page is fully read, the connection goes back to the pool
+            IOUtils.closeWhileHandlingException(is);
+        }
+    }
+
+    /**
+     * Hands a line of a feed to the indexer, returning its change, <code>null</code> if there was nothing to hand.
+     */
+    Change handOver(Feed feed, BytesReference line) throws InterruptedException {
+        Change change = parseLine(feed.db(), line);
+        if (change == null) {
+            return null;
+        }
+        SequenceTracker.Ticket ticket = feed.tracker().register(change.seq());
+        if (change.id() == null) {
+            // last_seq: nothing to index, but the checkpoint can move up to it
+            ticket.complete();
+        } else {
+            stats.read.inc();
+            // we put here, so we block if there is no space to add
+            stream.put(new PendingChange(feed, change, ticket));
+        }
+        return change;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Hands a change to the indexer, blocking if there is no space to add it.
+     */
+    void enqueue(PendingChange pendingChange) throws InterruptedException {
+        stream.put(pendingChange);
+    }
+
+    Thread newThread(String name, Runnable runnable) {
+        return EsExecutors.daemonThreadFactory(settings.globalSettings(), name).newThread(runnable);
+    }
+
+    /**
+     * Keeps the threads of a running initial load, so that closing the river interrupts them.
+     */
+    void initialLoadStarted(Thread[] threads) {
+        Collections.addAll(initialLoadThreads, threads);
+    }
+
+    void initialLoadDone(Thread[] threads) {
+        initialLoadThreads.removeAll(Arrays.asList(threads));
+    }
+
+    InitialLoader newInitialLoader(Feed feed) {
+        return new InitialLoader(this, logger, httpClient, stats, feed, config.initialLoadPartitions, config.initialLoadPageSize);
+    }
+
+    DocFetcher newDocFetcher() {
+        return new DocFetcher(this, logger, httpClient, stats, fetchExecutor, config.fetchSize);
+    }
+
+    /**
+     * Returns the cache of the encoded attachments, <code>null</code> if <code>attachment_cache_size</code> is 0.
+     */
+    private AttachmentCache newAttachmentCache() {
+        if (config.attachmentCacheSize.bytes() <= 0) {
+            return null;
+        }
+        Path spillDir = config.attachmentCacheDir == null ? null : Paths.get(config.attachmentCacheDir).resolve(riverName.name());
+        try {
+            return new AttachmentCache(config.attachmentCacheSize.bytes(), spillDir, config.attachmentCacheDiskSize.bytes());
+        } catch (IOException e) {
+            logger.warn("failed to use [{}] to spill the attachment cache, caching on heap only", e, spillDir);
+            try {
+                return new AttachmentCache(config.attachmentCacheSize.bytes(), null, 0);
+            } catch (IOException e1) {
+                // no directory to create
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads the <code>_changes</code> feed of a database or shard, and hands its changes to the indexer.
+     */
+    private class Slurper implements Runnable {
+
+        private final Feed feed;
+        private final ChangesStreamReader reader = new ChangesStreamReader();
+
+        // the seq of the last change handed to the indexer, so we can resume from it when reconnecting
+        private boolean lastSeqLoaded;
+        private String lastSeq;
+        private boolean initialLoadDone;
+        private boolean connected;
+
+        Slurper(Feed feed) {
+            this.feed = feed;
+        }
+
+        @Override
+        public void run() {
+
+            while (true) {
+                if (closed) {
+                    return;
+                }
+
+                if (!lastSeqLoaded) {
+                    lastSeq = loadLastSeq();
+                    if (!lastSeqLoaded) {
+                        // throttled
+                        continue;
+                    }
+                }
+
+                if (lastSeq == null && config.initialLoad && !initialLoadDone) {
+                    try {
+                        lastSeq = newInitialLoader(feed).load();
+                        initialLoadDone = true;
+                    } catch (InterruptedException e) {
+                        if (closed) {
+                            return;
+                        }
+                        continue;
+                    } catch (Exception e) {
+                        logger.warn("failed to start initial load, throttling....", e);
+                        try {
+                            Thread.sleep(5000);
+                        } catch (InterruptedException e1) {
+                            // checked on the next iteration
+                        }
+                        continue;
+                    }
+                }
+
+                if (!"continuous".equals(config.feedType)) {
+                    readPages();
+                    return;
+                }
+
+                String file = feed.path() + "/_changes?feed=continuous&include_docs=" + config.includeDocs
+                        + "&heartbeat=" + config.heartbeat.getMillis();
+                if (config.couchFilter != null) {
+                    try {
+                        file = file + "&filter=" + URLEncoder.encode(config.couchFilter, "UTF-8");
+                    } catch (UnsupportedEncodingException e) {
+                        // should not happen!
+                    }
+                    if (config.couchFilterParamsUrl != null) {
+                        file = file + config.couchFilterParamsUrl;
                     }
                 }
 
@@ -502,35 +1821,19 @@ public class CouchdbRiver extends AbstractRiverComponent implements River {
                 }
 
                 if (logger.isDebugEnabled()) {
-                    logger.debug("using host [{}], port [{}], path [{}]", couchHost, couchPort, file);
+                    logger.debug("using host [{}], port [{}], path [{}]", feed.host(), feed.port(), file);
                 }
 
-                HttpURLConnection connection = null;
+                if (connected) {
+                    stats.reconnects.inc();
+                }
+                connected = true;
                 InputStream is = null;
                 try {
-                    URL url = new URL(couchProtocol, couchHost, couchPort, file);
-                    connection = (HttpURLConnection) url.openConnection();
-                    if (basicAuth != null) {
-                        connection.addRequestProperty("Authorization", basicAuth);
-                    }
-                    connection.setDoInput(true);
-                    connection.setReadTimeout((int) readTimeout.getMillis());
-                    connection.setUseCaches(false);
-
-                    if (noVerify) {
-                        ((HttpsURLConnection) connection).setHostnameVerifier(
-                                new HostnameVerifier() {
-                                    public boolean verify(String string, SSLSession ssls) {
-                                        return true;
-                                    }
-                                }
-                        );
-                    }
+                    is = openChanges(feed, file);
 
-                    is = connection.getInputStream();
-
-                    final BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-                    String line;
+                    reader.reset(is);
+                    BytesReference line;
                     while ((line = reader.readLine()) != null) {
                         if (closed) {
                             return;
@@ -540,26 +1843,16 @@ public class CouchdbRiver extends AbstractRiverComponent implements River {
                             continue;
                         }
                         if (logger.isTraceEnabled()) {
-                            logger.trace("[couchdb] {}", line);
+                            logger.trace("[couchdb] {}", line.toUtf8());
                         }
-                        // we put here, so we block if there is no space to add
-                        stream.put(line);
+                        handle(line);
                     }
                 } catch (Exception e) {
                     IOUtils.closeWhileHandlingException(is);
-                    if (connection != null) {
-                        try {
-                            connection.disconnect();
-                        } catch (Exception e1) {
-                            // ignore
-                        } finally {
-                            connection = null;
-                        }
-                    }
                     if (closed) {
                         return;
                     }
-                    logger.warn("failed to read from _changes, throttling....", e);
+                    logger.warn("failed to read from _changes of [{}], throttling....", e, feed);
                     try {
                         Thread.sleep(5000);
                     } catch (InterruptedException e1) {
@@ -567,19 +1860,82 @@ public class CouchdbRiver extends AbstractRiverComponent implements River {
                             return;
                         }
                     }
+                    if (e instanceof IOException && failOver(feed)) {
+                        lastSeq = null;
+                    }
                 } finally {
+                    // closing the stream of a feed that is not fully read drops the connection
                     IOUtils.closeWhileHandlingException(is);
-                    if (connection != null) {
-                        try {
-                            connection.disconnect();
-                        } catch (Exception e1) {
-                            // ignore
-                        } finally {
-                            connection = null;
-                        }
+                }
+            }
+        }
+
+        /**
+         * Hands a change of the feed to the indexer.
+         */
+        private void handle(BytesReference line) throws InterruptedException {
+            Change change = handOver(feed, line);
+            if (change != null && change.seq() != null) {
+                lastSeq = seqToString(change.seq());
+            }
+        }
+
+        /**
+         * Hands the pages read by a {@link PageFetcher} to the indexer, while the fetcher requests the next one.
+         */
+        private void readPages() {
+            // the fetcher reads one page ahead
+            BlockingQueue<ChangeParser.Page> pages = new SynchronousQueue<ChangeParser.Page>();
+            Thread fetcherThread = newThread("couchdb_river_fetcher", new PageFetcher(CouchdbRiver.this, logger, stats, feed,
+                    lastSeq, pages, config.feedType, config.heartbeat, config.pageSize, config.minPageSize, config.maxPageSize,
+                    config.targetPageLatency));
+            slurperThreads.add(fetcherThread);
+            fetcherThread.start();
+            while (true) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    ChangeParser.Page page = pages.take();
+                    for (BytesReference result : page.results()) {
+                        handle(result);
+                    }
+                    if (page.lastSeq() != null) {
+                        // the checkpoint can move up to last_seq, even if the filter left no change in the page
+                        feed.tracker().register(page.lastSeq()).complete();
+                    }
+                } catch (InterruptedException e) {
+                    if (closed) {
+                        return;
                     }
                 }
             }
         }
+
+        /**
+         * Reads the last persisted seq of the feed from the river index. This is only done when the feed starts,
+         * reconnections resume from the last seq handed to the indexer.
+         */
+        private String loadLastSeq() {
+            try {
+                String seq = persistedSeq(loadCheckpoint(feed.db()), feed);
+                synchronized (CouchdbRiver.this) {
+                    // keep the seq of this feed in the checkpoint until it moves
+                    if (feed.checkpointSeq == null) {
+                        feed.checkpointSeq = seq;
+                    }
+                }
+                lastSeqLoaded = true;
+                return seq;
+            } catch (Exception e) {
+                logger.warn("failed to get last_seq, throttling....", e);
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e1) {
+                    // checked by the caller
+                }
+                return null;
+            }
+        }
     }
 }
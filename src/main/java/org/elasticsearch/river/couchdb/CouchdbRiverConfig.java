@@ -0,0 +1,300 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * The settings of a river, parsed once from its <code>couchdb</code> and <code>index</code> objects, each setting
+ * falling back to its default when they are missing. Settings that can not be used together are logged and fixed up
+ * here, invalid ones throw.
+ */
+final class CouchdbRiverConfig {
+
+    final String couchProtocol;
+    final boolean noVerify;
+    final boolean compression;
+    final String couchHost;
+    final int couchPort;
+    // null unless user and password are set
+    final String basicAuth;
+    final TimeValue readTimeout;
+    // null when the river reads several databases
+    final String couchDb;
+    final List<String> couchDbs;
+    // null unless db_pattern is set
+    final Pattern couchDbPattern;
+    final boolean multiDb;
+    // with several databases, whether they are only read once _db_updates reports them updated
+    final boolean dbUpdates;
+    final int feedReaders;
+    final TimeValue pollInterval;
+    final String couchFilter;
+    final String couchFilterParamsUrl;
+    // the body of the _changes requests, null unless the filter is _selector or _doc_ids
+    final BytesReference couchFilterBody;
+    final boolean couchIgnoreAttachments;
+    final boolean indexAttachments;
+    final String attachmentsField;
+    final int attachmentConcurrency;
+    final ByteSizeValue attachmentMemory;
+    final ByteSizeValue maxAttachmentSize;
+    final ByteSizeValue attachmentCacheSize;
+    final String attachmentCacheDir;
+    final ByteSizeValue attachmentCacheDiskSize;
+    final boolean streaming;
+    final boolean includeDocs;
+    final int fetchSize;
+    final int fetchConcurrency;
+    final boolean initialLoad;
+    final int initialLoadPartitions;
+    final int initialLoadPageSize;
+    final TimeValue heartbeat;
+    final String feedType;
+    final int pageSize;
+    final int minPageSize;
+    final int maxPageSize;
+    final TimeValue targetPageLatency;
+    final boolean clustered;
+    final int nodeLocalPort;
+    final List<String> nodeLocalHosts;
+    final TimeValue lagInterval;
+    // null unless script is set
+    final String script;
+    final String scriptType;
+
+    // null when the river reads several databases and they are not set, each database then has its own
+    final String indexName;
+    final String typeName;
+    final int bulkSize;
+    final ByteSizeValue bulkSizeBytes;
+    final TimeValue bulkTimeout;
+    final TimeValue bulkFlushInterval;
+    final int maxConcurrentBulk;
+    final boolean adaptiveBulk;
+    final int minBulkSize;
+    final int maxBulkSize;
+    final int minConcurrentBulk;
+    final TimeValue targetBulkLatency;
+    // BulkRetries.UNLIMITED without a dead letter index
+    final int maxRetries;
+    final TimeValue retryBackoff;
+    final TimeValue maxRetryBackoff;
+    final int throttleSize;
+    final int indexerThreads;
+    final int coalesceSize;
+    final TimeValue coalesceInterval;
+    final TimeValue checkpointInterval;
+    final int checkpointChanges;
+    // null unless dead_letter_index is set
+    final String deadLetterIndex;
+    final String deadLetterType;
+
+    @SuppressWarnings({"unchecked"})
+    CouchdbRiverConfig(String riverName, Map<String, Object> settings, ESLogger logger) {
+        Map<String, Object> couchSettings = settings.containsKey("couchdb") ?
+                (Map<String, Object>) settings.get("couchdb") : Collections.<String, Object>emptyMap();
+        couchProtocol = XContentMapValues.nodeStringValue(couchSettings.get("protocol"), "http");
+        noVerify = XContentMapValues.nodeBooleanValue(couchSettings.get("no_verify"), false);
+        compression = XContentMapValues.nodeBooleanValue(couchSettings.get("compression"), false);
+        couchHost = XContentMapValues.nodeStringValue(couchSettings.get("host"), "localhost");
+        couchPort = XContentMapValues.nodeIntegerValue(couchSettings.get("port"), 5984);
+        couchDbPattern = couchSettings.containsKey("db_pattern") ? Pattern.compile(couchSettings.get("db_pattern").toString()) : null;
+        if (couchSettings.get("db") instanceof List) {
+            couchDbs = new ArrayList<String>();
+            for (Object db : (List<Object>) couchSettings.get("db")) {
+                couchDbs.add(db.toString());
+            }
+        } else if (couchSettings.containsKey("db") || couchDbPattern == null) {
+            couchDbs = Collections.singletonList(XContentMapValues.nodeStringValue(couchSettings.get("db"), riverName));
+        } else {
+            couchDbs = Collections.emptyList();
+        }
+        multiDb = couchDbs.size() != 1 || couchDbPattern != null;
+        couchDb = multiDb ? null : couchDbs.get(0);
+        if (XContentMapValues.nodeBooleanValue(couchSettings.get("db_updates"), false) && !multiDb) {
+            logger.warn("db_updates can only be used with several databases, the _changes feed of [{}] will be followed", couchDb);
+            dbUpdates = false;
+        } else {
+            dbUpdates = XContentMapValues.nodeBooleanValue(couchSettings.get("db_updates"), false);
+        }
+        feedReaders = XContentMapValues.nodeIntegerValue(couchSettings.get("feed_readers"), 2);
+        pollInterval = XContentMapValues.nodeTimeValue(couchSettings.get("poll_interval"), TimeValue.timeValueSeconds(5));
+        couchFilter = XContentMapValues.nodeStringValue(couchSettings.get("filter"), null);
+        if (couchSettings.containsKey("filter_params")) {
+            Map<String, Object> filterParams = (Map<String, Object>) couchSettings.get("filter_params");
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Object> entry : filterParams.entrySet()) {
+                try {
+                    sb.append("&").append(URLEncoder.encode(entry.getKey(), "UTF-8")).append("=").append(URLEncoder.encode(entry.getValue().toString(), "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    // should not happen...
+                }
+            }
+            couchFilterParamsUrl = sb.toString();
+        } else {
+            couchFilterParamsUrl = null;
+        }
+        if ("_selector".equals(couchFilter)) {
+            if (!(couchSettings.get("selector") instanceof Map)) {
+                throw new IllegalArgumentException("filter [_selector] requires a [selector] object");
+            }
+            couchFilterBody = jsonBody("selector", couchSettings.get("selector"));
+        } else if ("_doc_ids".equals(couchFilter)) {
+            if (!(couchSettings.get("doc_ids") instanceof List)) {
+                throw new IllegalArgumentException("filter [_doc_ids] requires a [doc_ids] list");
+            }
+            couchFilterBody = jsonBody("doc_ids", couchSettings.get("doc_ids"));
+        } else {
+            couchFilterBody = null;
+        }
+        heartbeat = XContentMapValues.nodeTimeValue(couchSettings.get("heartbeat"), TimeValue.timeValueSeconds(10));
+        readTimeout = XContentMapValues.nodeTimeValue(couchSettings.get("read_timeout"), TimeValue.timeValueSeconds(heartbeat.getSeconds()*3));
+        couchIgnoreAttachments = XContentMapValues.nodeBooleanValue(couchSettings.get("ignore_attachments"), false);
+        if (XContentMapValues.nodeBooleanValue(couchSettings.get("index_attachments"), false) && couchIgnoreAttachments) {
+            logger.warn("index_attachments can not be used with ignore_attachments, attachments will be ignored");
+            indexAttachments = false;
+        } else {
+            indexAttachments = XContentMapValues.nodeBooleanValue(couchSettings.get("index_attachments"), false);
+        }
+        attachmentsField = XContentMapValues.nodeStringValue(couchSettings.get("attachments_field"), "attachments");
+        attachmentConcurrency = XContentMapValues.nodeIntegerValue(couchSettings.get("attachment_concurrency"), 2);
+        attachmentMemory = ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                couchSettings.get("attachment_memory"), "50mb"), "couchdb.attachment_memory");
+        maxAttachmentSize = ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                couchSettings.get("max_attachment_size"), "10mb"), "couchdb.max_attachment_size");
+        attachmentCacheSize = ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                couchSettings.get("attachment_cache_size"), "32mb"), "couchdb.attachment_cache_size");
+        attachmentCacheDir = XContentMapValues.nodeStringValue(couchSettings.get("attachment_cache_dir"), null);
+        attachmentCacheDiskSize = ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                couchSettings.get("attachment_cache_disk_size"), "1gb"), "couchdb.attachment_cache_disk_size");
+        streaming = XContentMapValues.nodeBooleanValue(couchSettings.get("streaming"), true);
+        includeDocs = XContentMapValues.nodeBooleanValue(couchSettings.get("include_docs"), true);
+        fetchSize = XContentMapValues.nodeIntegerValue(couchSettings.get("fetch_size"), 100);
+        fetchConcurrency = XContentMapValues.nodeIntegerValue(couchSettings.get("fetch_concurrency"), 4);
+        feedType = XContentMapValues.nodeStringValue(couchSettings.get("feed"), "continuous");
+        if (!"continuous".equals(feedType) && !"normal".equals(feedType) && !"longpoll".equals(feedType)) {
+            throw new IllegalArgumentException("unsupported feed [" + feedType + "], expected [continuous], [normal] or [longpoll]");
+        }
+        pageSize = XContentMapValues.nodeIntegerValue(couchSettings.get("page_size"), 1000);
+        minPageSize = XContentMapValues.nodeIntegerValue(couchSettings.get("min_page_size"), Math.min(100, pageSize));
+        maxPageSize = XContentMapValues.nodeIntegerValue(couchSettings.get("max_page_size"), Math.max(10000, pageSize));
+        targetPageLatency = XContentMapValues.nodeTimeValue(couchSettings.get("target_page_latency"), TimeValue.timeValueSeconds(1));
+        lagInterval = XContentMapValues.nodeTimeValue(couchSettings.get("lag_interval"), TimeValue.timeValueSeconds(10));
+        if (XContentMapValues.nodeBooleanValue(couchSettings.get("clustered"), false) && multiDb) {
+            logger.warn("clustered can not be used with several databases, the _changes feed of each database will be read");
+            clustered = false;
+        } else {
+            clustered = XContentMapValues.nodeBooleanValue(couchSettings.get("clustered"), false);
+        }
+        nodeLocalPort = XContentMapValues.nodeIntegerValue(couchSettings.get("node_local_port"), 5986);
+        if (couchSettings.containsKey("node_local_hosts")) {
+            nodeLocalHosts = new ArrayList<String>();
+            for (Object nodeLocalHost : XContentMapValues.extractRawValues("node_local_hosts", couchSettings)) {
+                nodeLocalHosts.add(nodeLocalHost.toString());
+            }
+        } else {
+            nodeLocalHosts = Collections.singletonList(couchHost);
+        }
+        if (XContentMapValues.nodeBooleanValue(couchSettings.get("initial_load"), false) && couchFilter != null) {
+            logger.warn("initial_load can not be used with a filter, all the changes will be read from the _changes feed");
+            initialLoad = false;
+        } else if (XContentMapValues.nodeBooleanValue(couchSettings.get("initial_load"), false) && clustered) {
+            logger.warn("initial_load can not be used in clustered mode, all the changes will be read from the _changes feeds of the shards");
+            initialLoad = false;
+        } else {
+            initialLoad = XContentMapValues.nodeBooleanValue(couchSettings.get("initial_load"), false);
+        }
+        initialLoadPartitions = XContentMapValues.nodeIntegerValue(couchSettings.get("initial_load_partitions"), 4);
+        initialLoadPageSize = XContentMapValues.nodeIntegerValue(couchSettings.get("initial_load_page_size"), 1000);
+        if (couchSettings.containsKey("user") && couchSettings.containsKey("password")) {
+            String user = couchSettings.get("user").toString();
+            String password = couchSettings.get("password").toString();
+            basicAuth = "Basic " + Base64.encodeBytes((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+        } else {
+            basicAuth = null;
+        }
+        script = couchSettings.containsKey("script") ? couchSettings.get("script").toString() : null;
+        scriptType = XContentMapValues.nodeStringValue(couchSettings.get("script_type"), "groovy");
+
+        Map<String, Object> indexSettings = settings.containsKey("index") ?
+                (Map<String, Object>) settings.get("index") : Collections.<String, Object>emptyMap();
+        indexName = XContentMapValues.nodeStringValue(indexSettings.get("index"), couchDb);
+        typeName = XContentMapValues.nodeStringValue(indexSettings.get("type"), couchDb);
+        bulkSize = XContentMapValues.nodeIntegerValue(indexSettings.get("bulk_size"), 100);
+        if (indexSettings.containsKey("bulk_timeout")) {
+            bulkTimeout = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(indexSettings.get("bulk_timeout"), "10ms"), TimeValue.timeValueMillis(10));
+        } else {
+            bulkTimeout = TimeValue.timeValueMillis(10);
+        }
+        bulkFlushInterval = TimeValue.parseTimeValue(XContentMapValues.nodeStringValue(
+                indexSettings.get("flush_interval"), "5s"), TimeValue.timeValueSeconds(5));
+        maxConcurrentBulk = XContentMapValues.nodeIntegerValue(indexSettings.get("max_concurrent_bulk"), 1);
+        bulkSizeBytes = ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                indexSettings.get("bulk_size_bytes"), "5mb"), "index.bulk_size_bytes");
+        adaptiveBulk = XContentMapValues.nodeBooleanValue(indexSettings.get("adaptive_bulk"), false);
+        minBulkSize = XContentMapValues.nodeIntegerValue(indexSettings.get("min_bulk_size"), Math.min(10, bulkSize));
+        maxBulkSize = XContentMapValues.nodeIntegerValue(indexSettings.get("max_bulk_size"), bulkSize * 10);
+        minConcurrentBulk = XContentMapValues.nodeIntegerValue(indexSettings.get("min_concurrent_bulk"), 1);
+        targetBulkLatency = XContentMapValues.nodeTimeValue(indexSettings.get("target_bulk_latency"), TimeValue.timeValueSeconds(1));
+        deadLetterIndex = XContentMapValues.nodeStringValue(indexSettings.get("dead_letter_index"), null);
+        deadLetterType = XContentMapValues.nodeStringValue(indexSettings.get("dead_letter_type"), riverName);
+        if (deadLetterIndex == null) {
+            // without dead letters, a change that can go through later is never skipped
+            maxRetries = BulkRetries.UNLIMITED;
+        } else {
+            maxRetries = XContentMapValues.nodeIntegerValue(indexSettings.get("max_retries"), 3);
+        }
+        retryBackoff = XContentMapValues.nodeTimeValue(indexSettings.get("retry_backoff"), TimeValue.timeValueMillis(500));
+        maxRetryBackoff = XContentMapValues.nodeTimeValue(indexSettings.get("max_retry_backoff"), TimeValue.timeValueSeconds(30));
+        throttleSize = XContentMapValues.nodeIntegerValue(indexSettings.get("throttle_size"), bulkSize * 5);
+        indexerThreads = XContentMapValues.nodeIntegerValue(indexSettings.get("indexer_threads"), 1);
+        coalesceSize = XContentMapValues.nodeIntegerValue(indexSettings.get("coalesce_size"), 0);
+        coalesceInterval = XContentMapValues.nodeTimeValue(indexSettings.get("coalesce_interval"), TimeValue.timeValueSeconds(1));
+        checkpointInterval = XContentMapValues.nodeTimeValue(indexSettings.get("checkpoint_interval"), TimeValue.timeValueSeconds(1));
+        checkpointChanges = XContentMapValues.nodeIntegerValue(indexSettings.get("checkpoint_changes"), 1000);
+    }
+
+    private static BytesReference jsonBody(String field, Object value) {
+        try {
+            return jsonBuilder().startObject().field(field, value).endObject().bytes();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("failed to build the [" + field + "] of the _changes requests", e);
+        }
+    }
+}
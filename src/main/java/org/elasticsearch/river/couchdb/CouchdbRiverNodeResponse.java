@@ -0,0 +1,92 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What a node answers about the couchdb rivers it runs: their statistics, already rendered as json, or whether the
+ * river asked to replay its dead letters started to.
+ */
+public class CouchdbRiverNodeResponse extends BaseNodeResponse {
+
+    public enum Replay {
+        STARTED, NO_DEAD_LETTER_INDEX, ALREADY_REPLAYING
+    }
+
+    private Map<String, BytesReference> stats = new TreeMap<String, BytesReference>();
+    // null unless the river asked to replay runs on the node
+    private Replay replay;
+
+    CouchdbRiverNodeResponse() {
+    }
+
+    CouchdbRiverNodeResponse(DiscoveryNode node, Map<String, BytesReference> stats, Replay replay) {
+        super(node);
+        this.stats = stats;
+        this.replay = replay;
+    }
+
+    /**
+     * The statistics of the rivers running on the node, by name.
+     */
+    public Map<String, BytesReference> stats() {
+        return stats;
+    }
+
+    public Replay replay() {
+        return replay;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        stats = new TreeMap<String, BytesReference>();
+        for (int i = 0; i < size; i++) {
+            stats.put(in.readString(), in.readBytesReference());
+        }
+        replay = in.readBoolean() ? Replay.values()[in.readByte()] : null;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(stats.size());
+        for (Map.Entry<String, BytesReference> entry : stats.entrySet()) {
+            out.writeString(entry.getKey());
+            out.writeBytesReference(entry.getValue());
+        }
+        if (replay == null) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            out.writeByte((byte) replay.ordinal());
+        }
+    }
+}
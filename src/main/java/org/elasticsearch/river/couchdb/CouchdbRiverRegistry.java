@@ -0,0 +1,65 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The couchdb rivers running on this node, by name. Rivers register themselves when they start and leave when they
+ * close, so that the transport action can reach them.
+ */
+public class CouchdbRiverRegistry extends AbstractComponent {
+
+    private final ConcurrentMap<String, CouchdbRiver> rivers = ConcurrentCollections.newConcurrentMap();
+
+    @Inject
+    public CouchdbRiverRegistry(Settings settings) {
+        super(settings);
+    }
+
+    void register(String name, CouchdbRiver river) {
+        rivers.put(name, river);
+    }
+
+    void unregister(String name, CouchdbRiver river) {
+        rivers.remove(name, river);
+    }
+
+    /**
+     * The river of the given name, <code>null</code> if it does not run on this node.
+     */
+    CouchdbRiver get(String name) {
+        return rivers.get(name);
+    }
+
+    /**
+     * The rivers running on this node, sorted by name.
+     */
+    Map<String, CouchdbRiver> all() {
+        return new TreeMap<String, CouchdbRiver>(rivers);
+    }
+}
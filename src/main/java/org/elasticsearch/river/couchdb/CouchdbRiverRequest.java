@@ -0,0 +1,100 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * Asks all the nodes for the statistics of their couchdb rivers, or for the river of the given name to replay its
+ * dead letters.
+ */
+public class CouchdbRiverRequest extends BaseNodesRequest<CouchdbRiverRequest> {
+
+    // null for all the rivers
+    private String river;
+    private boolean replay;
+    private int batchSize = 100;
+    private boolean human;
+
+    public CouchdbRiverRequest() {
+    }
+
+    public CouchdbRiverRequest(String river) {
+        this.river = river;
+    }
+
+    /**
+     * The river the request is about, <code>null</code> for all of them.
+     */
+    public String river() {
+        return river;
+    }
+
+    public boolean replay() {
+        return replay;
+    }
+
+    /**
+     * Replays the dead letters of the river, by batches of <code>batchSize</code>, instead of reading its statistics.
+     */
+    public CouchdbRiverRequest replay(int batchSize) {
+        this.replay = true;
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int batchSize() {
+        return batchSize;
+    }
+
+    public boolean human() {
+        return human;
+    }
+
+    /**
+     * Whether the statistics are rendered for humans, as the nodes render them.
+     */
+    public CouchdbRiverRequest human(boolean human) {
+        this.human = human;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        river = in.readOptionalString();
+        replay = in.readBoolean();
+        batchSize = in.readVInt();
+        human = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeOptionalString(river);
+        out.writeBoolean(replay);
+        out.writeVInt(batchSize);
+        out.writeBoolean(human);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.metrics.MeanMetric;
+
+/**
+ * Runtime metrics of a couchdb river.
+ */
+class CouchdbRiverStats {
+
+    /**
+     * Number of changes of documents read from couchdb, including the documents of the initial load.
+     */
+    final CounterMetric read = new CounterMetric();
+
+    /**
+     * Number of documents successfully indexed.
+     */
+    final CounterMetric indexed = new CounterMetric();
+
+    /**
+     * Number of documents successfully deleted.
+     */
+    final CounterMetric deleted = new CounterMetric();
+
+    /**
+     * Number of changes with nothing to index: design documents, documents the script ignored, unknown changes.
+     */
+    final CounterMetric ignored = new CounterMetric();
+
+    /**
+     * Number of changes that could not be parsed, processed or indexed.
+     */
+    final CounterMetric failed = new CounterMetric();
+
+    /**
+     * Number of times a feed reconnected to couchdb, or requested a page again, after a failure.
+     */
+    final CounterMetric reconnects = new CounterMetric();
+
+    /**
+     * Time bulks take to execute, in microseconds.
+     */
+    final LatencyHistogram bulkLatency = new LatencyHistogram();
+
+    /**
+     * Time spent running the script, in nanoseconds.
+     */
+    final MeanMetric script = new MeanMetric();
+
+    /**
+     * Number of <code>_seq</code> updates written.
+     */
+    final CounterMetric checkpoints = new CounterMetric();
+
+    /**
+     * Number of times the checkpoint moved without being written, thanks to coalescing.
+     */
+    final CounterMetric checkpointsSaved = new CounterMetric();
+
+    /**
+     * Number of failed bulk items scheduled to be sent again.
+     */
+    final CounterMetric retries = new CounterMetric();
+
+    /**
+     * Number of index and delete requests not sent because a later request of the same document replaced them
+     * in a coalescing window.
+     */
+    final CounterMetric coalesced = new CounterMetric();
+
+    /**
+     * Number of documents fetched when reading the feed without <code>include_docs</code>.
+     */
+    final CounterMetric fetched = new CounterMetric();
+
+    /**
+     * Number of changes not indexed because a later change of the same document came in the same batch.
+     */
+    final CounterMetric superseded = new CounterMetric();
+
+    /**
+     * Time spent reading a page of the <code>_changes</code> feed, in nanoseconds, when not in continuous mode.
+     */
+    final MeanMetric pages = new MeanMetric();
+
+    /**
+     * Number of attachments fetched from couchdb, and their size in bytes.
+     */
+    final CounterMetric attachments = new CounterMetric();
+    final CounterMetric attachmentBytes = new CounterMetric();
+
+    /**
+     * Number of attachments not indexed because they are larger than <code>max_attachment_size</code>.
+     */
+    final CounterMetric attachmentsSkipped = new CounterMetric();
+
+    /**
+     * Number of attachments reused from the attachment cache, instead of being fetched again.
+     */
+    final CounterMetric attachmentsCached = new CounterMetric();
+
+    /**
+     * Number of changes written to the dead letter index.
+     */
+    final CounterMetric deadLetters = new CounterMetric();
+
+    /**
+     * Number of dead letters fed back to the indexer.
+     */
+    final CounterMetric replayed = new CounterMetric();
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.regex.Pattern;
+
+/**
+ * Lists the databases of the server, and starts following the ones matching <code>db_pattern</code>. With
+ * <code>db_updates</code>, it then follows the <code>_db_updates</code> feed of the server: databases created
+ * matching <code>db</code> or <code>db_pattern</code> are followed, deleted ones are dropped, and updated ones
+ * are read again. Updates may have been missed while reconnecting, so all the databases are read again then.
+ */
+final class DatabaseDiscovery implements Runnable {
+
+    private final CouchdbRiver river;
+    private final ESLogger logger;
+    private final CouchdbHttpClient httpClient;
+    private final CouchdbRiverStats stats;
+    private final Pattern couchDbPattern;
+    private final boolean dbUpdates;
+    private final TimeValue heartbeat;
+    private final Map<String, PolledFeed> polledByDb;
+    private final DelayQueue<PolledFeed> polledFeeds;
+
+    private final ChangesStreamReader reader = new ChangesStreamReader();
+    private boolean listed;
+    private boolean connected;
+    // only updates from now on, the databases are all read when the river starts
+    private String since = "now";
+
+    DatabaseDiscovery(CouchdbRiver river, ESLogger logger, CouchdbHttpClient httpClient, CouchdbRiverStats stats,
+                      Pattern couchDbPattern, boolean dbUpdates, TimeValue heartbeat,
+                      Map<String, PolledFeed> polledByDb, DelayQueue<PolledFeed> polledFeeds) {
+        this.river = river;
+        this.logger = logger;
+        this.httpClient = httpClient;
+        this.stats = stats;
+        this.couchDbPattern = couchDbPattern;
+        this.dbUpdates = dbUpdates;
+        this.heartbeat = heartbeat;
+        this.polledByDb = polledByDb;
+        this.polledFeeds = polledFeeds;
+        this.listed = couchDbPattern == null;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (river.isClosed()) {
+                return;
+            }
+            try {
+                if (!listed) {
+                    list();
+                    listed = true;
+                }
+                if (!dbUpdates) {
+                    return;
+                }
+                followUpdates();
+                // the server closed the feed, we reconnect right away
+                continue;
+            } catch (Exception e) {
+                if (river.isClosed()) {
+                    return;
+                }
+                if (listed) {
+                    logger.warn("failed to read from _db_updates, throttling....", e);
+                } else {
+                    logger.warn("failed to list the databases matching [{}], throttling....", e, couchDbPattern);
+                }
+            }
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                // checked on the next iteration
+            }
+        }
+    }
+
+    private void list() throws IOException {
+        int matching = 0;
+        for (String db : allDbs()) {
+            if (couchDbPattern.matcher(db).matches()) {
+                matching++;
+                river.startFeed(river.databaseFeed(db));
+            }
+        }
+        logger.info("following [{}] databases matching [{}]", matching, couchDbPattern);
+    }
+
+    private List<String> allDbs() throws IOException {
+        InputStream is = httpClient.get("/_all_dbs");
+        try {
+            XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(is);
+            try {
+                parser.nextToken();
+                List<String> dbs = new ArrayList<String>();
+                for (Object db : parser.list()) {
+                    dbs.add(db.toString());
+                }
+                return dbs;
+            } finally {
+                parser.close();
+            }
+        } finally {
+            IOUtils.closeWhileHandlingException(is);
+        }
+    }
+
+    private void followUpdates() throws IOException {
+        String path = "/_db_updates?feed=continuous&heartbeat=" + heartbeat.getMillis() + "&since=" + CouchdbRiver.urlEncode(since);
+        InputStream is = httpClient.get(path);
+        try {
+            if (connected) {
+                stats.reconnects.inc();
+                for (PolledFeed polled : polledByDb.values()) {
+                    if (polled.update()) {
+                        polledFeeds.add(polled);
+                    }
+                }
+            }
+            connected = true;
+            reader.reset(is);
+            BytesReference line;
+            while ((line = reader.readLine()) != null) {
+                if (river.isClosed()) {
+                    return;
+                }
+                if (line.length() == 0) {
+                    logger.trace("[couchdb] _db_updates heartbeat");
+                    continue;
+                }
+                if (logger.isTraceEnabled()) {
+                    logger.trace("[couchdb] _db_updates {}", line.toUtf8());
+                }
+                Map<String, Object> event = XContentFactory.xContent(XContentType.JSON).createParser(line).mapAndClose();
+                if (event.get("seq") != null) {
+                    since = river.seqToString(event.get("seq"));
+                }
+                if (event.get("db_name") != null) {
+                    handle(event.get("db_name").toString(), XContentMapValues.nodeStringValue(event.get("type"), null));
+                }
+            }
+        } finally {
+            // closing the stream of a feed that is not fully read drops the connection
+            IOUtils.closeWhileHandlingException(is);
+        }
+    }
+
+    private void handle(String db, String type) {
+        if ("deleted".equals(type)) {
+            river.stopFeed(db);
+            return;
+        }
+        PolledFeed polled = polledByDb.get(db);
+        if (polled != null) {
+            if (polled.update()) {
+                polledFeeds.add(polled);
+            }
+        } else if (river.follows(db)) {
+            logger.info("[{}] was {}, following it", db, "created".equals(type) ? "created" : "found");
+            river.startFeed(river.databaseFeed(db));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Feeds the dead letters back to the indexer, with the current version of their document read from couchdb.
+ * A dead letter is removed once its change is indexed, or dead-lettered again, as long as it was not replaced
+ * in between. Dead letters of changes that could not be parsed have no document id, and are left alone.
+ */
+final class DeadLetterReplayer implements Runnable {
+
+    private final CouchdbRiver river;
+    private final ESLogger logger;
+    private final Client client;
+    private final CouchdbRiverStats stats;
+    private final BulkProcessor deadLetterProcessor;
+    private final String deadLetterIndex;
+    private final String deadLetterType;
+    // the database of the dead letters without one, null with several databases
+    private final String defaultDb;
+    private final DocFetcher docFetcher;
+    private final int batchSize;
+    // the replayed changes are not part of any feed, each database has its own tracker
+    private final Map<String, Feed> replayFeeds = new HashMap<String, Feed>();
+
+    DeadLetterReplayer(CouchdbRiver river, ESLogger logger, Client client, CouchdbRiverStats stats,
+                       BulkProcessor deadLetterProcessor, String deadLetterIndex, String deadLetterType, String defaultDb,
+                       DocFetcher docFetcher, int batchSize) {
+        this.river = river;
+        this.logger = logger;
+        this.client = client;
+        this.stats = stats;
+        this.deadLetterProcessor = deadLetterProcessor;
+        this.deadLetterIndex = deadLetterIndex;
+        this.deadLetterType = deadLetterType;
+        this.defaultDb = defaultDb;
+        this.docFetcher = docFetcher;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void run() {
+        try {
+            logger.info("replaying dead letters from [{}]/[{}]", deadLetterIndex, deadLetterType);
+            long replayed = replay();
+            logger.info("replayed [{}] dead letters from [{}]/[{}]", replayed, deadLetterIndex, deadLetterType);
+        } catch (InterruptedException e) {
+            // closing
+        } catch (Exception e) {
+            if (!river.isClosed()) {
+                logger.warn("failed to replay dead letters from [{}]/[{}]", e, deadLetterIndex, deadLetterType);
+            }
+        } finally {
+            river.replayDone();
+        }
+    }
+
+    private long replay() throws Exception {
+        TimeValue keepAlive = TimeValue.timeValueMinutes(5);
+        // the dead letters written so far are replayed
+        deadLetterProcessor.flush();
+        client.admin().indices().prepareRefresh(deadLetterIndex).execute().actionGet();
+        SearchResponse response = client.prepareSearch(deadLetterIndex).setTypes(deadLetterType)
+                .setScroll(keepAlive).setSize(batchSize).setVersion(true).get();
+        long replayed = 0;
+        while (response.getHits().getHits().length > 0) {
+            if (river.isClosed()) {
+                throw new InterruptedException();
+            }
+            replayed += replay(response.getHits().getHits());
+            response = client.prepareSearchScroll(response.getScrollId()).setScroll(keepAlive).get();
+        }
+        return replayed;
+    }
+
+    private int replay(SearchHit[] hits) throws IOException, InterruptedException {
+        // the documents are fetched from their database
+        Map<String, List<PendingChange>> keysByDb = new LinkedHashMap<String, List<PendingChange>>();
+        List<SearchHit> deadLetters = new ArrayList<SearchHit>(hits.length);
+        for (SearchHit hit : hits) {
+            Object id = hit.getSource().get("id");
+            if (id == null) {
+                continue;
+            }
+            String db = XContentMapValues.nodeStringValue(hit.getSource().get("db"), defaultDb);
+            if (db == null) {
+                continue;
+            }
+            Feed feed = replayFeeds.get(db);
+            if (feed == null) {
+                feed = river.databaseFeed(db);
+                replayFeeds.put(db, feed);
+            }
+            Change change = river.parseLine(db, jsonBuilder().startObject().field("id", id.toString()).endObject().bytes());
+            if (change != null) {
+                List<PendingChange> keys = keysByDb.get(db);
+                if (keys == null) {
+                    keys = new ArrayList<PendingChange>();
+                    keysByDb.put(db, keys);
+                }
+                keys.add(new PendingChange(feed, change, feed.tracker().register(null)));
+                deadLetters.add(hit);
+            }
+        }
+        if (keysByDb.isEmpty()) {
+            return 0;
+        }
+
+        for (List<PendingChange> keys : keysByDb.values()) {
+            List<PendingChange> changes = docFetcher.fetchKeys(keys);
+            for (int i = 0; i < changes.size(); i++) {
+                if (changes.get(i) == null) {
+                    keys.get(i).ticket.complete();
+                } else {
+                    // we put here, so we block if there is no space to add
+                    river.enqueue(changes.get(i));
+                }
+            }
+        }
+        // failing again writes a new version of the dead letter, which the delete won't remove
+        while (pending() > 0) {
+            if (river.isClosed()) {
+                throw new InterruptedException();
+            }
+            Thread.sleep(100);
+        }
+        for (SearchHit hit : deadLetters) {
+            deadLetterProcessor.add(new DeleteRequest(hit.getIndex(), hit.getType(), hit.getId()).version(hit.getVersion()));
+        }
+        stats.replayed.inc(deadLetters.size());
+        return deadLetters.size();
+    }
+
+    private int pending() {
+        int pending = 0;
+        for (Feed feed : replayFeeds.values()) {
+            feed.tracker().advance();
+            pending += feed.tracker().pending();
+        }
+        return pending;
+    }
+}
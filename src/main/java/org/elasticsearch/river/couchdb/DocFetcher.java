@@ -0,0 +1,235 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Fetches the documents of the changes read without <code>include_docs</code>. Only the last change of each
+ * document in a batch is kept, the documents are then fetched from the <code>_all_docs</code> of their database by
+ * <code>fetch_size</code> keys, with up to <code>fetch_concurrency</code> requests in parallel.
+ */
+final class DocFetcher {
+
+    private static final byte[] DOC_FIELD = ",\"doc\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DELETED_FIELD = ",\"deleted\":true".getBytes(StandardCharsets.UTF_8);
+
+    private final CouchdbRiver river;
+    private final ESLogger logger;
+    private final CouchdbHttpClient httpClient;
+    private final CouchdbRiverStats stats;
+    // null if the documents are only fetched one batch of keys at a time
+    private final ExecutorService executor;
+    private final int fetchSize;
+
+    DocFetcher(CouchdbRiver river, ESLogger logger, CouchdbHttpClient httpClient, CouchdbRiverStats stats,
+               ExecutorService executor, int fetchSize) {
+        this.river = river;
+        this.logger = logger;
+        this.httpClient = httpClient;
+        this.stats = stats;
+        this.executor = executor;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Returns the changes of the batch along with their documents, in the same order. A change whose document can
+     * not be fetched is dead-lettered or skipped, it is only left pending when the river closes.
+     */
+    List<PendingChange> fetch(List<PendingChange> batch) throws InterruptedException {
+        if (executor == null) {
+            throw new IllegalStateException("documents are fetched in parallel only without include_docs");
+        }
+        // a later change of a document supersedes the previous ones
+        Map<String, PendingChange> latest = new LinkedHashMap<String, PendingChange>();
+        for (PendingChange pendingChange : batch) {
+            // documents of different databases can share their id
+            String key = pendingChange.feed.db() + '\u0000' + pendingChange.change.id();
+            PendingChange previous = latest.remove(key);
+            if (previous != null) {
+                // the checkpoint will only move over it with the change superseding it
+                previous.ticket.complete();
+                stats.superseded.inc();
+            }
+            latest.put(key, pendingChange);
+        }
+
+        // each request fetches documents of a single database
+        Map<String, List<PendingChange>> toFetch = new LinkedHashMap<String, List<PendingChange>>();
+        for (PendingChange pendingChange : latest.values()) {
+            if (!pendingChange.change.deleted() && pendingChange.change.doc() == null) {
+                List<PendingChange> dbToFetch = toFetch.get(pendingChange.feed.db());
+                if (dbToFetch == null) {
+                    dbToFetch = new ArrayList<PendingChange>();
+                    toFetch.put(pendingChange.feed.db(), dbToFetch);
+                }
+                dbToFetch.add(pendingChange);
+            }
+        }
+        List<List<PendingChange>> requests = new ArrayList<List<PendingChange>>();
+        for (List<PendingChange> dbToFetch : toFetch.values()) {
+            for (int i = 0; i < dbToFetch.size(); i += fetchSize) {
+                requests.add(dbToFetch.subList(i, Math.min(dbToFetch.size(), i + fetchSize)));
+            }
+        }
+        Map<PendingChange, PendingChange> fetched = new IdentityHashMap<PendingChange, PendingChange>();
+        List<Future<List<PendingChange>>> futures = new ArrayList<Future<List<PendingChange>>>();
+        for (final List<PendingChange> keys : requests) {
+            futures.add(executor.submit(new Callable<List<PendingChange>>() {
+                @Override
+                public List<PendingChange> call() throws Exception {
+                    return fetchKeys(keys);
+                }
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            List<PendingChange> keys = requests.get(i);
+            try {
+                List<PendingChange> withDocs = futures.get(i).get();
+                for (int j = 0; j < withDocs.size(); j++) {
+                    PendingChange withDoc = withDocs.get(j);
+                    if (withDoc != null) {
+                        fetched.put(keys.get(j), withDoc);
+                    } else {
+                        // could not be parsed along with its document, parseLine logged it
+                        keys.get(j).ticket.complete();
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (river.isClosed()) {
+                    // the changes hold the checkpoint, and are read again once the river starts
+                    continue;
+                }
+                for (PendingChange key : keys) {
+                    river.fetchFailed(key, e.getCause());
+                }
+            }
+        }
+
+        List<PendingChange> changes = new ArrayList<PendingChange>(latest.size());
+        for (PendingChange pendingChange : latest.values()) {
+            if (!pendingChange.change.deleted() && pendingChange.change.doc() == null) {
+                pendingChange = fetched.get(pendingChange);
+                if (pendingChange == null) {
+                    // completed or dead-lettered above
+                    continue;
+                }
+            }
+            changes.add(pendingChange);
+        }
+        return changes;
+    }
+
+    /**
+     * Fetches the documents of the given changes of a database, until it succeeds or the river is closed.
+     */
+    List<PendingChange> fetchKeys(List<PendingChange> keys) throws IOException, InterruptedException {
+        Feed feed = keys.get(0).feed;
+        XContentBuilder body = jsonBuilder().startObject().startArray("keys");
+        for (PendingChange pendingChange : keys) {
+            body.value(pendingChange.change.id());
+        }
+        BytesReference bodyBytes = body.endArray().endObject().bytes();
+        // shards are read from the node local interface, documents from the database
+        String path = river.dbPath(feed.db()) + "/_all_docs?include_docs=true";
+
+        while (true) {
+            if (river.isClosed()) {
+                throw new InterruptedException();
+            }
+            ChangeParser.Page rows;
+            InputStream is = null;
+            try {
+                is = httpClient.post(path, bodyBytes);
+                BytesStreamOutput out = new BytesStreamOutput();
+                Streams.copy(is, out);
+                rows = ChangeParser.parseRows(out.bytes().toBytesArray());
+            } catch (IOException e) {
+                if (river.isClosed()) {
+                    throw new InterruptedException();
+                }
+                logger.warn("failed to fetch [{}] documents from [{}], throttling....", e, keys.size(), feed.db());
+                Thread.sleep(5000);
+                continue;
+            } finally {
+                IOUtils.closeWhileHandlingException(is);
+            }
+            stats.fetched.inc(keys.size());
+
+            // rows come in the order of the keys
+            List<PendingChange> changes = new ArrayList<PendingChange>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                PendingChange pendingChange = keys.get(i);
+                BytesReference doc = null;
+                if (i < rows.results().size()) {
+                    Change row = ChangeParser.parse(rows.results().get(i));
+                    if (pendingChange.change.id().equals(row.id())) {
+                        doc = row.doc();
+                    }
+                }
+                // deleted, or gone since the change, the feed will bring whatever came next
+                Change change = river.parseLine(feed.db(), withDoc(pendingChange.change.source(), doc));
+                changes.add(change == null ? null : new PendingChange(feed, change, pendingChange.ticket));
+            }
+            return changes;
+        }
+    }
+
+    /**
+     * Adds the document to the line of the change, or marks the change as deleted when there is none.
+     */
+    static BytesReference withDoc(BytesReference line, BytesReference doc) throws IOException {
+        int end = line.length() - 1;
+        while (end > 0 && line.get(end) != '}') {
+            end--;
+        }
+        BytesStreamOutput out = new BytesStreamOutput(line.length() + (doc == null ? DELETED_FIELD.length : DOC_FIELD.length + doc.length()));
+        line.slice(0, end).writeTo(out);
+        if (doc == null) {
+            out.write(DELETED_FIELD, 0, DELETED_FIELD.length);
+        } else {
+            out.write(DOC_FIELD, 0, DOC_FIELD.length);
+            doc.writeTo(out);
+        }
+        out.write('}');
+        return new BytesArray(out.bytes().toBytes());
+    }
+}
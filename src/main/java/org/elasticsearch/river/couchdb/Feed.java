@@ -0,0 +1,130 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A <code>_changes</code> feed followed by the river: one of its databases or, in clustered mode, one of the shards of
+ * the database. Each feed has its own sequence, tracked and checkpointed separately. A shard feed reads one of the
+ * copies of its shard, and moves to the next one when the node holding it can not be reached.
+ */
+final class Feed {
+
+    private final String db;
+    private final String shard;
+    private final List<String> hosts;
+    private final int port;
+    private final String path;
+    private final SequenceTracker tracker;
+    private volatile int copy;
+
+    // the last seq acknowledged, and the last one written to the river index, guarded by the river checkpoint
+    String checkpointSeq;
+    String savedSeq;
+
+    // the update_seq of the database or shard, and how many changes the feed is behind it, as last sampled
+    volatile String updateSeq;
+    volatile long lag = -1;
+
+    Feed(String db, String shard, String host, int port, String path) {
+        this(db, shard, Collections.singletonList(host), port, path);
+    }
+
+    /**
+     * @param db    the name of the database
+     * @param shard the shard range, or <code>null</code> for the database feed
+     * @param hosts the hosts to read the feed from, the nodes holding a copy of the shard in clustered mode
+     * @param port  the port to read the feed from
+     * @param path  the url encoded path of the database, starting with a <code>/</code>
+     */
+    Feed(String db, String shard, List<String> hosts, int port, String path) {
+        this.db = db;
+        this.tracker = new SequenceTracker(db);
+        this.shard = shard;
+        this.hosts = hosts;
+        this.port = port;
+        this.path = path;
+    }
+
+    public String db() {
+        return db;
+    }
+
+    /**
+     * The shard range this feed reads, <code>null</code> for the database feed.
+     */
+    public String shard() {
+        return shard;
+    }
+
+    /**
+     * The host of the copy read right now.
+     */
+    public String host() {
+        return hosts.get(copy);
+    }
+
+    public List<String> hosts() {
+        return hosts;
+    }
+
+    /**
+     * Reads the copy held by a host from now on. Returns <code>false</code> if the host holds no copy.
+     */
+    boolean useCopy(String host) {
+        int index = hosts.indexOf(host);
+        if (index < 0) {
+            return false;
+        }
+        copy = index;
+        return true;
+    }
+
+    /**
+     * Moves to the copy held by the next host, going back to the first one after the last. Returns
+     * <code>false</code> if there is no other copy.
+     */
+    boolean nextCopy() {
+        if (hosts.size() < 2) {
+            return false;
+        }
+        copy = (copy + 1) % hosts.size();
+        return true;
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public String path() {
+        return path;
+    }
+
+    public SequenceTracker tracker() {
+        return tracker;
+    }
+
+    @Override
+    public String toString() {
+        return shard == null ? path : path + "[" + shard + "]";
+    }
+}
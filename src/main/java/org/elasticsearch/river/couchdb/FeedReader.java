@@ -0,0 +1,148 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.DelayQueue;
+
+/**
+ * Reads the feeds of the databases in turn, a page in <code>normal</code> mode at a time, when the river follows
+ * several databases. A feed is read again right away as long as its pages are full, and
+ * <code>poll_interval</code> after it caught up, so that databases share <code>feed_readers</code> threads and
+ * connections instead of holding one each. Their changes all go through the same indexer and bulks. With
+ * <code>db_updates</code>, a feed that caught up is only read again once its database is reported updated.
+ */
+final class FeedReader implements Runnable {
+
+    private final CouchdbRiver river;
+    private final ESLogger logger;
+    private final CouchdbRiverStats stats;
+    private final DelayQueue<PolledFeed> polledFeeds;
+    private final boolean dbUpdates;
+    private final boolean initialLoad;
+    private final TimeValue pollInterval;
+    private final int pageSize;
+
+    FeedReader(CouchdbRiver river, ESLogger logger, CouchdbRiverStats stats, DelayQueue<PolledFeed> polledFeeds,
+               boolean dbUpdates, boolean initialLoad, TimeValue pollInterval, int pageSize) {
+        this.river = river;
+        this.logger = logger;
+        this.stats = stats;
+        this.polledFeeds = polledFeeds;
+        this.dbUpdates = dbUpdates;
+        this.initialLoad = initialLoad;
+        this.pollInterval = pollInterval;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (river.isClosed()) {
+                return;
+            }
+            PolledFeed polled;
+            try {
+                polled = polledFeeds.take();
+            } catch (InterruptedException e) {
+                // checked on the next iteration
+                continue;
+            }
+            if (polled.stopped()) {
+                // the database was deleted
+                continue;
+            }
+            long delay;
+            try {
+                polled.reading();
+                delay = read(polled);
+            } catch (InterruptedException e) {
+                if (river.isClosed()) {
+                    return;
+                }
+                delay = 0;
+            } catch (Exception e) {
+                if (river.isClosed()) {
+                    return;
+                }
+                logger.warn("failed to read from _changes of [{}], throttling....", e, polled.feed);
+                stats.reconnects.inc();
+                delay = 5000;
+            }
+            if (polled.stopped()) {
+                // the database was deleted
+                continue;
+            }
+            if (delay < 0) {
+                if (dbUpdates && polled.idle()) {
+                    continue;
+                }
+                delay = dbUpdates ? 0 : pollInterval.millis();
+            }
+            polled.delay(delay);
+            polledFeeds.add(polled);
+        }
+    }
+
+    /**
+     * Reads the next page of a feed, and hands its changes to the indexer. Returns how long to wait before
+     * reading it again, in milliseconds, <code>-1</code> once it caught up.
+     */
+    private long read(PolledFeed polled) throws Exception {
+        Feed feed = polled.feed;
+        if (!polled.sinceLoaded) {
+            String since = CouchdbRiver.persistedSeq(river.loadCheckpoint(feed.db()), feed);
+            synchronized (river) {
+                // keep the seq of this feed in the checkpoint until it moves
+                if (feed.checkpointSeq == null) {
+                    feed.checkpointSeq = since;
+                    feed.savedSeq = since;
+                }
+            }
+            if (since == null && initialLoad) {
+                since = river.newInitialLoader(feed).load();
+            }
+            polled.since = since;
+            polled.sinceLoaded = true;
+        }
+
+        String path = river.changesPath(feed, "normal", pageSize, polled.since);
+        long start = System.nanoTime();
+        ChangeParser.Page page = river.fetchPage(feed, path);
+        long took = System.nanoTime() - start;
+        stats.pages.inc(took);
+        if (logger.isTraceEnabled()) {
+            logger.trace("read [{}] changes from [{}] in [{}], last_seq [{}]", page.results().size(), feed,
+                    TimeValue.timeValueNanos(took), page.lastSeq());
+        }
+        for (BytesReference result : page.results()) {
+            river.handOver(feed, result);
+        }
+        if (page.lastSeq() != null) {
+            // the checkpoint can move up to last_seq, even if the filter left no change in the page
+            feed.tracker().register(page.lastSeq()).complete();
+            polled.since = river.seqToString(page.lastSeq());
+        }
+        return page.results().size() >= pageSize ? 0 : -1;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the whole database from <code>_all_docs</code> when the river starts without any <code>_seq</code>. The doc
+ * ids are split in ranges which are paged through in parallel, and the documents go through the indexer as changes
+ * without seq. The <code>update_seq</code> of the database is read first, so the <code>_changes</code> feed can
+ * start from there once the load is done.
+ */
+final class InitialLoader {
+
+    private final CouchdbRiver river;
+    private final ESLogger logger;
+    private final CouchdbHttpClient httpClient;
+    private final CouchdbRiverStats stats;
+    private final Feed feed;
+    private final int partitions;
+    private final int pageSize;
+
+    InitialLoader(CouchdbRiver river, ESLogger logger, CouchdbHttpClient httpClient, CouchdbRiverStats stats, Feed feed,
+                  int partitions, int pageSize) {
+        this.river = river;
+        this.logger = logger;
+        this.httpClient = httpClient;
+        this.stats = stats;
+        this.feed = feed;
+        this.partitions = partitions;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Loads the database, and returns the seq to follow its feed from once it is loaded.
+     */
+    String load() throws Exception {
+        Map<String, Object> dbInfo = httpClient.getJson(feed.path());
+        Object updateSeq = dbInfo.get("update_seq");
+        long docCount = XContentMapValues.nodeLongValue(dbInfo.get("doc_count"), 0);
+        List<String> boundaries = boundaries(docCount);
+        logger.info("starting initial load of [{}] documents from [{}] in [{}] partitions, update_seq [{}]",
+                docCount, feed.db(), boundaries.size() + 1, updateSeq);
+
+        Thread[] threads = new Thread[boundaries.size() + 1];
+        for (int i = 0; i < threads.length; i++) {
+            String startKey = i == 0 ? null : boundaries.get(i - 1);
+            String endKey = i == boundaries.size() ? null : boundaries.get(i);
+            threads[i] = river.newThread("couchdb_river_initial_load",
+                    new Partition(river, logger, httpClient, stats, feed, pageSize, startKey, endKey));
+        }
+        river.initialLoadStarted(threads);
+        try {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            river.initialLoadDone(threads);
+        }
+        if (river.isClosed()) {
+            throw new InterruptedException();
+        }
+
+        logger.info("initial load of [{}] done, following changes from [{}]", feed.db(), updateSeq);
+        // the checkpoint moves to update_seq once all the loaded documents are indexed
+        if (updateSeq != null) {
+            feed.tracker().register(updateSeq).complete();
+            return river.seqToString(updateSeq);
+        }
+        return null;
+    }
+
+    /**
+     * Picks the doc ids splitting the database in partitions of about the same size.
+     */
+    @SuppressWarnings({"unchecked"})
+    private List<String> boundaries(long docCount) throws IOException {
+        List<String> boundaries = new ArrayList<String>();
+        if (partitions <= 1 || docCount <= pageSize) {
+            return boundaries;
+        }
+        for (int i = 1; i < partitions; i++) {
+            long skip = docCount * i / partitions;
+            Map<String, Object> page = httpClient.getJson(feed.path() + "/_all_docs?limit=1&skip=" + skip);
+            List<Object> rows = (List<Object>) page.get("rows");
+            if (rows == null || rows.isEmpty()) {
+                break;
+            }
+            String id = ((Map<String, Object>) rows.get(0)).get("id").toString();
+            if (boundaries.isEmpty() || !boundaries.get(boundaries.size() - 1).equals(id)) {
+                boundaries.add(id);
+            }
+        }
+        return boundaries;
+    }
+
+    /**
+     * Pages through a range of <code>_all_docs</code>, from <code>startKey</code> included to <code>endKey</code>
+     * excluded.
+     */
+    static final class Partition implements Runnable {
+
+        private final CouchdbRiver river;
+        private final ESLogger logger;
+        private final CouchdbHttpClient httpClient;
+        private final CouchdbRiverStats stats;
+        private final Feed feed;
+        private final int pageSize;
+        private final String startKey;
+        private final String endKey;
+        private String lastId;
+        // the rows read after lastId that could not be parsed, skipped by the next page
+        private int skipped;
+
+        Partition(CouchdbRiver river, ESLogger logger, CouchdbHttpClient httpClient, CouchdbRiverStats stats, Feed feed,
+                  int pageSize, String startKey, String endKey) {
+            this.river = river;
+            this.logger = logger;
+            this.httpClient = httpClient;
+            this.stats = stats;
+            this.feed = feed;
+            this.pageSize = pageSize;
+            this.startKey = startKey;
+            this.endKey = endKey;
+        }
+
+        @Override
+        public void run() {
+            long loaded = 0;
+            while (true) {
+                if (river.isClosed()) {
+                    return;
+                }
+                String path = path();
+                int rows;
+                try {
+                    rows = readPage(path);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    if (river.isClosed()) {
+                        return;
+                    }
+                    logger.warn("failed to read [{}], throttling....", e, path);
+                    try {
+                        Thread.sleep(5000);
+                    } catch (InterruptedException e1) {
+                        return;
+                    }
+                    continue;
+                }
+                loaded += rows;
+                if (rows < pageSize) {
+                    logger.debug("loaded [{}] documents from [{}] to [{}]", loaded, startKey, endKey);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The path of the next page, after the last id read so far.
+         */
+        String path() {
+            StringBuilder path = new StringBuilder(feed.path()).append("/_all_docs?include_docs=true&limit=").append(pageSize);
+            if (lastId != null) {
+                path.append("&startkey=").append(CouchdbRiver.urlEncode(CouchdbRiver.jsonString(lastId)))
+                        .append("&skip=").append(skipped + 1);
+            } else {
+                if (startKey != null) {
+                    path.append("&startkey=").append(CouchdbRiver.urlEncode(CouchdbRiver.jsonString(startKey)));
+                }
+                if (skipped > 0) {
+                    path.append("&skip=").append(skipped);
+                }
+            }
+            if (endKey != null) {
+                path.append("&endkey=").append(CouchdbRiver.urlEncode(CouchdbRiver.jsonString(endKey))).append("&inclusive_end=false");
+            }
+            return path.toString();
+        }
+
+        /**
+         * Reads a page of <code>_all_docs</code>, and hands its documents to the indexer. Returns the number of rows.
+         */
+        private int readPage(String path) throws IOException, InterruptedException {
+            ChangeParser.Page page;
+            InputStream is = httpClient.get(path);
+            try {
+                BytesStreamOutput out = new BytesStreamOutput();
+                Streams.copy(is, out);
+                page = ChangeParser.parseRows(out.bytes().toBytesArray());
+            } finally {
+                IOUtils.closeWhileHandlingException(is);
+            }
+            // a row is a change without seq, its doc is indexed as is
+            for (BytesReference row : page.results()) {
+                Change change = river.parseLine(feed.db(), row);
+                if (change == null || change.id() == null) {
+                    skipped++;
+                    continue;
+                }
+                lastId = change.id();
+                skipped = 0;
+                if (change.doc() != null) {
+                    stats.read.inc();
+                    // we put here, so we block if there is no space to add
+                    river.enqueue(new PendingChange(feed, change, feed.tracker().register(null)));
+                }
+            }
+            return page.results().size();
+        }
+    }
+}
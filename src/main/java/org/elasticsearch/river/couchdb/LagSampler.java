@@ -0,0 +1,116 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples the replication lag every <code>lag_interval</code>: reads the <code>update_seq</code> of the database,
+ * or of each shard in clustered mode, and compares it with the seq the feed acknowledged.
+ */
+final class LagSampler implements Runnable {
+
+    private final CouchdbRiver river;
+    private final ESLogger logger;
+    private final CouchdbHttpClient httpClient;
+    private final ReplicationLag replicationLag;
+    private final List<Feed> feeds;
+    // the feeds of the databases, with several databases
+    private final Map<String, PolledFeed> polledByDb;
+    private final TimeValue interval;
+
+    LagSampler(CouchdbRiver river, ESLogger logger, CouchdbHttpClient httpClient, ReplicationLag replicationLag,
+               List<Feed> feeds, Map<String, PolledFeed> polledByDb, TimeValue interval) {
+        this.river = river;
+        this.logger = logger;
+        this.httpClient = httpClient;
+        this.replicationLag = replicationLag;
+        this.feeds = feeds;
+        this.polledByDb = polledByDb;
+        this.interval = interval;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(interval.millis());
+            } catch (InterruptedException e) {
+                // checked below
+            }
+            if (river.isClosed()) {
+                return;
+            }
+            try {
+                sample();
+            } catch (Exception e) {
+                if (river.isClosed()) {
+                    return;
+                }
+                logger.debug("failed to sample the replication lag", e);
+            }
+        }
+    }
+
+    void sample() throws IOException {
+        if (feeds.isEmpty()) {
+            return;
+        }
+        long total = 0;
+        boolean exact = true;
+        for (Feed feed : feeds) {
+            PolledFeed polled = polledByDb.get(feed.db());
+            if (polled != null && polled.isIdle() && feed.tracker().pending() == 0) {
+                // caught up with its last update, and not worth a request
+                feed.lag = 0;
+                continue;
+            }
+            Map<String, Object> info = httpClient.getJson(feed.host(), feed.port(), feed.path());
+            Object updateSeqValue = info.get("update_seq");
+            if (updateSeqValue == null) {
+                continue;
+            }
+            String updateSeq = river.seqToString(updateSeqValue);
+            String acknowledged;
+            synchronized (river) {
+                acknowledged = feed.checkpointSeq;
+            }
+            long lag = ReplicationLag.distance(acknowledged, updateSeq);
+            feed.updateSeq = updateSeq;
+            feed.lag = lag;
+            if (lag < 0) {
+                // can't be compared, the total is a lower bound
+                exact = false;
+                continue;
+            }
+            total += lag;
+            exact &= ReplicationLag.isExact(updateSeq) && ReplicationLag.isExact(acknowledged);
+        }
+        replicationLag.sample(total, exact, System.nanoTime());
+        if (logger.isTraceEnabled()) {
+            logger.trace("[{}] changes behind, catching up at [{}] changes/s", total, replicationLag.rate());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the <code>_changes</code> feed in <code>normal</code> or <code>longpoll</code> mode, one page of
+ * <code>limit</code> changes at a time. The size of the pages adapts to the time it takes to read them, and
+ * a failed page is requested again from the same seq.
+ */
+final class PageFetcher implements Runnable {
+
+    private final CouchdbRiver river;
+    private final ESLogger logger;
+    private final CouchdbRiverStats stats;
+    private final Feed feed;
+    private final BlockingQueue<ChangeParser.Page> pages;
+    private final String feedType;
+    private final TimeValue heartbeat;
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final TimeValue targetPageLatency;
+    private String since;
+    private int limit;
+
+    PageFetcher(CouchdbRiver river, ESLogger logger, CouchdbRiverStats stats, Feed feed, String since,
+                BlockingQueue<ChangeParser.Page> pages, String feedType, TimeValue heartbeat,
+                int pageSize, int minPageSize, int maxPageSize, TimeValue targetPageLatency) {
+        this.river = river;
+        this.logger = logger;
+        this.stats = stats;
+        this.feed = feed;
+        this.since = since;
+        this.pages = pages;
+        this.feedType = feedType;
+        this.heartbeat = heartbeat;
+        this.limit = pageSize;
+        this.minPageSize = minPageSize;
+        this.maxPageSize = maxPageSize;
+        this.targetPageLatency = targetPageLatency;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (river.isClosed()) {
+                return;
+            }
+            String path = path();
+            ChangeParser.Page page;
+            long start = System.nanoTime();
+            try {
+                page = fetch(path);
+            } catch (Exception e) {
+                if (river.isClosed()) {
+                    return;
+                }
+                logger.warn("failed to read [{}] from [{}], throttling....", e, path, feed);
+                stats.reconnects.inc();
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e1) {
+                    // checked on the next iteration
+                }
+                if (e instanceof IOException && river.failOver(feed)) {
+                    since = null;
+                }
+                continue;
+            }
+            long took = System.nanoTime() - start;
+            stats.pages.inc(took);
+            boolean full = page.results().size() >= limit;
+            if (logger.isTraceEnabled()) {
+                logger.trace("read [{}] changes from [{}] in [{}], last_seq [{}]", page.results().size(), feed,
+                        TimeValue.timeValueNanos(took), page.lastSeq());
+            }
+            if (full) {
+                adaptLimit(took);
+            }
+
+            try {
+                // we put here, so we block until the previous page has been handed to the indexer
+                pages.put(page);
+                if (page.lastSeq() != null) {
+                    since = river.seqToString(page.lastSeq());
+                }
+                if (!full && "normal".equals(feedType)) {
+                    // caught up, wait a bit before asking for more
+                    Thread.sleep(heartbeat.millis());
+                }
+            } catch (InterruptedException e) {
+                if (river.isClosed()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private String path() {
+        return river.changesPath(feed, feedType, limit, since);
+    }
+
+    private ChangeParser.Page fetch(String path) throws IOException {
+        return river.fetchPage(feed, path);
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    /**
+     * Grows the pages while they are read faster than <code>target_page_latency</code>, and shrinks them
+     * when they are slower.
+     */
+    void adaptLimit(long took) {
+        long target = targetPageLatency.nanos();
+        int newLimit = limit;
+        if (took > target) {
+            newLimit = Math.max(minPageSize, limit / 2);
+        } else if (took < target / 2) {
+            newLimit = Math.min(maxPageSize, limit * 2);
+        }
+        if (newLimit != limit) {
+            logger.debug("page of [{}] changes from [{}] read in [{}], now reading [{}] changes at a time", limit, feed,
+                    TimeValue.timeValueNanos(took), newLimit);
+            limit = newLimit;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A feed read by the feed readers, due for its next read once its delay expires. With <code>db_updates</code>, a
+ * feed that caught up goes idle, out of the queue, until its database is updated.
+ */
+final class PolledFeed implements Delayed {
+
+    final Feed feed;
+    // the seq to read the feed from, once loaded from the checkpoint
+    boolean sinceLoaded;
+    String since;
+    private volatile long deadline = System.nanoTime();
+    private boolean idle;
+    private boolean updated;
+    private boolean stopped;
+
+    PolledFeed(Feed feed) {
+        this.feed = feed;
+    }
+
+    void delay(long millis) {
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Marks the database as updated. Returns <code>true</code> if the feed was idle, and has to be queued again.
+     */
+    synchronized boolean update() {
+        if (stopped) {
+            return false;
+        }
+        if (idle) {
+            idle = false;
+            delay(0);
+            return true;
+        }
+        // read again once the current read is done
+        updated = true;
+        return false;
+    }
+
+    /**
+     * Called before reading the feed, which brings whatever updates were reported so far.
+     */
+    synchronized void reading() {
+        updated = false;
+    }
+
+    /**
+     * Lets the feed go idle, unless its database was updated while it was read. Returns <code>true</code> if it
+     * went idle.
+     */
+    synchronized boolean idle() {
+        if (updated) {
+            updated = false;
+            return false;
+        }
+        idle = true;
+        return true;
+    }
+
+    synchronized boolean isIdle() {
+        return idle;
+    }
+
+    synchronized void stop() {
+        stopped = true;
+    }
+
+    synchronized boolean stopped() {
+        return stopped;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        long diff = getDelay(TimeUnit.NANOSECONDS) - o.getDelay(TimeUnit.NANOSECONDS);
+        return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+    }
+}
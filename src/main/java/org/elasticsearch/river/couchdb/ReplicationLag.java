@@ -0,0 +1,136 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+/**
+ * How far behind couchdb a river is, in changes, sampled from time to time, along with the rate it catches up at.
+ * <p/>
+ * The lag is the difference between the <code>update_seq</code> of the database and the seq acknowledged by the river.
+ * With plain integer seqs, it is the exact number of changes left. Bigcouch and couchdb 2 seqs
+ * (<code>[12,"g1AAA..."]</code> or <code>"12-g1AAA..."</code>) start with the sum of the seqs of the shards, the
+ * difference of which is an estimate.
+ */
+final class ReplicationLag {
+
+    // weight of the last sample in the catch up rate
+    private static final double ALPHA = 0.3;
+
+    private long lag = -1;
+    private boolean exact;
+    private long sampledAt;
+    private double rate = Double.NaN;
+
+    /**
+     * Records the lag observed at the given time, in nanoseconds.
+     */
+    public synchronized void sample(long lag, boolean exact, long nanos) {
+        if (this.lag >= 0 && nanos > sampledAt) {
+            double observed = (this.lag - lag) * 1000000000.0 / (nanos - sampledAt);
+            rate = Double.isNaN(rate) ? observed : rate + ALPHA * (observed - rate);
+        }
+        this.lag = lag;
+        this.exact = exact;
+        this.sampledAt = nanos;
+    }
+
+    /**
+     * The number of changes the river is behind, <code>-1</code> if it hasn't been sampled yet.
+     */
+    public synchronized long lag() {
+        return lag;
+    }
+
+    public synchronized boolean exact() {
+        return exact;
+    }
+
+    /**
+     * The number of changes the lag shrinks by per second, negative when the river falls behind. <code>NaN</code>
+     * until two samples have been taken.
+     */
+    public synchronized double rate() {
+        return rate;
+    }
+
+    /**
+     * The time it should take to catch up, in milliseconds, <code>-1</code> if the river is not catching up.
+     */
+    public synchronized long etaMillis() {
+        if (lag == 0) {
+            return 0;
+        }
+        if (lag < 0 || Double.isNaN(rate) || rate <= 0) {
+            return -1;
+        }
+        return (long) (lag / rate * 1000);
+    }
+
+    /**
+     * The number of changes between two seqs, as stored in <code>_seq</code>, <code>0</code> if <code>to</code> is
+     * not after <code>from</code>, <code>-1</code> if they can't be compared.
+     */
+    static long distance(String from, String to) {
+        long fromNumber = from == null ? 0 : number(from);
+        long toNumber = number(to);
+        if (fromNumber < 0 || toNumber < 0) {
+            return -1;
+        }
+        return Math.max(0, toNumber - fromNumber);
+    }
+
+    /**
+     * Whether a seq is a plain integer, which tells the exact number of changes before it.
+     */
+    static boolean isExact(String seq) {
+        if (seq == null) {
+            return true;
+        }
+        if (seq.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < seq.length(); i++) {
+            if (!Character.isDigit(seq.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number a seq starts with, <code>-1</code> if there is none.
+     */
+    private static long number(String seq) {
+        if (seq == null) {
+            return -1;
+        }
+        int start = 0;
+        while (start < seq.length() && (seq.charAt(start) == '[' || seq.charAt(start) == '"' || seq.charAt(start) == ' ')) {
+            start++;
+        }
+        int end = start;
+        while (end < seq.length() && Character.isDigit(seq.charAt(end))) {
+            end++;
+        }
+        if (end == start || end - start > 18) {
+            return -1;
+        }
+        return Long.parseLong(seq.substring(start, end));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestResponse;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.rest.action.support.RestBuilderListener;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rest actions of the couchdb rivers, under <code>/_river/{name}/_couchdb</code>. They are sent to all the nodes, so
+ * they reach a river whatever the node running it.
+ */
+public class RestCouchdbRiverAction extends BaseRestHandler {
+
+    private final TransportCouchdbRiverAction riverAction;
+
+    @Inject
+    public RestCouchdbRiverAction(Settings settings, RestController controller, Client client,
+                                  TransportCouchdbRiverAction riverAction) {
+        super(settings, controller, client);
+        this.riverAction = riverAction;
+        controller.registerHandler(RestRequest.Method.GET, "/_river/_couchdb/stats", this);
+        controller.registerHandler(RestRequest.Method.GET, "/_river/{name}/_couchdb/stats", this);
+        controller.registerHandler(RestRequest.Method.POST, "/_river/{name}/_couchdb/_replay_dead_letters", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel, Client client) throws Exception {
+        final String name = request.param("name");
+        CouchdbRiverRequest riverRequest = new CouchdbRiverRequest(name).human(request.paramAsBoolean("human", false));
+        if (request.method() == RestRequest.Method.POST) {
+            riverRequest.replay(request.paramAsInt("batch_size", 100));
+        }
+        riverAction.execute(riverRequest, new RestBuilderListener<CouchdbRiverResponse>(channel) {
+            @Override
+            public RestResponse buildResponse(CouchdbRiverResponse response, XContentBuilder builder) throws Exception {
+                if (name == null) {
+                    // all the rivers of the cluster
+                    Map<String, BytesReference> rivers = new TreeMap<String, BytesReference>();
+                    for (CouchdbRiverNodeResponse node : response.getNodes()) {
+                        rivers.putAll(node.stats());
+                    }
+                    builder.startObject().startObject("rivers");
+                    for (Map.Entry<String, BytesReference> entry : rivers.entrySet()) {
+                        builder.startObject(entry.getKey());
+                        fields(builder, entry.getValue());
+                        builder.endObject();
+                    }
+                    builder.endObject().endObject();
+                    return new BytesRestResponse(RestStatus.OK, builder);
+                }
+                for (CouchdbRiverNodeResponse node : response.getNodes()) {
+                    if (node.stats().containsKey(name)) {
+                        builder.startObject().field("river", name).field("node", node.getNode().id());
+                        fields(builder, node.stats().get(name));
+                        builder.endObject();
+                        return new BytesRestResponse(RestStatus.OK, builder);
+                    }
+                    if (node.replay() == CouchdbRiverNodeResponse.Replay.NO_DEAD_LETTER_INDEX) {
+                        return error(builder, RestStatus.BAD_REQUEST, "couchdb river [" + name + "] has no dead_letter_index");
+                    }
+                    if (node.replay() == CouchdbRiverNodeResponse.Replay.ALREADY_REPLAYING) {
+                        return error(builder, RestStatus.CONFLICT, "dead letters of couchdb river [" + name + "] are already being replayed");
+                    }
+                    if (node.replay() == CouchdbRiverNodeResponse.Replay.STARTED) {
+                        builder.startObject().field("acknowledged", true).endObject();
+                        return new BytesRestResponse(RestStatus.OK, builder);
+                    }
+                }
+                return error(builder, RestStatus.NOT_FOUND, "couchdb river [" + name + "] is not running");
+            }
+        });
+    }
+
+    /**
+     * Copies the fields of the statistics rendered by a node.
+     */
+    private static void fields(XContentBuilder builder, BytesReference stats) throws IOException {
+        for (Map.Entry<String, Object> field : XContentHelper.convertToMap(stats, true).v2().entrySet()) {
+            builder.field(field.getKey(), field.getValue());
+        }
+    }
+
+    private static RestResponse error(XContentBuilder builder, RestStatus status, String error) throws IOException {
+        builder.startObject().field("error", error).field("status", status.getStatus()).endObject();
+        return new BytesRestResponse(status, builder);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps track of the changes handed to the indexers, in feed order, so that the checkpoint only
+ * moves forward once all the changes before it have been completed, whatever the order they
+ * complete in.
+ */
+final class SequenceTracker {
+
+    /**
+     * A change registered in the tracker.
+     */
+    static final class Ticket {
+        private final SequenceTracker tracker;
+        private final Object seq;
+        private boolean done;
+
+        private Ticket(SequenceTracker tracker, Object seq) {
+            this.tracker = tracker;
+            this.seq = seq;
+        }
+
+        public Object seq() {
+            return seq;
+        }
+
+        /**
+         * The database the change comes from.
+         */
+        public String db() {
+            return tracker.db;
+        }
+
+        /**
+         * Marks the change as completed in its tracker.
+         */
+        public void complete() {
+            tracker.complete(this);
+        }
+    }
+
+    private final String db;
+    private final ArrayDeque<Ticket> pending = new ArrayDeque<Ticket>();
+    private long advanced;
+
+    /**
+     * @param db the database of the changes
+     */
+    SequenceTracker(String db) {
+        this.db = db;
+    }
+
+    /**
+     * Registers the next change of the feed. Changes must be registered in feed order.
+     */
+    public synchronized Ticket register(Object seq) {
+        Ticket ticket = new Ticket(this, seq);
+        pending.add(ticket);
+        return ticket;
+    }
+
+    public synchronized void complete(Ticket ticket) {
+        ticket.done = true;
+    }
+
+    /**
+     * Drops the completed changes at the head of the feed, and returns the seq of the last one,
+     * or <code>null</code> if the checkpoint did not move.
+     */
+    public synchronized Object advance() {
+        Object seq = null;
+        while (!pending.isEmpty() && pending.peek().done) {
+            Ticket ticket = pending.poll();
+            advanced++;
+            if (ticket.seq != null) {
+                seq = ticket.seq;
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * The total number of changes the checkpoint moved over.
+     */
+    public synchronized long advanced() {
+        return advanced;
+    }
+
+    /**
+     * The number of changes registered and not yet checkpointed.
+     */
+    public synchronized int pending() {
+        return pending.size();
+    }
+}
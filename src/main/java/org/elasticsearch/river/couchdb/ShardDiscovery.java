@@ -0,0 +1,165 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds the shards of the database through the node local interface of the cluster, and starts a feed for
+ * each shard range. Shard files are named <code>shards/&lt;range&gt;/&lt;db&gt;.&lt;suffix&gt;</code>, and
+ * each range is read from the first node holding a copy of it, or the node whose copy the checkpoint comes from.
+ */
+final class ShardDiscovery implements Runnable {
+
+    private final CouchdbRiver river;
+    private final ESLogger logger;
+    private final CouchdbHttpClient httpClient;
+    private final String db;
+    private final List<String> nodeLocalHosts;
+    private final int nodeLocalPort;
+
+    ShardDiscovery(CouchdbRiver river, ESLogger logger, CouchdbHttpClient httpClient, String db,
+                   List<String> nodeLocalHosts, int nodeLocalPort) {
+        this.river = river;
+        this.logger = logger;
+        this.httpClient = httpClient;
+        this.db = db;
+        this.nodeLocalHosts = nodeLocalHosts;
+        this.nodeLocalPort = nodeLocalPort;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            if (river.isClosed()) {
+                return;
+            }
+            try {
+                Map<String, Feed> shards = discover();
+                if (!shards.isEmpty()) {
+                    // the seq of every shard is kept in the checkpoint, even before its feed reads it
+                    Map<String, Object> couchdbState = river.loadCheckpoint(db);
+                    for (Feed feed : shards.values()) {
+                        String host = CouchdbRiver.persistedHost(couchdbState, feed);
+                        if (host == null || feed.useCopy(host)) {
+                            feed.checkpointSeq = CouchdbRiver.persistedSeq(couchdbState, feed);
+                        } else {
+                            // seqs are local to each copy, the other copies are read from their start
+                            logger.warn("copy of shard [{}] of [{}] on [{}] is gone, reading it again from {}", feed.shard(),
+                                    db, host, feed.host());
+                        }
+                    }
+                    for (Feed feed : shards.values()) {
+                        logger.info("following shard [{}] of [{}] on [{}]:[{}], copies on {}", feed.shard(), db, feed.host(),
+                                feed.port(), feed.hosts());
+                        river.startFeed(feed);
+                    }
+                    return;
+                }
+                logger.warn("no shard found for [{}] on {}, throttling....", db, nodeLocalHosts);
+            } catch (Exception e) {
+                if (river.isClosed()) {
+                    return;
+                }
+                logger.warn("failed to list the shards of [{}], throttling....", e, db);
+            }
+            try {
+                Thread.sleep(5000);
+            } catch (InterruptedException e) {
+                // checked on the next iteration
+            }
+        }
+    }
+
+    private Map<String, Feed> discover() throws IOException {
+        Map<String, Feed> shards = new TreeMap<String, Feed>();
+        for (String host : nodeLocalHosts) {
+            InputStream is = httpClient.get(host, nodeLocalPort, "/_all_dbs");
+            List<Object> dbs;
+            try {
+                XContentParser parser = XContentFactory.xContent(XContentType.JSON).createParser(is);
+                try {
+                    parser.nextToken();
+                    dbs = parser.list();
+                } finally {
+                    parser.close();
+                }
+            } finally {
+                IOUtils.closeWhileHandlingException(is);
+            }
+            addShards(shards, db, host, nodeLocalPort, dbs);
+        }
+        return shards;
+    }
+
+    /**
+     * Adds a feed for each shard of the database in the <code>_all_dbs</code> of a node, or adds the node to the
+     * copies of the feed when a node listed before holds a copy of it already.
+     */
+    static void addShards(Map<String, Feed> shards, String db, String host, int port, List<Object> dbs) {
+        String prefix = "shards/";
+        String dbPrefix = "/" + db + ".";
+        for (Object shardDb : dbs) {
+            String name = shardDb.toString();
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            int index = name.indexOf(dbPrefix, prefix.length());
+            if (index < 0 || !isNumber(name.substring(index + dbPrefix.length()))) {
+                continue;
+            }
+            String range = name.substring(prefix.length(), index);
+            if (range.indexOf('/') >= 0) {
+                continue;
+            }
+            Feed feed = shards.get(range);
+            if (feed == null) {
+                shards.put(range, new Feed(db, range, host, port, "/" + CouchdbRiver.urlEncode(name)));
+            } else if (!feed.hosts().contains(host)) {
+                List<String> hosts = new ArrayList<String>(feed.hosts());
+                hosts.add(host);
+                shards.put(range, new Feed(db, range, hosts, port, feed.path()));
+            }
+        }
+    }
+
+    private static boolean isNumber(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sends a {@link CouchdbRiverRequest} to all the nodes, so that the rest actions reach a river whatever the node
+ * running it. Each node answers for the rivers of its {@link CouchdbRiverRegistry}.
+ */
+public class TransportCouchdbRiverAction extends TransportNodesAction<CouchdbRiverRequest, CouchdbRiverResponse,
+        TransportCouchdbRiverAction.NodeRequest, CouchdbRiverNodeResponse> {
+
+    public static final String NAME = "cluster:admin/river/couchdb";
+
+    private final CouchdbRiverRegistry registry;
+
+    @Inject
+    public TransportCouchdbRiverAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+                                       ClusterService clusterService, TransportService transportService,
+                                       ActionFilters actionFilters, CouchdbRiverRegistry registry) {
+        super(settings, NAME, clusterName, threadPool, clusterService, transportService, actionFilters,
+                CouchdbRiverRequest.class, NodeRequest.class, ThreadPool.Names.MANAGEMENT);
+        this.registry = registry;
+    }
+
+    @Override
+    protected CouchdbRiverResponse newResponse(CouchdbRiverRequest request, AtomicReferenceArray responses) {
+        List<CouchdbRiverNodeResponse> nodes = new ArrayList<CouchdbRiverNodeResponse>();
+        for (int i = 0; i < responses.length(); i++) {
+            Object response = responses.get(i);
+            if (response instanceof CouchdbRiverNodeResponse) {
+                nodes.add((CouchdbRiverNodeResponse) response);
+            }
+        }
+        return new CouchdbRiverResponse(clusterName, nodes.toArray(new CouchdbRiverNodeResponse[nodes.size()]));
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, CouchdbRiverRequest request) {
+        return new NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected CouchdbRiverNodeResponse newNodeResponse() {
+        return new CouchdbRiverNodeResponse();
+    }
+
+    @Override
+    protected CouchdbRiverNodeResponse nodeOperation(NodeRequest nodeRequest) {
+        CouchdbRiverRequest request = nodeRequest.request;
+        Map<String, CouchdbRiver> rivers;
+        if (request.river() == null) {
+            rivers = registry.all();
+        } else {
+            rivers = new TreeMap<String, CouchdbRiver>();
+            CouchdbRiver river = registry.get(request.river());
+            if (river != null) {
+                rivers.put(request.river(), river);
+            }
+        }
+
+        Map<String, BytesReference> stats = new TreeMap<String, BytesReference>();
+        CouchdbRiverNodeResponse.Replay replay = null;
+        for (Map.Entry<String, CouchdbRiver> entry : rivers.entrySet()) {
+            CouchdbRiver river = entry.getValue();
+            if (!request.replay()) {
+                stats.put(entry.getKey(), stats(river, request.human()));
+            } else if (river.deadLetterIndex() == null) {
+                replay = CouchdbRiverNodeResponse.Replay.NO_DEAD_LETTER_INDEX;
+            } else if (!river.replayDeadLetters(request.batchSize())) {
+                replay = CouchdbRiverNodeResponse.Replay.ALREADY_REPLAYING;
+            } else {
+                replay = CouchdbRiverNodeResponse.Replay.STARTED;
+            }
+        }
+        return new CouchdbRiverNodeResponse(clusterService.localNode(), stats, replay);
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    private BytesReference stats(CouchdbRiver river, boolean human) {
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().humanReadable(human);
+            builder.startObject();
+            river.stats(builder);
+            builder.endObject();
+            return builder.bytes();
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to build the statistics of couchdb river", e);
+        }
+    }
+
+    static class NodeRequest extends BaseNodeRequest {
+
+        CouchdbRiverRequest request;
+
+        NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, CouchdbRiverRequest request) {
+            super(request, nodeId);
+            this.request = request;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new CouchdbRiverRequest();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+}
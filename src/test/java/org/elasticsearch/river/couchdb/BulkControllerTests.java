@@ -0,0 +1,161 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+
+public class BulkControllerTests extends ElasticsearchTestCase {
+
+    private static final long TARGET = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testInitialBounds() {
+        assertThat(new BulkController(1000, 10, 100, 1, 4, TARGET).actions(), equalTo(100));
+        assertThat(new BulkController(1, 10, 100, 1, 4, TARGET).actions(), equalTo(10));
+        BulkController controller = new BulkController(50, 10, 100, 2, 4, TARGET);
+        assertThat(controller.actions(), equalTo(50));
+        assertThat(controller.concurrency(), equalTo(2));
+    }
+
+    @Test
+    public void testAdded() {
+        BulkController controller = new BulkController(3, 1, 100, 1, 1, TARGET);
+        assertThat(controller.added(), is(false));
+        assertThat(controller.added(), is(false));
+        assertThat(controller.added(), is(true));
+        // a bulk takes all the actions added so far
+        controller.beforeBulk();
+        assertThat(controller.added(), is(false));
+    }
+
+    @Test
+    public void testFastBulksGrow() {
+        BulkController controller = new BulkController(2, 1, 100, 1, 4, TARGET);
+        bulk(controller, TARGET / 4, false);
+        assertThat(controller.actions(), equalTo(3));
+        bulk(controller, TARGET / 4, false);
+        assertThat(controller.actions(), equalTo(4));
+        for (int i = 0; i < 100; i++) {
+            bulk(controller, TARGET / 4, false);
+        }
+        assertThat(controller.actions(), equalTo(100));
+    }
+
+    @Test
+    public void testSlowBulksShrink() {
+        BulkController controller = new BulkController(100, 10, 100, 1, 4, TARGET);
+        bulk(controller, TARGET * 2, false);
+        assertThat(controller.actions(), equalTo(75));
+        for (int i = 0; i < 100; i++) {
+            bulk(controller, TARGET * 2, false);
+        }
+        assertThat(controller.actions(), equalTo(10));
+    }
+
+    @Test
+    public void testBulksWithinTargetKeepTheirSize() {
+        BulkController controller = new BulkController(50, 10, 100, 1, 4, TARGET);
+        for (int i = 0; i < 20; i++) {
+            bulk(controller, TARGET * 3 / 4, false);
+        }
+        assertThat(controller.actions(), equalTo(50));
+    }
+
+    @Test
+    public void testConcurrencyGrowsAfterSuccesses() {
+        BulkController controller = new BulkController(50, 10, 100, 1, 3, TARGET);
+        for (int i = 0; i < 9; i++) {
+            bulk(controller, TARGET, false);
+        }
+        assertThat(controller.concurrency(), equalTo(1));
+        bulk(controller, TARGET, false);
+        assertThat(controller.concurrency(), equalTo(2));
+        for (int i = 0; i < 100; i++) {
+            bulk(controller, TARGET, false);
+        }
+        assertThat(controller.concurrency(), equalTo(3));
+    }
+
+    @Test
+    public void testSlowBulksDoNotGrowConcurrency() {
+        BulkController controller = new BulkController(50, 10, 100, 1, 3, TARGET);
+        for (int i = 0; i < 30; i++) {
+            bulk(controller, TARGET + 1, false);
+        }
+        assertThat(controller.concurrency(), equalTo(1));
+    }
+
+    @Test
+    public void testRejectionHalves() {
+        BulkController controller = new BulkController(80, 10, 100, 1, 8, TARGET);
+        for (int i = 0; i < 30; i++) {
+            bulk(controller, TARGET, false);
+        }
+        assertThat(controller.concurrency(), equalTo(4));
+        bulk(controller, TARGET, true);
+        assertThat(controller.actions(), equalTo(40));
+        assertThat(controller.concurrency(), equalTo(2));
+        // successes count again from the rejection
+        for (int i = 0; i < 9; i++) {
+            bulk(controller, TARGET, false);
+        }
+        assertThat(controller.concurrency(), equalTo(2));
+        for (int i = 0; i < 10; i++) {
+            bulk(controller, TARGET, true);
+        }
+        assertThat(controller.actions(), equalTo(10));
+        assertThat(controller.concurrency(), equalTo(1));
+    }
+
+    @Test
+    public void testAwaitSlot() throws Exception {
+        final BulkController controller = new BulkController(50, 10, 100, 1, 1, TARGET);
+        controller.awaitSlot();
+        controller.beforeBulk();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    controller.awaitSlot();
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        waiter.start();
+        assertThat(acquired.await(100, TimeUnit.MILLISECONDS), is(false));
+        controller.afterBulk(TARGET, false);
+        assertThat(acquired.await(10, TimeUnit.SECONDS), is(true));
+        waiter.join();
+    }
+
+    private static void bulk(BulkController controller, long tookNanos, boolean rejected) {
+        controller.beforeBulk();
+        controller.afterBulk(tookNanos, rejected);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+
+public class BulkRetriesTests extends ElasticsearchTestCase {
+
+    @Test
+    public void testBackoff() {
+        long initial = TimeUnit.MILLISECONDS.toNanos(between(1, 100));
+        long max = initial * between(1, 100);
+        BulkRetries retries = new BulkRetries(10, initial, max);
+        for (int attempt = 1; attempt < 70; attempt++) {
+            long expected = attempt <= 30 ? Math.min(max, initial << (attempt - 1)) : max;
+            for (int i = 0; i < 10; i++) {
+                long backoff = retries.backoff(attempt);
+                assertThat(backoff, greaterThanOrEqualTo(expected / 2));
+                assertThat(backoff, lessThanOrEqualTo(expected));
+            }
+        }
+    }
+
+    @Test
+    public void testBackoffDoesNotOverflow() {
+        BulkRetries retries = new BulkRetries(100, Long.MAX_VALUE / 4, Long.MAX_VALUE);
+        assertThat(retries.backoff(10), greaterThanOrEqualTo(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() throws InterruptedException {
+        int maxRetries = between(1, 5);
+        BulkRetries retries = new BulkRetries(maxRetries, 0, 0);
+        IndexRequest request = index("a");
+        retries.sent(request);
+        for (int attempt = 1; attempt <= maxRetries; attempt++) {
+            assertThat(retries.schedule(request, null), is(true));
+            BulkRetries.Retry retry = retries.take();
+            assertThat(retry.request, sameInstance((Object) request));
+            assertThat(retry.attempt, equalTo(attempt));
+            assertThat(retry.superseded(), is(false));
+        }
+        assertThat(retries.schedule(request, null), is(false));
+        assertThat(retries.waiting(), equalTo(0));
+    }
+
+    @Test
+    public void testUnlimitedRetries() throws InterruptedException {
+        BulkRetries retries = new BulkRetries(BulkRetries.UNLIMITED, 0, 0);
+        IndexRequest request = index("a");
+        retries.sent(request);
+        int attempts = between(50, 100);
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            assertThat(retries.schedule(request, null), is(true));
+            assertThat(retries.take().attempt, equalTo(attempt));
+        }
+        assertThat(retries.waiting(), equalTo(0));
+    }
+
+    @Test
+    public void testSupersededBeforeFailure() throws InterruptedException {
+        BulkRetries retries = new BulkRetries(3, 0, 0);
+        IndexRequest older = index("a");
+        IndexRequest newer = index("a");
+        retries.sent(older);
+        // the newer request goes in a later bulk, before the older one fails
+        retries.sent(newer);
+        assertThat(retries.schedule(older, null), is(true));
+        BulkRetries.Retry retry = retries.take();
+        assertThat(retry.request, sameInstance((Object) older));
+        assertThat(retry.superseded(), is(true));
+    }
+
+    @Test
+    public void testSupersededWhileWaiting() throws InterruptedException {
+        BulkRetries retries = new BulkRetries(3, TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(50));
+        IndexRequest older = index("a");
+        retries.sent(older);
+        assertThat(retries.schedule(older, null), is(true));
+        DeleteRequest newer = new DeleteRequest("index", "type", "a");
+        retries.sent(newer);
+        assertThat(retries.take().superseded(), is(true));
+    }
+
+    @Test
+    public void testNotSupersededByOtherDocumentsOrDoneRequests() throws InterruptedException {
+        BulkRetries retries = new BulkRetries(3, 0, 0);
+        IndexRequest earlier = index("a");
+        retries.sent(earlier);
+        retries.done(earlier);
+        retries.sent(index("b"));
+        IndexRequest request = index("a");
+        retries.sent(request);
+        assertThat(retries.schedule(request, null), is(true));
+        assertThat(retries.take().superseded(), is(false));
+
+        // a newer request already done does not supersede either
+        retries.done(request);
+        IndexRequest again = index("a");
+        retries.sent(again);
+        retries.done(again);
+        retries.sent(request);
+        assertThat(retries.schedule(request, null), is(true));
+        assertThat(retries.take().superseded(), is(false));
+    }
+
+    @Test
+    public void testAwaitNoneWaiting() throws Exception {
+        final BulkRetries retries = new BulkRetries(3, TimeUnit.MILLISECONDS.toNanos(50), TimeUnit.MILLISECONDS.toNanos(50));
+        IndexRequest request = index("a");
+        retries.sent(request);
+        retries.schedule(request, null);
+        assertThat(retries.waiting(), equalTo(1));
+        long start = System.nanoTime();
+        retries.awaitNoneWaiting(10);
+        assertThat(retries.waiting(), equalTo(1));
+        assertThat(System.nanoTime() - start, greaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(10)));
+
+        Thread taker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    retries.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        taker.start();
+        retries.awaitNoneWaiting(10000);
+        assertThat(retries.waiting(), equalTo(0));
+        taker.join();
+    }
+
+    private static IndexRequest index(String id) {
+        return new IndexRequest("index", "type", id);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Checks that {@link ChangeParser} reads the lines of the <code>_changes</code> feed the same way as parsing them
+ * into a map, and rejects malformed lines.
+ */
+public class ChangeParserTests extends ElasticsearchTestCase {
+
+    @Test
+    public void testSimpleChange() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":12,\"id\":\"doc1\",\"changes\":[{\"rev\":\"1-abc\"}]," +
+                "\"doc\":{\"_id\":\"doc1\",\"_rev\":\"1-abc\",\"foo\":\"bar\",\"count\":3,\"tags\":[\"a\",\"b\"]}}");
+        assertThat(change.seq(), equalTo((Object) 12L));
+        assertThat(change.id(), equalTo("doc1"));
+        assertThat(change.deleted(), is(false));
+        assertThat(change.hasAttachments(), is(false));
+    }
+
+    @Test
+    public void testDeletedChange() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":13,\"id\":\"doc1\",\"changes\":[{\"rev\":\"2-def\"}],\"deleted\":true}");
+        assertThat(change.deleted(), is(true));
+        assertThat(change.doc(), nullValue());
+    }
+
+    @Test
+    public void testEscapedQuotesAndBraces() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":1,\"id\":\"a \\\"quoted\\\" {id}\",\"doc\":{\"_id\":\"a \\\"quoted\\\" {id}\"," +
+                "\"text\":\"}]{[,:\\\\\",\"path\":\"a\\/b\",\"control\":\"\\b\\f\\n\\r\\t\"}}");
+        assertThat(change.id(), equalTo("a \"quoted\" {id}"));
+    }
+
+    @Test
+    public void testUnicodeEscapes() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":2,\"id\":\"caf\\u00e9 \\ud83d\\ude00\",\"doc\":{\"_id\":\"caf\\u00e9 \\ud83d\\ude00\"," +
+                "\"raw\":\"caf\u00e9 \ud83d\ude00\",\"caf\\u00e9\":\"\\u0000\\u001f\"}}");
+        assertThat(change.id(), equalTo("caf\u00e9 \ud83d\ude00"));
+    }
+
+    @Test
+    public void testRawUtf8() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":3,\"id\":\"\u65e5\u672c \ud83d\ude00\",\"doc\":{\"_id\":\"\u65e5\u672c \ud83d\ude00\"}}");
+        assertThat(change.id(), equalTo("\u65e5\u672c \ud83d\ude00"));
+    }
+
+    @Test
+    public void testTopLevelAttachments() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":4,\"id\":\"doc1\",\"doc\":{\"_id\":\"doc1\"," +
+                "\"_attachments\":{\"a.txt\":{\"content_type\":\"text/plain\",\"digest\":\"md5-x\",\"length\":3,\"stub\":true}}}}");
+        assertThat(change.hasAttachments(), is(true));
+    }
+
+    @Test
+    public void testNestedAttachmentsKey() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":5,\"id\":\"doc1\",\"doc\":{\"_id\":\"doc1\"," +
+                "\"nested\":{\"_attachments\":{\"a.txt\":{\"stub\":true}}},\"list\":[{\"_attachments\":{}}],\"name\":\"_attachments\"}}");
+        assertThat(change.hasAttachments(), is(false));
+    }
+
+    @Test
+    public void testNullDoc() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":6,\"id\":\"doc1\",\"doc\":null}");
+        assertThat(change.doc(), nullValue());
+        assertThat(change.hasAttachments(), is(false));
+    }
+
+    @Test
+    public void testStringSeq() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":\"7-g1AAAAEzeJzLYWBgYMlgTmFQSElKzi9KdUhJMtRLytVNTtYtLdYtSS0u0S0qzUvOzM3M0c1LLdIrzsgsSs3JKs0AKktlyC8tySgpSk1JzCsuySwpTy1KTgUrTLIwMDIwAgB1CxAP\",\"id\":\"doc1\"}");
+        assertThat(change.seq(), instanceOf(String.class));
+    }
+
+    @Test
+    public void testBigCouchSeq() throws IOException {
+        Change change = assertParsedLikeXContent("{\"seq\":[8,\"g1AAAAFbeJzLYWBg\"],\"id\":\"doc1\",\"changes\":[{\"rev\":\"1-abc\"}]}");
+        assertThat(change.seq(), instanceOf(List.class));
+        assertThat(((List<?>) change.seq()).get(1), equalTo((Object) "g1AAAAFbeJzLYWBg"));
+    }
+
+    @Test
+    public void testLastSeqLines() throws IOException {
+        Change change = assertParsedLikeXContent("{\"last_seq\":42}");
+        assertThat(change.seq(), equalTo((Object) 42L));
+        assertThat(change.id(), nullValue());
+
+        change = assertParsedLikeXContent("{\"last_seq\":\"42-g1AAAA\",\"pending\":0}");
+        assertThat(change.seq(), equalTo((Object) "42-g1AAAA"));
+        assertThat(change.id(), nullValue());
+
+        change = assertParsedLikeXContent("{\"last_seq\":[42,\"g1AAAA\"]}");
+        assertThat(change.seq(), instanceOf(List.class));
+        assertThat(change.id(), nullValue());
+    }
+
+    @Test
+    public void testWhitespace() throws IOException {
+        assertParsedLikeXContent(" {\n \"seq\" : 9 ,\t\"id\" : \"doc1\" ,\r\n \"doc\" : { \"_id\" : \"doc1\" , \"_attachments\" : { } } } ");
+    }
+
+    @Test
+    public void testTruncatedInput() throws IOException {
+        String line = "{\"seq\":[10,\"g1AA\"],\"id\":\"a \\\"b\\\" \\u00e9\",\"deleted\":false,\"doc\":{\"_id\":\"x\",\"list\":[1,{\"a\":null}],\"n\":-1.5e3}}";
+        for (int length = 0; length < line.length(); length++) {
+            try {
+                ChangeParser.parse(new BytesArray(line.substring(0, length)));
+                fail("parsed a change truncated to [" + length + "] characters");
+            } catch (ElasticsearchParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testMalformedInput() throws IOException {
+        String[] lines = {"{\"seq\":1,\"id\":\"a\\x\"}", "{\"seq\":1,\"id\":\"\\u12g4\"}", "{\"seq\":01a,\"id\":\"a\"}",
+                "{\"seq\":1,\"deleted\":tru}", "{\"seq\":1,\"doc\":{\"a\":nul}}", "{\"seq\":1,\"doc\":{\"a\":1,}}",
+                "{\"seq\":1}}", "{\"seq\":1} x", "[1]", "{\"seq\":1 \"id\":\"a\"}", "{\"seq\":true}"};
+        for (String line : lines) {
+            try {
+                ChangeParser.parse(new BytesArray(line));
+                fail("parsed malformed change " + line);
+            } catch (ElasticsearchParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testParsePage() throws IOException {
+        ChangeParser.Page page = ChangeParser.parsePage(new BytesArray("\n\n{\"results\":[\n" +
+                "{\"seq\":1,\"id\":\"a\",\"doc\":{\"_id\":\"a\",\"n\":[1,{\"b\":null}]}},\n" +
+                "{\"seq\":2,\"id\":\"b\",\"deleted\":true}\n],\n\"last_seq\":2,\"pending\":0}\n"));
+        assertThat(page.results().size(), equalTo(2));
+        assertThat(page.lastSeq(), equalTo((Object) 2L));
+        assertThat(assertParsedLikeXContent(page.results().get(0).toUtf8()).doc().toUtf8(),
+                equalTo("{\"_id\":\"a\",\"n\":[1,{\"b\":null}]}"));
+        assertThat(assertParsedLikeXContent(page.results().get(1).toUtf8()).deleted(), is(true));
+
+        page = ChangeParser.parseRows(new BytesArray("{\"total_rows\":2,\"offset\":0,\"rows\":[]}"));
+        assertThat(page.results().size(), equalTo(0));
+        assertThat(page.lastSeq(), nullValue());
+    }
+
+    @Test
+    public void testRandomStrings() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            String id = randomUnicodeOfLength(between(1, 20));
+            String value = randomUnicodeOfLength(between(0, 50));
+            String line = "{\"seq\":" + i + ",\"id\":" + quote(id) + ",\"doc\":{\"_id\":" + quote(id) +
+                    ",\"value\":" + quote(value) + "," + quote(value) + ":true}}";
+            Change change = assertParsedLikeXContent(line);
+            assertThat(change.id(), equalTo(id));
+        }
+    }
+
+    /**
+     * Parses a line with {@link ChangeParser} and with xcontent, and checks that they agree.
+     */
+    @SuppressWarnings("unchecked")
+    private static Change assertParsedLikeXContent(String line) throws IOException {
+        BytesReference bytes = new BytesArray(line);
+        Change change = ChangeParser.parse(bytes);
+        Map<String, Object> expected = XContentFactory.xContent(XContentType.JSON).createParser(bytes).mapAndClose();
+
+        Object seq = expected.containsKey("seq") ? expected.get("seq") : expected.get("last_seq");
+        assertThat(normalize(change.seq()), equalTo(normalize(seq)));
+        assertThat(change.id(), equalTo(expected.get("id")));
+        assertThat(change.deleted(), equalTo(Boolean.TRUE.equals(expected.get("deleted"))));
+        assertThat(change.error(), equalTo(expected.containsKey("error")));
+        if (expected.get("doc") instanceof Map) {
+            assertThat(change.doc(), notNullValue());
+            Map<String, Object> doc = XContentFactory.xContent(XContentType.JSON).createParser(change.doc()).mapAndClose();
+            assertThat(doc, equalTo(expected.get("doc")));
+            assertThat(change.hasAttachments(), equalTo(doc.containsKey("_attachments")));
+        } else {
+            assertThat(change.doc(), nullValue());
+        }
+        assertThat(change.source(), sameInstance(bytes));
+        return change;
+    }
+
+    /**
+     * Numbers are longs for the parser, and the smallest type that fits for xcontent.
+     */
+    private static Object normalize(Object seq) {
+        if (seq instanceof Number) {
+            return ((Number) seq).longValue();
+        }
+        if (seq instanceof List) {
+            Object[] values = ((List<?>) seq).toArray();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = normalize(values[i]);
+            }
+            return Arrays.asList(values);
+        }
+        return seq;
+    }
+
+    /**
+     * Quotes a string as json, escaping some of its characters at random.
+     */
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i += Character.charCount(value.codePointAt(i))) {
+            int c = value.codePointAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append((char) c);
+            } else if (c < 0x20 || (c > 0x7e && randomBoolean())) {
+                // surrogate pairs are escaped as two characters
+                for (char escaped : Character.toChars(c)) {
+                    sb.append(String.format(Locale.ROOT, "\\u%04x", (int) escaped));
+                }
+            } else {
+                sb.appendCodePoint(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
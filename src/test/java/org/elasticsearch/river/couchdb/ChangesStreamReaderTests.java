@@ -0,0 +1,163 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+public class ChangesStreamReaderTests extends ElasticsearchTestCase {
+
+    @Test
+    public void testLinesSpanningRefills() throws IOException {
+        ChangesStreamReader reader = new ChangesStreamReader(8);
+        reader.reset(stream("{\"seq\":1}\nab\n{\"seq\":2,\"id\":\"a long document id\"}\n1234567\n12345678\n"));
+        assertThat(readAll(reader), equalTo(Arrays.asList("{\"seq\":1}", "ab", "{\"seq\":2,\"id\":\"a long document id\"}",
+                "1234567", "12345678")));
+    }
+
+    @Test
+    public void testCarriageReturns() throws IOException {
+        ChangesStreamReader reader = new ChangesStreamReader(8);
+        // the first \r\n is split over two reads
+        reader.reset(stream("1234567\r\n{\"seq\":1}\r\nab\r\n\r\n"));
+        assertThat(readAll(reader), equalTo(Arrays.asList("1234567", "{\"seq\":1}", "ab", "")));
+    }
+
+    @Test
+    public void testLastLineWithoutTerminator() throws IOException {
+        ChangesStreamReader reader = new ChangesStreamReader(8);
+        reader.reset(stream("{\"seq\":1}\n{\"last_seq\":42}"));
+        assertThat(readAll(reader), equalTo(Arrays.asList("{\"seq\":1}", "{\"last_seq\":42}")));
+
+        reader.reset(stream("abc"));
+        assertThat(readAll(reader), equalTo(Arrays.asList("abc")));
+
+        reader.reset(stream(""));
+        assertThat(readAll(reader), empty());
+    }
+
+    @Test
+    public void testHeartbeats() throws IOException {
+        ChangesStreamReader reader = new ChangesStreamReader(8);
+        reader.reset(stream("\n\n{\"seq\":1}\n\n\n"));
+        assertThat(readAll(reader), equalTo(Arrays.asList("", "", "{\"seq\":1}", "", "")));
+    }
+
+    @Test
+    public void testLinesAreExactlySized() throws IOException {
+        ChangesStreamReader reader = new ChangesStreamReader(16);
+        reader.reset(stream("a\n{\"seq\":1,\"id\":\"spans over the buffer\"}\r\nb"));
+        BytesReference line;
+        while ((line = reader.readLine()) != null) {
+            if (line.length() > 0) {
+                assertThat(line.array().length, equalTo(line.length()));
+            }
+        }
+    }
+
+    @Test
+    public void testScratchShrinksAfterHugeLine() throws IOException {
+        ChangesStreamReader reader = new ChangesStreamReader(1024);
+        char[] huge = new char[2 * 1024 * 1024];
+        Arrays.fill(huge, 'x');
+        reader.reset(stream(new String(huge) + "\n" + new String(huge, 0, 3000) + "\nab\n"));
+
+        assertThat(reader.readLine().length(), equalTo(huge.length));
+        assertThat(reader.scratchSize(), greaterThan(1024 * 1024));
+        // spans over several reads again, but in a buffer of the original size
+        assertThat(reader.readLine().length(), equalTo(3000));
+        assertThat(reader.scratchSize(), lessThan(1024 * 1024));
+        assertThat(reader.readLine().toUtf8(), equalTo("ab"));
+        assertThat(reader.readLine(), nullValue());
+    }
+
+    @Test
+    public void testResetDropsLeftovers() throws IOException {
+        ChangesStreamReader reader = new ChangesStreamReader(8);
+        reader.reset(stream("first\nsecond line\n"));
+        assertThat(reader.readLine().toUtf8(), equalTo("first"));
+        reader.reset(stream("third\n"));
+        assertThat(readAll(reader), equalTo(Arrays.asList("third")));
+    }
+
+    @Test
+    public void testRandomReads() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        StringBuilder feed = new StringBuilder();
+        int count = between(1, 200);
+        for (int i = 0; i < count; i++) {
+            String line = randomBoolean() ? "" : randomUnicodeOfLength(between(1, 100)).replace('\n', ' ').replace('\r', ' ');
+            lines.add(line);
+            feed.append(line).append(randomBoolean() ? "\n" : "\r\n");
+        }
+        ChangesStreamReader reader = new ChangesStreamReader(between(1, 64));
+        reader.reset(new TrickleInputStream(feed.toString().getBytes(StandardCharsets.UTF_8)));
+        assertThat(readAll(reader), equalTo(lines));
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> readAll(ChangesStreamReader reader) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BytesReference line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line.toUtf8());
+        }
+        return lines;
+    }
+
+    /**
+     * Returns a few bytes at a time, and sometimes none at all, like a socket.
+     */
+    private static class TrickleInputStream extends InputStream {
+
+        private final ByteArrayInputStream in;
+
+        TrickleInputStream(byte[] bytes) {
+            this.in = new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len > 0 && randomBoolean() && in.available() > 0) {
+                return 0;
+            }
+            return in.read(b, off, Math.min(len, between(1, 16)));
+        }
+    }
+}
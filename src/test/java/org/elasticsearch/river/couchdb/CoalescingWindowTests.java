@@ -0,0 +1,152 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+
+public class CoalescingWindowTests extends ElasticsearchTestCase {
+
+    @Test
+    public void testKeepsLastRequestOfEachDocument() {
+        SequenceTracker tracker = new SequenceTracker("db");
+        CoalescingWindow window = new CoalescingWindow(10, TimeUnit.HOURS.toNanos(1));
+        SequenceTracker.Ticket a1 = tracker.register(1L);
+        SequenceTracker.Ticket b1 = tracker.register(2L);
+        SequenceTracker.Ticket a2 = tracker.register(3L);
+        SequenceTracker.Ticket a3 = tracker.register(4L);
+
+        assertThat(window.add(index("a"), a1), nullValue());
+        assertThat(window.add(index("b"), b1), nullValue());
+        assertThat(window.add(index("a"), a2), sameInstance(a1));
+        DeleteRequest delete = new DeleteRequest("index", "type", "a");
+        assertThat(window.add(delete, a3), sameInstance(a2));
+
+        // in the order they were last added
+        List<CoalescingWindow.Operation> drained = window.drain();
+        assertThat(drained, hasSize(2));
+        assertThat(drained.get(0).ticket, sameInstance(b1));
+        assertThat(drained.get(1).ticket, sameInstance(a3));
+        assertThat(drained.get(1).request, sameInstance((ActionRequest) delete));
+        assertThat(window.drain(), empty());
+    }
+
+    @Test
+    public void testDocumentsOfOtherIndicesAndTypes() {
+        SequenceTracker tracker = new SequenceTracker("db");
+        CoalescingWindow window = new CoalescingWindow(10, TimeUnit.HOURS.toNanos(1));
+        assertThat(window.add(new IndexRequest("index", "type", "a"), tracker.register(1L)), nullValue());
+        assertThat(window.add(new IndexRequest("index", "other", "a"), tracker.register(2L)), nullValue());
+        assertThat(window.add(new IndexRequest("other", "type", "a"), tracker.register(3L)), nullValue());
+        assertThat(window.drain(), hasSize(3));
+    }
+
+    @Test
+    public void testRemove() {
+        SequenceTracker tracker = new SequenceTracker("db");
+        CoalescingWindow window = new CoalescingWindow(10, TimeUnit.HOURS.toNanos(1));
+        SequenceTracker.Ticket ticket = tracker.register(1L);
+        window.add(index("a"), ticket);
+        assertThat(window.remove(index("b")), nullValue());
+        assertThat(window.remove(new DeleteRequest("index", "type", "a")), sameInstance(ticket));
+        assertThat(window.drain(), empty());
+    }
+
+    @Test
+    public void testFullBySize() {
+        SequenceTracker tracker = new SequenceTracker("db");
+        int size = between(1, 20);
+        CoalescingWindow window = new CoalescingWindow(size, TimeUnit.HOURS.toNanos(1));
+        assertThat(window.isFull(), is(false));
+        for (int i = 0; i < size; i++) {
+            assertThat(window.isFull(), is(false));
+            window.add(index("doc" + i), tracker.register((long) i));
+            // the same document again does not fill the window
+            window.add(index("doc" + i), tracker.register((long) i));
+        }
+        assertThat(window.isFull(), is(true));
+        window.drain();
+        assertThat(window.isFull(), is(false));
+    }
+
+    @Test
+    public void testFullByInterval() throws InterruptedException {
+        SequenceTracker tracker = new SequenceTracker("db");
+        CoalescingWindow window = new CoalescingWindow(100, TimeUnit.MILLISECONDS.toNanos(50));
+        // an empty window is never full, and has no deadline
+        Thread.sleep(60);
+        assertThat(window.isFull(), is(false));
+        assertThat(window.remainingNanos(), equalTo(Long.MAX_VALUE));
+
+        window.add(index("a"), tracker.register(1L));
+        assertThat(window.remainingNanos(), lessThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50)));
+        Thread.sleep(60);
+        assertThat(window.isFull(), is(true));
+        assertThat(window.remainingNanos(), equalTo(0L));
+
+        // the interval starts again with the next request
+        window.drain();
+        window.add(index("a"), tracker.register(2L));
+        assertThat(window.isFull(), is(false));
+        assertThat(window.remainingNanos(), greaterThan(0L));
+    }
+
+    @Test
+    public void testRandomUpdates() {
+        SequenceTracker tracker = new SequenceTracker("db");
+        CoalescingWindow window = new CoalescingWindow(Integer.MAX_VALUE, TimeUnit.HOURS.toNanos(1));
+        int docs = between(1, 20);
+        int changes = between(1, 200);
+        SequenceTracker.Ticket[] last = new SequenceTracker.Ticket[docs];
+        List<SequenceTracker.Ticket> superseded = new ArrayList<SequenceTracker.Ticket>();
+        for (int i = 0; i < changes; i++) {
+            int doc = between(0, docs - 1);
+            SequenceTracker.Ticket ticket = tracker.register((long) i);
+            SequenceTracker.Ticket previous = window.add(index("doc" + doc), ticket);
+            assertThat(previous, sameInstance(last[doc]));
+            if (previous != null) {
+                superseded.add(previous);
+            }
+            last[doc] = ticket;
+        }
+        List<CoalescingWindow.Operation> drained = window.drain();
+        assertThat(drained.size() + superseded.size(), equalTo(changes));
+        long previousSeq = -1;
+        for (CoalescingWindow.Operation operation : drained) {
+            IndexRequest request = (IndexRequest) operation.request;
+            assertThat(operation.ticket, sameInstance(last[Integer.parseInt(request.id().substring(3))]));
+            assertThat((Long) operation.ticket.seq(), greaterThan(previousSeq));
+            previousSeq = (Long) operation.ticket.seq();
+        }
+    }
+
+    private static IndexRequest index(String id) {
+        return new IndexRequest("index", "type", id);
+    }
+}
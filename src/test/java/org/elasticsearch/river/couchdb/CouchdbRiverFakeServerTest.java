@@ -0,0 +1,238 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.PlainActionFuture;
+import org.elasticsearch.common.base.Predicate;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.plugins.PluginsService;
+import org.elasticsearch.river.couchdb.helper.FakeCouchdbServer;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.test.ElasticsearchIntegrationTest;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Runs the river against a {@link FakeCouchdbServer}, so it does not need CouchDB.
+ * <p/>
+ * The feed updates and deletes documents, and each test checks that every document ends up indexed in its last
+ * generation, so that no change overtakes a later change of the same document, and that the checkpoint never
+ * moves over a change that is not indexed yet.
+ */
+@ElasticsearchIntegrationTest.ClusterScope(
+        scope = ElasticsearchIntegrationTest.Scope.SUITE,
+        numDataNodes = 1, numClientNodes = 0, transportClientRatio = 0.0)
+public class CouchdbRiverFakeServerTest extends ElasticsearchIntegrationTest {
+
+    private FakeCouchdbServer server;
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder()
+                .put(super.nodeSettings(nodeOrdinal))
+                .put("plugins." + PluginsService.LOAD_PLUGIN_FROM_CLASSPATH, true)
+            .build();
+    }
+
+    @After
+    public final void stopServer() {
+        if (server != null) {
+            server.close();
+            server = null;
+        }
+    }
+
+    @Test
+    public void testIndexerThreads() throws IOException, InterruptedException {
+        Map<String, Object> index = new HashMap<String, Object>();
+        index.put("indexer_threads", 4);
+        index.put("bulk_size", 50);
+        run(FakeCouchdbServer.builder().db("indexer_threads").docCount(2000).updateRatio(2).deleteRatio(0.2), null, index);
+    }
+
+    @Test
+    public void testIncludeDocsDisabled() throws IOException, InterruptedException {
+        Map<String, Object> couchdb = new HashMap<String, Object>();
+        couchdb.put("include_docs", false);
+        couchdb.put("fetch_size", 20);
+        Map<String, Object> index = new HashMap<String, Object>();
+        index.put("indexer_threads", 2);
+        // few documents updated over and over again, so that batches hold several changes of a document
+        Map<String, Object> stats = run(FakeCouchdbServer.builder().db("include_docs_disabled").docCount(200)
+                .updateRatio(10).deleteRatio(0.2), couchdb, index);
+        assertThat(((Number) changes(stats).get("superseded")).longValue(), greaterThan(0L));
+    }
+
+    @Test
+    public void testCoalescing() throws IOException, InterruptedException {
+        Map<String, Object> index = new HashMap<String, Object>();
+        index.put("indexer_threads", 2);
+        index.put("coalesce_size", 500);
+        index.put("coalesce_interval", "500ms");
+        // few documents updated over and over again
+        Map<String, Object> stats = run(FakeCouchdbServer.builder().db("coalescing").docCount(200).updateRatio(10)
+                .deleteRatio(0.1), null, index);
+        assertThat(((Number) changes(stats).get("coalesced")).longValue(), greaterThan(0L));
+    }
+
+    @Test
+    public void testAdaptiveBulk() throws IOException, InterruptedException {
+        Map<String, Object> index = new HashMap<String, Object>();
+        index.put("adaptive_bulk", true);
+        index.put("bulk_size", 10);
+        index.put("min_bulk_size", 10);
+        index.put("max_bulk_size", 1000);
+        index.put("max_concurrent_bulk", 4);
+        // every bulk is fast enough to grow
+        index.put("target_bulk_latency", "1m");
+        Map<String, Object> stats = run(FakeCouchdbServer.builder().db("adaptive_bulk").docCount(5000).updateRatio(1)
+                .deleteRatio(0.1), null, index);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> bulk = (Map<String, Object>) stats.get("bulk");
+        assertThat(((Number) bulk.get("count")).longValue(), greaterThanOrEqualTo(10L));
+        assertThat(((Number) bulk.get("actions")).intValue(), greaterThan(10));
+        assertThat(((Number) bulk.get("concurrency")).intValue(), greaterThan(1));
+    }
+
+    /**
+     * Starts the server and a river reading from it, waits until the checkpoint reaches the end of the feed and checks
+     * the indexed documents. Returns the statistics of the river.
+     */
+    private Map<String, Object> run(FakeCouchdbServer.Builder builder, Map<String, Object> couchdb,
+                                    Map<String, Object> index) throws IOException, InterruptedException {
+        server = builder.start();
+        final String db = server.db();
+        logger.info("  -> Serving [{}] changes, [{}] documents left, on port [{}]", server.changes(), server.liveDocs(),
+                server.port());
+
+        XContentBuilder river = jsonBuilder().startObject().field("type", "couchdb").startObject("couchdb")
+                .field("host", server.host())
+                .field("port", server.port())
+                .field("db", db);
+        if (couchdb != null) {
+            for (Map.Entry<String, Object> entry : couchdb.entrySet()) {
+                river.field(entry.getKey(), entry.getValue());
+            }
+        }
+        river.endObject().startObject("index").field("index", db);
+        if (index != null) {
+            for (Map.Entry<String, Object> entry : index.entrySet()) {
+                river.field(entry.getKey(), entry.getValue());
+            }
+        }
+        river.endObject().endObject();
+        createIndex(db);
+        index("_river", db, "_meta", river);
+
+        logger.info("  -> Wait for the checkpoint to reach [{}]", server.lastSeq());
+        assertThat(awaitBusy(new Predicate<Object>() {
+            public boolean apply(Object obj) {
+                String checkpoint = checkpoint(db);
+                if (checkpoint != null) {
+                    assertIndexedUpTo(db, checkpoint);
+                }
+                return server.lastSeq().equals(checkpoint);
+            }
+        }, 2, TimeUnit.MINUTES), equalTo(true));
+
+        refresh();
+        SearchResponse response = client().prepareSearch(db).setSize(server.docCount()).get();
+        assertThat(response.getHits().totalHits(), equalTo((long) server.liveDocs()));
+        for (SearchHit hit : response.getHits()) {
+            int doc = Integer.parseInt(hit.getId().substring("doc-".length()));
+            assertThat(server.isDeleted(doc), is(false));
+            assertThat("generation of [" + hit.getId() + "]", ((Number) hit.getSource().get("gen")).intValue(),
+                    equalTo(server.generation(doc)));
+        }
+
+        Map<String, Object> stats = stats(db);
+        logger.info("  -> river stats {}", stats);
+        assertThat(((Number) changes(stats).get("read")).longValue(), equalTo((long) server.changes()));
+        return stats;
+    }
+
+    /**
+     * The last seq saved by the river, <code>null</code> if there is none yet.
+     */
+    private String checkpoint(String river) {
+        try {
+            GetResponse response = client().prepareGet("_river", river, "_seq").get();
+            if (!response.isExists()) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> couchdb = (Map<String, Object>) response.getSourceAsMap().get("couchdb");
+            Object lastSeq = couchdb.get("last_seq");
+            return lastSeq == null ? null : lastSeq.toString();
+        } catch (IndexMissingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks that the documents changed before a checkpoint are indexed in the generation they had then, or a later one.
+     * Documents deleted at some point are left out, as they may be gone.
+     */
+    private void assertIndexedUpTo(String index, String checkpoint) {
+        int step = Math.max(1, server.docCount() / 50);
+        for (int doc = 0; doc < server.docCount(); doc += step) {
+            int generation = server.generation(doc, checkpoint);
+            if (generation == 0 || server.isDeleted(doc)) {
+                continue;
+            }
+            GetResponse response = client().prepareGet(index, index, FakeCouchdbServer.docId(doc)).get();
+            assertThat("[" + FakeCouchdbServer.docId(doc) + "] is indexed before checkpoint [" + checkpoint + "]",
+                    response.isExists(), is(true));
+            assertThat(((Number) response.getSourceAsMap().get("gen")).intValue(), greaterThanOrEqualTo(generation));
+        }
+    }
+
+    /**
+     * The statistics of a river, as the nodes render them.
+     */
+    private Map<String, Object> stats(String river) {
+        PlainActionFuture<CouchdbRiverResponse> future = PlainActionFuture.newFuture();
+        internalCluster().getInstance(TransportCouchdbRiverAction.class).execute(new CouchdbRiverRequest(river), future);
+        for (CouchdbRiverNodeResponse node : future.actionGet().getNodes()) {
+            if (node.stats().containsKey(river)) {
+                return XContentHelper.convertToMap(node.stats().get(river), false).v2();
+            }
+        }
+        throw new AssertionError("river [" + river + "] is not running");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> changes(Map<String, Object> stats) {
+        return (Map<String, Object>) stats.get("changes");
+    }
+}
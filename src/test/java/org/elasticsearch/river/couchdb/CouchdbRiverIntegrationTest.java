@@ -21,6 +21,7 @@ package org.elasticsearch.river.couchdb;
 
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.Base64;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.base.Predicate;
 import org.elasticsearch.common.collect.ImmutableList;
@@ -38,6 +39,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
@@ -199,6 +203,51 @@ public class CouchdbRiverIntegrationTest extends AbstractCouchdbTest {
         }
     }
 
+    @Test
+    @SuppressWarnings({"unchecked"})
+    public void testAttachmentIndexed() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+            .startObject()
+                .field("type", "couchdb")
+                .startObject("couchdb")
+                    .field("index_attachments", true)
+                .endObject()
+            .endObject(), 0, new InjectorHook() {
+            @Override
+            public void inject() {
+                try {
+                    putDocumentWithAttachments(getDbName(), "1",
+                            new ImmutableList.Builder<String>().add("foo", "bar").build(),
+                            "text-in-english.txt", "God save the queen!",
+                            "text-in-french.txt", "Allons enfants !");
+                } catch (IOException e) {
+                    logger.error("Error while injecting attachments");
+                }
+            }
+        });
+
+        assertThat(awaitBusy(new Predicate<Object>() {
+            public boolean apply(Object obj) {
+                try {
+                    refresh();
+                    return client().prepareSearch(getDbName()).get().getHits().totalHits() == 1;
+                } catch (IndexMissingException e) {
+                    return false;
+                }
+            }
+        }, 1, TimeUnit.MINUTES), equalTo(true));
+
+        GetResponse response = get(getDbName(), getDbName(), "1");
+        List<Map<String, Object>> attachments = (List<Map<String, Object>>) response.getSource().get("attachments");
+        assertThat(attachments, hasSize(2));
+        for (Map<String, Object> attachment : attachments) {
+            Map<String, Object> content = (Map<String, Object>) attachment.get("content");
+            String text = new String(Base64.decode(content.get("_content").toString()), StandardCharsets.UTF_8);
+            assertThat(text, is(attachment.get("name").equals("text-in-english.txt") ? "God save the queen!" : "Allons enfants !"));
+            assertThat(content.get("_content_type").toString(), is("text/plain"));
+        }
+    }
+
     @Test
     public void testParameters() throws IOException, InterruptedException {
         launchTest(jsonBuilder()
@@ -219,6 +268,121 @@ public class CouchdbRiverIntegrationTest extends AbstractCouchdbTest {
                 .endObject(), randomIntBetween(5, 1000), null);
     }
 
+    @Test
+    public void testStreamingDisabled() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+                .startObject()
+                    .field("type", "couchdb")
+                    .startObject("couchdb")
+                        .field("streaming", false)
+                    .endObject()
+                .endObject(), randomIntBetween(5, 1000), null);
+    }
+
+    @Test
+    public void testPagedFeed() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+                .startObject()
+                    .field("type", "couchdb")
+                    .startObject("couchdb")
+                        .field("feed", randomFrom("normal", "longpoll"))
+                        .field("page_size", between(1, 100))
+                        .field("min_page_size", 1)
+                    .endObject()
+                .endObject(), randomIntBetween(5, 1000), null);
+    }
+
+    @Test
+    public void testIncludeDocsDisabled() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+                .startObject()
+                    .field("type", "couchdb")
+                    .startObject("couchdb")
+                        .field("include_docs", false)
+                        .field("fetch_size", between(1, 50))
+                    .endObject()
+                .endObject(), randomIntBetween(5, 1000), null);
+    }
+
+    @Test
+    public void testIndexerThreads() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+                .startObject()
+                    .field("type", "couchdb")
+                    .startObject("index")
+                        .field("indexer_threads", between(2, 4))
+                    .endObject()
+                .endObject(), randomIntBetween(5, 1000), null);
+    }
+
+    @Test
+    public void testAdaptiveBulk() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+                .startObject()
+                    .field("type", "couchdb")
+                    .startObject("index")
+                        .field("adaptive_bulk", true)
+                        .field("bulk_size_bytes", "100kb")
+                        .field("max_concurrent_bulk", between(1, 4))
+                    .endObject()
+                .endObject(), randomIntBetween(5, 1000), null);
+    }
+
+    @Test
+    public void testCoalescing() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+                .startObject()
+                    .field("type", "couchdb")
+                    .startObject("index")
+                        .field("coalesce_size", between(1, 100))
+                    .endObject()
+                .endObject(), randomIntBetween(5, 1000), null);
+    }
+
+    @Test
+    public void testDeadLetters() throws IOException, InterruptedException {
+        final String deadLetterIndex = getDbName() + "_dead_letters";
+        launchTest(jsonBuilder()
+                .startObject()
+                    .field("type", "couchdb")
+                    .startObject("index")
+                        .field("dead_letter_index", deadLetterIndex)
+                    .endObject()
+                .endObject(), randomIntBetween(5, 1000), new InjectorHook() {
+            @Override
+            public void inject() {
+                // content is mapped as a string by the other documents
+                putDocument(getDbName(), "conflict", "{\"content\":{\"foo\":\"bar\"}}");
+            }
+        });
+
+        logger.info("  -> Wait for the dead letter");
+        assertThat(awaitBusy(new Predicate<Object>() {
+            public boolean apply(Object obj) {
+                try {
+                    refresh();
+                    SearchResponse response = client().prepareSearch(deadLetterIndex).get();
+                    return response.getHits().totalHits() == 1 && response.getHits().getAt(0).getId().equals("conflict");
+                } catch (IndexMissingException e) {
+                    return false;
+                }
+            }
+        }, 1, TimeUnit.MINUTES), equalTo(true));
+    }
+
+    @Test
+    public void testInitialLoad() throws IOException, InterruptedException {
+        launchTest(jsonBuilder()
+                .startObject()
+                    .field("type", "couchdb")
+                    .startObject("couchdb")
+                        .field("initial_load", true)
+                        .field("initial_load_partitions", between(1, 4))
+                        .field("initial_load_page_size", between(1, 100))
+                    .endObject()
+                .endObject(), randomIntBetween(5, 1000), null);
+    }
+
     @Test
     public void testScriptingDefaultEngine() throws IOException, InterruptedException {
         launchTest(jsonBuilder()
@@ -479,6 +643,143 @@ public class CouchdbRiverIntegrationTest extends AbstractCouchdbTest {
         // [WARN ][org.elasticsearch.river.couchdb] [node_0] [couchdb][elasticsearch_couch_test_test_closing_while_indexing_66] river was closing while trying to index document [elasticsearch_couch_test_test_closing_while_indexing_66/elasticsearch_couch_test_test_closing_while_indexing_66/11]. Operation skipped.
     }
 
+    @Test
+    public void testSelectorFilter() throws IOException, InterruptedException {
+        final int nbDocs = between(5, 300);
+        launchTest(jsonBuilder()
+                .startObject()
+                    .field("type", "couchdb")
+                    .startObject("couchdb")
+                        .field("filter", "_selector")
+                        .startObject("selector")
+                            .field("foo", "bar")
+                        .endObject()
+                    .endObject()
+                .endObject(), nbDocs, new InjectorHook() {
+            @Override
+            public void inject() {
+                try {
+                    for (int i = 0; i < nbDocs; i++) {
+                        CouchDBClient.putDocument(getDbName(), "baz-" + i, "foo", "baz");
+                    }
+                } catch (IOException e) {
+                    logger.error("Error while injecting documents");
+                }
+            }
+        });
+
+        // once a later change is indexed, the filtered ones have all been read
+        CouchDBClient.putDocument(getDbName(), "last", "foo", "bar");
+        assertThat(awaitBusy(new Predicate<Object>() {
+            public boolean apply(Object obj) {
+                refresh();
+                return client().prepareGet(getDbName(), getDbName(), "last").get().isExists();
+            }
+        }, 1, TimeUnit.MINUTES), equalTo(true));
+        refresh();
+        assertThat(client().prepareSearch(getDbName()).get().getHits().totalHits(), equalTo((long) nbDocs + 1));
+    }
+
+    @Test
+    public void testMultipleDatabases() throws IOException, InterruptedException {
+        final String[] dbs = {getDbName() + "_a", getDbName() + "_b"};
+        final int nbDocs = between(50, 300);
+        logger.info("  -> Checking couchdb running");
+        CouchDBClient.checkCouchDbRunning();
+        try {
+            for (String db : dbs) {
+                logger.info("  -> Creating test database [{}]", db);
+                CouchDBClient.dropAndCreateTestDatabase(db);
+                for (int i = 0; i < nbDocs; i++) {
+                    CouchDBClient.putDocument(db, "" + i, "foo", "bar", "content", "" + i);
+                }
+            }
+
+            logger.info("  -> Create river");
+            index("_river", getDbName(), "_meta", jsonBuilder()
+                    .startObject()
+                        .field("type", "couchdb")
+                        .startObject("couchdb")
+                            .array("db", dbs)
+                            .field("poll_interval", "1s")
+                        .endObject()
+                    .endObject());
+
+            // each database goes to its own index
+            for (final String db : dbs) {
+                assertThat(awaitBusy(new Predicate<Object>() {
+                    public boolean apply(Object obj) {
+                        try {
+                            refresh();
+                            SearchResponse response = client().prepareSearch(db).get();
+                            logger.info("  -> got {} docs in {} index", response.getHits().totalHits(), db);
+                            return response.getHits().totalHits() == nbDocs;
+                        } catch (IndexMissingException e) {
+                            return false;
+                        }
+                    }
+                }, 1, TimeUnit.MINUTES), equalTo(true));
+            }
+        } finally {
+            for (String db : dbs) {
+                CouchDBClient.dropTestDatabase(db);
+            }
+        }
+    }
+
+    @Test
+    public void testDbUpdates() throws IOException, InterruptedException {
+        final String db = getDbName() + "_created";
+        final int nbDocs = between(50, 300);
+        logger.info("  -> Checking couchdb running");
+        CouchDBClient.checkCouchDbRunning();
+        try {
+            logger.info("  -> Create river");
+            index("_river", getDbName(), "_meta", jsonBuilder()
+                    .startObject()
+                        .field("type", "couchdb")
+                        .startObject("couchdb")
+                            .field("db_pattern", getDbName() + "_.*")
+                            .field("db_updates", true)
+                        .endObject()
+                    .endObject());
+
+            // Check that the river is started
+            assertThat(awaitBusy(new Predicate<Object>() {
+                public boolean apply(Object obj) {
+                    try {
+                        refresh();
+                        return get("_river", getDbName(), "_status").isExists();
+                    } catch (IndexMissingException e) {
+                        return false;
+                    }
+                }
+            }, 5, TimeUnit.SECONDS), equalTo(true));
+
+            // the database is found through _db_updates
+            logger.info("  -> Creating test database [{}]", db);
+            CouchDBClient.dropAndCreateTestDatabase(db);
+            for (int i = 0; i < nbDocs; i++) {
+                CouchDBClient.putDocument(db, "" + i, "foo", "bar", "content", "" + i);
+            }
+
+            assertThat(awaitBusy(new Predicate<Object>() {
+                public boolean apply(Object obj) {
+                    try {
+                        refresh();
+                        SearchResponse response = client().prepareSearch(db).get();
+                        logger.info("  -> got {} docs in {} index", response.getHits().totalHits(), db);
+                        return response.getHits().totalHits() == nbDocs;
+                    } catch (IndexMissingException e) {
+                        return false;
+                    }
+                }
+            }, 1, TimeUnit.MINUTES), equalTo(true));
+        } finally {
+            CouchDBClient.dropTestDatabase(db);
+        }
+    }
+
     /**
      * Test case for #17: https://github.com/elasticsearch/elasticsearch-river-couchdb/issues/17
      */
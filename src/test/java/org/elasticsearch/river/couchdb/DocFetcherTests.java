@@ -0,0 +1,61 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.*;
+
+public class DocFetcherTests extends ElasticsearchTestCase {
+
+    @Test
+    public void testWithDoc() throws IOException {
+        BytesReference line = DocFetcher.withDoc(new BytesArray("{\"seq\":12,\"id\":\"doc1\",\"changes\":[{\"rev\":\"2-abc\"}]}"),
+                new BytesArray("{\"_id\":\"doc1\",\"_rev\":\"2-abc\",\"foo\":\"bar\"}"));
+        assertThat(line.toUtf8(), equalTo("{\"seq\":12,\"id\":\"doc1\",\"changes\":[{\"rev\":\"2-abc\"}]," +
+                "\"doc\":{\"_id\":\"doc1\",\"_rev\":\"2-abc\",\"foo\":\"bar\"}}"));
+
+        Change change = ChangeParser.parse(line);
+        assertThat(change.id(), equalTo("doc1"));
+        assertThat(change.doc().toUtf8(), equalTo("{\"_id\":\"doc1\",\"_rev\":\"2-abc\",\"foo\":\"bar\"}"));
+        assertThat(change.deleted(), is(false));
+    }
+
+    @Test
+    public void testWithoutDoc() throws IOException {
+        // the document was deleted since the change was read
+        BytesReference line = DocFetcher.withDoc(new BytesArray("{\"seq\":12,\"id\":\"doc1\",\"changes\":[{\"rev\":\"2-abc\"}]}"), null);
+        Change change = ChangeParser.parse(line);
+        assertThat(change.deleted(), is(true));
+        assertThat(change.doc(), nullValue());
+    }
+
+    @Test
+    public void testTrailingWhitespace() throws IOException {
+        BytesReference line = DocFetcher.withDoc(new BytesArray("{\"seq\":[3,\"g1AA\"],\"id\":\"doc1\"} \r\n"),
+                new BytesArray("{\"_id\":\"doc1\"}"));
+        assertThat(line.toUtf8(), equalTo("{\"seq\":[3,\"g1AA\"],\"id\":\"doc1\",\"doc\":{\"_id\":\"doc1\"}}"));
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.concurrent.SynchronousQueue;
+
+import static org.hamcrest.Matchers.*;
+
+public class PageFetcherTests extends ElasticsearchTestCase {
+
+    @Test
+    public void testAdaptLimit() {
+        PageFetcher fetcher = newPageFetcher(1000, 100, 4000);
+        long target = TimeValue.timeValueSeconds(1).nanos();
+
+        // pages read in about the target latency keep their size
+        fetcher.adaptLimit(target * 3 / 4);
+        assertThat(fetcher.limit(), equalTo(1000));
+        fetcher.adaptLimit(target);
+        assertThat(fetcher.limit(), equalTo(1000));
+
+        fetcher.adaptLimit(target / 4);
+        assertThat(fetcher.limit(), equalTo(2000));
+        fetcher.adaptLimit(target / 4);
+        assertThat(fetcher.limit(), equalTo(4000));
+        // up to max_page_size
+        fetcher.adaptLimit(target / 4);
+        assertThat(fetcher.limit(), equalTo(4000));
+
+        fetcher.adaptLimit(target * 2);
+        assertThat(fetcher.limit(), equalTo(2000));
+    }
+
+    @Test
+    public void testAdaptLimitDownToMinPageSize() {
+        PageFetcher fetcher = newPageFetcher(1000, 300, 4000);
+        long target = TimeValue.timeValueSeconds(1).nanos();
+        fetcher.adaptLimit(target * 2);
+        assertThat(fetcher.limit(), equalTo(500));
+        fetcher.adaptLimit(target * 2);
+        assertThat(fetcher.limit(), equalTo(300));
+        fetcher.adaptLimit(target * 2);
+        assertThat(fetcher.limit(), equalTo(300));
+    }
+
+    private PageFetcher newPageFetcher(int pageSize, int minPageSize, int maxPageSize) {
+        Feed feed = new Feed("db", null, "localhost", 5984, "/db");
+        return new PageFetcher(null, logger, new CouchdbRiverStats(), feed, null, new SynchronousQueue<ChangeParser.Page>(),
+                "normal", TimeValue.timeValueSeconds(10), pageSize, minPageSize, maxPageSize, TimeValue.timeValueSeconds(1));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+
+public class PolledFeedTests extends ElasticsearchTestCase {
+
+    @Test
+    public void testGoesIdleOnceCaughtUp() {
+        PolledFeed polled = new PolledFeed(new Feed("db", null, "localhost", 5984, "/db"));
+        polled.reading();
+        assertThat(polled.idle(), is(true));
+        assertThat(polled.isIdle(), is(true));
+
+        // an update of an idle feed queues it again, right away
+        assertThat(polled.update(), is(true));
+        assertThat(polled.isIdle(), is(false));
+        assertThat(polled.getDelay(TimeUnit.MILLISECONDS), lessThanOrEqualTo(0L));
+    }
+
+    @Test
+    public void testUpdatedWhileReading() {
+        PolledFeed polled = new PolledFeed(new Feed("db", null, "localhost", 5984, "/db"));
+        polled.reading();
+        // the feed is still queued, it is read again once the current read is done
+        assertThat(polled.update(), is(false));
+        assertThat(polled.idle(), is(false));
+        assertThat(polled.isIdle(), is(false));
+
+        // the next read brings the update
+        polled.reading();
+        assertThat(polled.idle(), is(true));
+    }
+
+    @Test
+    public void testStopped() {
+        PolledFeed polled = new PolledFeed(new Feed("db", null, "localhost", 5984, "/db"));
+        polled.reading();
+        polled.idle();
+        polled.stop();
+        assertThat(polled.stopped(), is(true));
+        assertThat(polled.update(), is(false));
+    }
+
+    @Test
+    public void testDelay() {
+        DelayQueue<PolledFeed> queue = new DelayQueue<PolledFeed>();
+        PolledFeed later = new PolledFeed(new Feed("db1", null, "localhost", 5984, "/db1"));
+        later.delay(TimeUnit.HOURS.toMillis(1));
+        PolledFeed now = new PolledFeed(new Feed("db2", null, "localhost", 5984, "/db2"));
+        now.delay(0);
+        queue.add(later);
+        queue.add(now);
+
+        assertThat(queue.poll(), sameInstance(now));
+        assertThat(queue.poll(), nullValue());
+        assertThat(later.getDelay(TimeUnit.MINUTES), greaterThan(55L));
+    }
+}
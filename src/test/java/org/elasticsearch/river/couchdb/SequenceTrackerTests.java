@@ -0,0 +1,114 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+
+public class SequenceTrackerTests extends ElasticsearchTestCase {
+
+    @Test
+    public void testAdvancesInOrder() {
+        SequenceTracker tracker = new SequenceTracker("db");
+        SequenceTracker.Ticket first = tracker.register(1L);
+        SequenceTracker.Ticket second = tracker.register(2L);
+        assertThat(tracker.advance(), nullValue());
+
+        first.complete();
+        assertThat(tracker.advance(), equalTo((Object) 1L));
+        assertThat(tracker.advance(), nullValue());
+        second.complete();
+        assertThat(tracker.advance(), equalTo((Object) 2L));
+        assertThat(tracker.advanced(), equalTo(2L));
+        assertThat(tracker.pending(), equalTo(0));
+    }
+
+    @Test
+    public void testDoesNotPassUnfinishedChange() {
+        SequenceTracker tracker = new SequenceTracker("db");
+        SequenceTracker.Ticket first = tracker.register(1L);
+        SequenceTracker.Ticket second = tracker.register(2L);
+        SequenceTracker.Ticket third = tracker.register(3L);
+
+        third.complete();
+        second.complete();
+        assertThat(tracker.advance(), nullValue());
+        assertThat(tracker.pending(), equalTo(3));
+
+        first.complete();
+        assertThat(tracker.advance(), equalTo((Object) 3L));
+        assertThat(tracker.pending(), equalTo(0));
+    }
+
+    @Test
+    public void testNullSeqsDoNotMoveTheCheckpoint() {
+        SequenceTracker tracker = new SequenceTracker("db");
+        tracker.register("1-a").complete();
+        tracker.register(null).complete();
+        assertThat(tracker.advance(), equalTo((Object) "1-a"));
+        assertThat(tracker.advanced(), equalTo(2L));
+
+        tracker.register(null).complete();
+        assertThat(tracker.advance(), nullValue());
+        assertThat(tracker.advanced(), equalTo(3L));
+    }
+
+    @Test
+    public void testTicketDatabase() {
+        assertThat(new SequenceTracker("db1").register(1L).db(), equalTo("db1"));
+    }
+
+    @Test
+    public void testRandomCompletionOrder() {
+        SequenceTracker tracker = new SequenceTracker("db");
+        int count = between(1, 500);
+        List<SequenceTracker.Ticket> tickets = new ArrayList<SequenceTracker.Ticket>();
+        for (int i = 0; i < count; i++) {
+            tickets.add(tracker.register((long) i));
+        }
+        boolean[] completed = new boolean[count];
+        List<SequenceTracker.Ticket> shuffled = new ArrayList<SequenceTracker.Ticket>(tickets);
+        Collections.shuffle(shuffled, getRandom());
+        long checkpoint = -1;
+        for (SequenceTracker.Ticket ticket : shuffled) {
+            ticket.complete();
+            completed[(int) (long) (Long) ticket.seq()] = true;
+            Object seq = tracker.advance();
+            if (seq != null) {
+                assertThat((Long) seq, greaterThan(checkpoint));
+                checkpoint = (Long) seq;
+            }
+            // the checkpoint is the end of the completed prefix
+            int prefix = 0;
+            while (prefix < count && completed[prefix]) {
+                prefix++;
+            }
+            assertThat(checkpoint, equalTo((long) prefix - 1));
+            assertThat(tracker.pending(), equalTo(count - prefix));
+        }
+        assertThat(tracker.advanced(), equalTo((long) count));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.hamcrest.Matchers.*;
+
+public class ShardDiscoveryTests extends ElasticsearchTestCase {
+
+    @Test
+    public void testAddShards() {
+        Map<String, Feed> shards = new TreeMap<String, Feed>();
+        ShardDiscovery.addShards(shards, "db", "node1", 5986, Arrays.<Object>asList("_users", "db", "dbs",
+                "shards/00000000-7fffffff/db.1418652145", "shards/80000000-ffffffff/db.1418652145",
+                "shards/00000000-7fffffff/db2.1418652145", "shards/00000000-7fffffff/db.backup",
+                "shards/00000000-7fffffff/_users.1418652145"));
+
+        assertThat(new ArrayList<String>(shards.keySet()), equalTo(Arrays.asList("00000000-7fffffff", "80000000-ffffffff")));
+        Feed feed = shards.get("00000000-7fffffff");
+        assertThat(feed.db(), equalTo("db"));
+        assertThat(feed.shard(), equalTo("00000000-7fffffff"));
+        assertThat(feed.host(), equalTo("node1"));
+        assertThat(feed.port(), equalTo(5986));
+        assertThat(feed.path(), equalTo("/shards%2F00000000-7fffffff%2Fdb.1418652145"));
+    }
+
+    @Test
+    public void testCopies() {
+        Map<String, Feed> shards = new TreeMap<String, Feed>();
+        ShardDiscovery.addShards(shards, "db", "node1", 5986, Arrays.<Object>asList("shards/00000000-7fffffff/db.1"));
+        ShardDiscovery.addShards(shards, "db", "node2", 5986, Arrays.<Object>asList("shards/00000000-7fffffff/db.1",
+                "shards/80000000-ffffffff/db.1"));
+        ShardDiscovery.addShards(shards, "db", "node3", 5986, Arrays.<Object>asList("shards/00000000-7fffffff/db.1"));
+
+        assertThat(shards.size(), equalTo(2));
+        Feed feed = shards.get("00000000-7fffffff");
+        assertThat(feed.hosts(), equalTo(Arrays.asList("node1", "node2", "node3")));
+        assertThat(feed.host(), equalTo("node1"));
+        assertThat(feed.path(), equalTo("/shards%2F00000000-7fffffff%2Fdb.1"));
+        assertThat(shards.get("80000000-ffffffff").hosts(), equalTo(Arrays.asList("node2")));
+    }
+
+    @Test
+    public void testNextCopy() {
+        Feed feed = new Feed("db", "00000000-7fffffff", Arrays.asList("node1", "node2", "node3"), 5986, "/shards");
+        assertThat(feed.nextCopy(), is(true));
+        assertThat(feed.host(), equalTo("node2"));
+        assertThat(feed.nextCopy(), is(true));
+        assertThat(feed.host(), equalTo("node3"));
+        assertThat(feed.nextCopy(), is(true));
+        assertThat(feed.host(), equalTo("node1"));
+
+        assertThat(feed.useCopy("node3"), is(true));
+        assertThat(feed.host(), equalTo("node3"));
+        assertThat(feed.useCopy("node4"), is(false));
+        assertThat(feed.host(), equalTo("node3"));
+
+        Feed single = new Feed("db", "00000000-7fffffff", "node1", 5986, "/shards");
+        assertThat(single.nextCopy(), is(false));
+        assertThat(single.host(), equalTo("node1"));
+    }
+
+    @Test
+    public void testPersistedHost() {
+        Feed feed = new Feed("db", "00000000-7fffffff", "node1", 5986, "/shards");
+        Map<String, Object> state = new HashMap<String, Object>();
+        assertThat(CouchdbRiver.persistedHost(state, feed), nullValue());
+        state.put("hosts", Collections.<String, Object>singletonMap("00000000-7fffffff", "node2"));
+        assertThat(CouchdbRiver.persistedHost(state, feed), equalTo("node2"));
+        assertThat(CouchdbRiver.persistedHost(state, new Feed("db", "80000000-ffffffff", "node1", 5986, "/shards")), nullValue());
+    }
+
+    @Test
+    public void testDatabaseWithSlashes() {
+        Map<String, Feed> shards = new TreeMap<String, Feed>();
+        List<Object> dbs = Arrays.<Object>asList("shards/00000000-ffffffff/team/db.1", "shards/00000000-ffffffff/db.1");
+        ShardDiscovery.addShards(shards, "team/db", "node1", 5986, dbs);
+
+        assertThat(shards.size(), equalTo(1));
+        assertThat(shards.get("00000000-ffffffff").path(), equalTo("/shards%2F00000000-ffffffff%2Fteam%2Fdb.1"));
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.couchdb.helper;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * An in-process stand-in for couchdb, serving the synthetic feed of a single database, so that the river can be run
+ * without couchdb. It serves:
+ * <ul>
+ * <li><code>GET /{db}</code>: the database info, with its <code>update_seq</code> and <code>doc_count</code></li>
+ * <li><code>GET /{db}/_changes</code>: the feed, in <code>continuous</code>, <code>normal</code> or
+ * <code>longpoll</code> mode, from <code>since</code>, with or without <code>include_docs</code></li>
+ * <li><code>POST /{db}/_all_docs?include_docs=true</code>: the documents of the posted keys</li>
+ * </ul>
+ * The feed creates <code>docCount</code> documents, of sizes following a log-uniform distribution between
+ * <code>minDocSize</code> and <code>maxDocSize</code>. After each creation, random live documents are updated
+ * <code>updateRatio</code> times on average, and a random live document is deleted with probability
+ * <code>deleteRatio</code>. Each revision of a document holds its generation in a <code>gen</code> field. The feed is
+ * generated from a seed, so it is the same whenever it is read. The time each change is first sent is recorded, to
+ * measure end to end latencies.
+ */
+public class FakeCouchdbServer implements Closeable {
+
+    /**
+     * How seqs look like: plain integers (couchdb 1.x), arrays (bigcouch) or strings (couchdb 2).
+     */
+    public enum SeqFormat {
+        INTEGER, BIGCOUCH, COUCHDB2
+    }
+
+    public static class Builder {
+        private String db = "fake";
+        private int docCount = 1000;
+        private int minDocSize = 200;
+        private int maxDocSize = 2000;
+        private double deleteRatio = 0;
+        private double updateRatio = 0;
+        private SeqFormat seqFormat = SeqFormat.INTEGER;
+        private long heartbeatMillis = 0;
+        private int heartbeatEvery = 0;
+        private long seed = 42;
+
+        public Builder db(String db) {
+            this.db = db;
+            return this;
+        }
+
+        public Builder docCount(int docCount) {
+            this.docCount = docCount;
+            return this;
+        }
+
+        /**
+         * The bounds of the size of the documents, in bytes.
+         */
+        public Builder docSize(int minDocSize, int maxDocSize) {
+            this.minDocSize = minDocSize;
+            this.maxDocSize = maxDocSize;
+            return this;
+        }
+
+        public Builder deleteRatio(double deleteRatio) {
+            this.deleteRatio = deleteRatio;
+            return this;
+        }
+
+        /**
+         * The number of updates of random live documents after each creation, on average.
+         */
+        public Builder updateRatio(double updateRatio) {
+            this.updateRatio = updateRatio;
+            return this;
+        }
+
+        public Builder seqFormat(SeqFormat seqFormat) {
+            this.seqFormat = seqFormat;
+            return this;
+        }
+
+        /**
+         * The interval of heartbeats once the feed is caught up, overriding the <code>heartbeat</code> parameter of
+         * the requests. <code>0</code> uses the parameter.
+         */
+        public Builder heartbeat(long heartbeatMillis) {
+            this.heartbeatMillis = heartbeatMillis;
+            return this;
+        }
+
+        /**
+         * Sends a heartbeat every <code>heartbeatEvery</code> changes, even when the feed is not caught up.
+         * <code>0</code> disables it.
+         */
+        public Builder heartbeatEvery(int heartbeatEvery) {
+            this.heartbeatEvery = heartbeatEvery;
+            return this;
+        }
+
+        public Builder seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        public FakeCouchdbServer start() throws IOException {
+            return new FakeCouchdbServer(this);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final String db;
+    private final int minDocSize;
+    private final int maxDocSize;
+    private final SeqFormat seqFormat;
+    private final long heartbeatMillis;
+    private final int heartbeatEvery;
+    private final long seed;
+
+    // the document each change creates, updates or deletes, whether it deletes it, and the generation of the
+    // document it leaves
+    private final int[] changeDocs;
+    private final boolean[] changeDeletes;
+    private final int[] changeGenerations;
+    // the last change of each document
+    private final int[] lastChange;
+    // the change creating each document, and the one deleting it, -1 if it is never deleted
+    private final int[] createdBy;
+    private final int[] deletedBy;
+    private final int liveDocs;
+    // when each change was first sent, in System.nanoTime()
+    private final long[] sentAt;
+    private volatile int sent;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile boolean closed;
+
+    private FakeCouchdbServer(Builder builder) throws IOException {
+        this.db = builder.db;
+        this.minDocSize = builder.minDocSize;
+        this.maxDocSize = Math.max(builder.minDocSize, builder.maxDocSize);
+        this.seqFormat = builder.seqFormat;
+        this.heartbeatMillis = builder.heartbeatMillis;
+        this.heartbeatEvery = builder.heartbeatEvery;
+        this.seed = builder.seed;
+
+        Random random = new Random(seed);
+        List<Integer> docs = new ArrayList<Integer>();
+        List<Boolean> deletes = new ArrayList<Boolean>();
+        List<Integer> generations = new ArrayList<Integer>();
+        List<Integer> live = new ArrayList<Integer>();
+        createdBy = new int[builder.docCount];
+        deletedBy = new int[builder.docCount];
+        lastChange = new int[builder.docCount];
+        int[] generation = new int[builder.docCount];
+        double updates = 0;
+        for (int doc = 0; doc < builder.docCount; doc++) {
+            createdBy[doc] = docs.size();
+            deletedBy[doc] = -1;
+            lastChange[doc] = docs.size();
+            generation[doc] = 1;
+            docs.add(doc);
+            deletes.add(false);
+            generations.add(1);
+            live.add(doc);
+            for (updates += builder.updateRatio; updates >= 1; updates--) {
+                int updated = live.get(random.nextInt(live.size()));
+                lastChange[updated] = docs.size();
+                docs.add(updated);
+                deletes.add(false);
+                generations.add(++generation[updated]);
+            }
+            if (random.nextDouble() < builder.deleteRatio) {
+                int index = random.nextInt(live.size());
+                int deleted = live.get(index);
+                live.set(index, live.get(live.size() - 1));
+                live.remove(live.size() - 1);
+                deletedBy[deleted] = docs.size();
+                lastChange[deleted] = docs.size();
+                docs.add(deleted);
+                deletes.add(true);
+                generations.add(++generation[deleted]);
+            }
+        }
+        changeDocs = new int[docs.size()];
+        changeDeletes = new boolean[docs.size()];
+        changeGenerations = new int[docs.size()];
+        for (int i = 0; i < changeDocs.length; i++) {
+            changeDocs[i] = docs.get(i);
+            changeDeletes[i] = deletes.get(i);
+            changeGenerations[i] = generations.get(i);
+        }
+        liveDocs = live.size();
+        sentAt = new long[changeDocs.length];
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new Handler());
+        server.start();
+    }
+
+    public String host() {
+        return server.getAddress().getHostString();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public String db() {
+        return db;
+    }
+
+    /**
+     * The number of documents created by the feed.
+     */
+    public int docCount() {
+        return createdBy.length;
+    }
+
+    /**
+     * The number of changes of the feed.
+     */
+    public int changes() {
+        return changeDocs.length;
+    }
+
+    /**
+     * The number of documents left once all the changes are applied.
+     */
+    public int liveDocs() {
+        return liveDocs;
+    }
+
+    public static String docId(int doc) {
+        return "doc-" + doc;
+    }
+
+    /**
+     * The generation of a document once all the changes are applied, the number of its revisions.
+     */
+    public int generation(int doc) {
+        return changeGenerations[lastChange[doc]];
+    }
+
+    /**
+     * The generation of a document once the changes up to a seq are applied, <code>0</code> if it is not created yet.
+     */
+    public int generation(int doc, String seq) {
+        return generation(doc, position(seq));
+    }
+
+    /**
+     * The seq of the last change of the feed, as sent in the feed, <code>null</code> if the feed is empty.
+     */
+    public String lastSeq() {
+        return changeDocs.length == 0 ? null : seq(changeDocs.length - 1);
+    }
+
+    /**
+     * Whether a document is deleted by a later change.
+     */
+    public boolean isDeleted(int doc) {
+        return deletedBy[doc] >= 0;
+    }
+
+    /**
+     * When the change creating a document was first sent, in {@link System#nanoTime()}, <code>0</code> if it was not
+     * sent yet.
+     */
+    public long createdAt(int doc) {
+        return sentAt(creation(doc));
+    }
+
+    /**
+     * When the first change was first sent, <code>0</code> if it was not sent yet.
+     */
+    public long startedAt() {
+        return changeDocs.length == 0 ? 0 : sentAt(0);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private synchronized long sentAt(int change) {
+        return sentAt[change];
+    }
+
+    private synchronized void markSent(int change) {
+        if (sentAt[change] == 0) {
+            sentAt[change] = System.nanoTime();
+        }
+        if (change >= sent) {
+            sent = change + 1;
+        }
+    }
+
+    private int creation(int doc) {
+        if (doc < 0 || doc >= createdBy.length) {
+            throw new IllegalArgumentException("no document [" + doc + "]");
+        }
+        return createdBy[doc];
+    }
+
+    private String seq(int change) {
+        // seqs start at 1, 0 is before the first change
+        long number = change + 1;
+        switch (seqFormat) {
+            case BIGCOUCH:
+                return "[" + number + ",\"" + opaque(number) + "\"]";
+            case COUCHDB2:
+                return "\"" + number + "-" + opaque(number) + "\"";
+            default:
+                return String.valueOf(number);
+        }
+    }
+
+    private static String opaque(long number) {
+        return String.format(Locale.ROOT, "g1AAAAE%016xeJzLYWBgYMpgTmHgz8tPSTV0MDQy", number * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * The position in the feed after a <code>since</code> parameter, whatever its format.
+     */
+    private static int position(String since) {
+        if (since == null) {
+            return 0;
+        }
+        int start = 0;
+        while (start < since.length() && !Character.isDigit(since.charAt(start))) {
+            start++;
+        }
+        int end = start;
+        while (end < since.length() && Character.isDigit(since.charAt(end))) {
+            end++;
+        }
+        return end == start ? 0 : Integer.parseInt(since.substring(start, end));
+    }
+
+    private static String rev(int doc, int generation) {
+        return generation + "-" + String.format(Locale.ROOT, "%032x", (long) doc * 2654435761L + generation);
+    }
+
+    private String line(int change, boolean includeDocs) {
+        int doc = changeDocs[change];
+        boolean deleted = changeDeletes[change];
+        String rev = rev(doc, changeGenerations[change]);
+        StringBuilder line = new StringBuilder("{\"seq\":").append(seq(change))
+                .append(",\"id\":\"").append(docId(doc)).append("\",\"changes\":[{\"rev\":\"").append(rev).append("\"}]");
+        if (deleted) {
+            line.append(",\"deleted\":true");
+        }
+        if (includeDocs) {
+            line.append(",\"doc\":");
+            if (deleted) {
+                line.append("{\"_id\":\"").append(docId(doc)).append("\",\"_rev\":\"").append(rev).append("\",\"_deleted\":true}");
+            } else {
+                line.append(document(doc, rev, changeGenerations[change]));
+            }
+        }
+        return line.append('}').toString();
+    }
+
+    private String document(int doc, String rev, int generation) {
+        Random random = new Random(seed ^ (doc * 0x9E3779B97F4A7C15L));
+        // log-uniform, most documents are small
+        int size = (int) (minDocSize * Math.pow((double) maxDocSize / Math.max(1, minDocSize), random.nextDouble()));
+        StringBuilder document = new StringBuilder(size + 64).append("{\"_id\":\"").append(docId(doc))
+                .append("\",\"_rev\":\"").append(rev).append("\",\"n\":").append(doc).append(",\"gen\":").append(generation)
+                .append(",\"type\":\"benchmark\",\"content\":\"");
+        while (document.length() < size) {
+            document.append((char) ('a' + random.nextInt(26)));
+            if (random.nextInt(8) == 0) {
+                document.append(' ');
+            }
+        }
+        return document.append("\"}").toString();
+    }
+
+    private boolean isLive(int doc) {
+        int upTo = sent;
+        int created = creation(doc);
+        return created < upTo && (deletedBy[doc] < 0 || deletedBy[doc] >= upTo);
+    }
+
+    private int generation(int doc, int upTo) {
+        for (int change = Math.min(lastChange[doc], upTo - 1); change >= creation(doc); change--) {
+            if (changeDocs[change] == doc) {
+                return changeGenerations[change];
+            }
+        }
+        return 0;
+    }
+
+    private class Handler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+                if (path.equals("/" + db)) {
+                    info(exchange);
+                } else if (path.equals("/" + db + "/_changes")) {
+                    changes(exchange, params);
+                } else if (path.equals("/" + db + "/_all_docs") && "POST".equals(exchange.getRequestMethod())) {
+                    allDocs(exchange);
+                } else {
+                    send(exchange, 404, "{\"error\":\"not_found\",\"reason\":\"missing\"}");
+                }
+            } catch (IOException e) {
+                // the river closed the connection
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void info(HttpExchange exchange) throws IOException {
+            int upTo = sent;
+            int live = 0;
+            for (int doc = 0; doc < deletedBy.length; doc++) {
+                if (isLive(doc)) {
+                    live++;
+                }
+            }
+            send(exchange, 200, "{\"db_name\":\"" + db + "\",\"doc_count\":" + live + ",\"update_seq\":" +
+                    (upTo == 0 ? "0" : seq(upTo - 1)) + "}");
+        }
+
+        private void changes(HttpExchange exchange, Map<String, String> params) throws IOException {
+            String feed = params.containsKey("feed") ? params.get("feed") : "normal";
+            boolean includeDocs = "true".equals(params.get("include_docs"));
+            long heartbeat = heartbeatMillis > 0 ? heartbeatMillis :
+                    params.containsKey("heartbeat") ? Long.parseLong(params.get("heartbeat")) : 60000;
+            int from = position(params.get("since"));
+
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024);
+            if ("continuous".equals(feed)) {
+                for (int change = from; change < changeDocs.length && !closed; change++) {
+                    write(out, line(change, includeDocs) + "\n");
+                    markSent(change);
+                    if (heartbeatEvery > 0 && (change + 1) % heartbeatEvery == 0) {
+                        write(out, "\n");
+                    }
+                }
+                out.flush();
+                // caught up, the feed stays open until the river closes it
+                while (!closed) {
+                    try {
+                        Thread.sleep(heartbeat);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    write(out, "\n");
+                    out.flush();
+                }
+                return;
+            }
+
+            int limit = params.containsKey("limit") ? Integer.parseInt(params.get("limit")) : Integer.MAX_VALUE;
+            int to = (int) Math.min(changeDocs.length, (long) from + limit);
+            if (from >= to && "longpoll".equals(feed)) {
+                try {
+                    Thread.sleep(heartbeat);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            write(out, "{\"results\":[\n");
+            for (int change = from; change < to; change++) {
+                write(out, (change > from ? ",\n" : "") + line(change, includeDocs));
+                markSent(change);
+            }
+            int last = Math.max(from, to) - 1;
+            write(out, "\n],\n\"last_seq\":" + (last < 0 ? "0" : seq(Math.min(last, changeDocs.length - 1))) + "}\n");
+            out.flush();
+        }
+
+        @SuppressWarnings({"unchecked"})
+        private void allDocs(HttpExchange exchange) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            Streams.copy(exchange.getRequestBody(), body);
+            Map<String, Object> request = XContentFactory.xContent(XContentType.JSON).createParser(body.toByteArray(), 0, body.size()).mapAndClose();
+            StringBuilder response = new StringBuilder("{\"total_rows\":").append(deletedBy.length).append(",\"rows\":[\n");
+            boolean first = true;
+            for (Object key : (List<Object>) request.get("keys")) {
+                if (!first) {
+                    response.append(",\n");
+                }
+                first = false;
+                String id = key.toString();
+                int doc = id.startsWith("doc-") ? Integer.parseInt(id.substring(4)) : -1;
+                if (doc >= 0 && doc < deletedBy.length && isLive(doc)) {
+                    int generation = generation(doc, sent);
+                    String rev = rev(doc, generation);
+                    response.append("{\"id\":\"").append(id).append("\",\"key\":\"").append(id)
+                            .append("\",\"value\":{\"rev\":\"").append(rev).append("\"},\"doc\":")
+                            .append(document(doc, rev, generation)).append('}');
+                } else {
+                    response.append("{\"key\":\"").append(id).append("\",\"error\":\"not_found\"}");
+                }
+            }
+            send(exchange, 200, response.append("\n]}\n").toString());
+        }
+
+        private void send(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.flush();
+        }
+
+        private void write(OutputStream out, String value) throws IOException {
+            out.write(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private Map<String, String> params(String query) throws UnsupportedEncodingException {
+            Map<String, String> params = new HashMap<String, String>();
+            if (query == null) {
+                return params;
+            }
+            for (String param : query.split("&")) {
+                int index = param.indexOf('=');
+                if (index > 0) {
+                    params.put(URLDecoder.decode(param.substring(0, index), "UTF-8"),
+                            URLDecoder.decode(param.substring(index + 1), "UTF-8"));
+                }
+            }
+            return params;
+        }
+    }
+}